@@ -120,6 +120,10 @@ public abstract class DataStream {
 		return startItem(name).value(value).endItem();
 	}
 
+	public DataStream item(String name, long value) {
+		return startItem(name).value(value).endItem();
+	}
+
 	public DataStream item(String name, double value) {
 		return startItem(name).value(value).endItem();
 	}
@@ -145,10 +149,25 @@ public abstract class DataStream {
 		return startEntry(key).value(value).endEntry();
 	}
 
+	public DataStream entry(String key, long value) {
+		return startEntry(key).value(value).endEntry();
+	}
+
 	public DataStream entry(String key, double value) {
 		return startEntry(key).value(value).endEntry();
 	}
 
+	/**
+	 * Map entry with a value that is output as-is (e.g. a fragment of the original XML).
+	 *
+	 * @param key the key
+	 * @param value the plain value
+	 * @return this data stream
+	 */
+	public DataStream plainEntry(String key, String value) {
+		return startEntry(key).plain(value).endEntry();
+	}
+
 	public DataStream entry(String key, boolean value) {
 		return startEntry(key).value(value).endEntry();
 	}
@@ -161,6 +180,10 @@ public abstract class DataStream {
 		return startAttrEntry(elementName, attrName, key).value(value).endAttrEntry();
 	}
 
+	public DataStream attrEntry(String elementName, String attrName, String key, long value) {
+		return startAttrEntry(elementName, attrName, key).value(value).endAttrEntry();
+	}
+
 	public DataStream attrEntry(String elementName, String attrName, String key, double value) {
 		return startAttrEntry(elementName, attrName, key).value(value).endAttrEntry();
 	}
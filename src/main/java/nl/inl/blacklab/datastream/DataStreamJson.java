@@ -13,7 +13,7 @@ import nl.inl.util.StringUtil;
  */
 public class DataStreamJson extends DataStream {
 
-	/** JSONP callback function name, or null for none */
+	/** JSONP callback function name, or null (or empty) for none */
 	String jsonpCallback;
 
 	/** First entry in map/list: don't print separator */
@@ -36,7 +36,7 @@ public class DataStreamJson extends DataStream {
 
 	@Override
 	public DataStream startDocument(String rootEl) {
-		if (jsonpCallback != null) {
+		if (jsonpCallback != null && jsonpCallback.length() > 0) {
 			print(jsonpCallback).print("(");
 		}
 		return openbl("{");
@@ -45,7 +45,7 @@ public class DataStreamJson extends DataStream {
 	@Override
 	public DataStream endDocument() {
 		closebl("}");
-		if (jsonpCallback != null) {
+		if (jsonpCallback != null && jsonpCallback.length() > 0) {
 			print(");");
 		}
 		return this;
@@ -47,13 +47,14 @@ public class DataStreamXml extends DataStream {
 	public DataStream startDocument(String rootEl) {
 		print("<?xml version=\"1.0\" encoding=\"utf-8\" ?>").newline();
 		startOpenEl(rootEl);
-		return endOpenEl();
+		// (top-level entries are indented two levels, the same as DataObject.serializeDocument())
+		return endOpenEl().upindent();
 	}
 
 	@Override
 	public DataStream endDocument() {
-		startCompact();
-		return closeEl().endCompact();
+		downindent();
+		return closeEl();
 	}
 
 	@Override
@@ -76,6 +77,11 @@ public class DataStreamXml extends DataStream {
 		return indent().startCompact().startItem(name).value(value).endItem().endCompact().newline();
 	}
 
+	@Override
+	public DataStream item(String name, long value) {
+		return indent().startCompact().startItem(name).value(value).endItem().endCompact().newline();
+	}
+
 	@Override
 	public DataStream item(String name, double value) {
 		return indent().startCompact().startItem(name).value(value).endItem().endCompact().newline();
@@ -93,7 +99,9 @@ public class DataStreamXml extends DataStream {
 
 	@Override
 	public DataStream endItem() {
-		return closeEl();
+		// (DataObjectList doesn't indent the closing tag of list items)
+		String name = tagStack.remove(tagStack.size() - 1);
+		return downindent().print("</").print(name).print(">").newline();
 	}
 
 	@Override
@@ -116,6 +124,11 @@ public class DataStreamXml extends DataStream {
 		return indent().startCompact().startEntry(key).value(value).endEntry().endCompact().newline();
 	}
 
+	@Override
+	public DataStream entry(String key, long value) {
+		return indent().startCompact().startEntry(key).value(value).endEntry().endCompact().newline();
+	}
+
 	@Override
 	public DataStream entry(String key, double value) {
 		return indent().startCompact().startEntry(key).value(value).endEntry().endCompact().newline();
@@ -126,6 +139,11 @@ public class DataStreamXml extends DataStream {
 		return indent().startCompact().startEntry(key).value(value).endEntry().endCompact().newline();
 	}
 
+	@Override
+	public DataStream plainEntry(String key, String value) {
+		return indent().startCompact().startEntry(key).plain(value).endEntry().endCompact().newline();
+	}
+
 	@Override
 	public DataStream startEntry(String key) {
 		return openEl(key);
@@ -150,6 +168,13 @@ public class DataStreamXml extends DataStream {
 				.endCompact().newline();
 	}
 
+	@Override
+	public DataStream attrEntry(String elementName, String attrName, String key, long value) {
+		return indent().startCompact()
+				.startAttrEntry(elementName, attrName, key).value(value).endAttrEntry()
+				.endCompact().newline();
+	}
+
 	@Override
 	public DataStream attrEntry(String elementName, String attrName, String key, double value) {
 		return indent().startCompact()
@@ -175,7 +200,7 @@ public class DataStreamXml extends DataStream {
 	@Override
 	public DataStream startAttrEntry(String elementName, String attrName,
 			int key) {
-		return startEntry(Integer.toString(key));
+		return startAttrEntry(elementName, attrName, Integer.toString(key));
 	}
 
 	@Override
@@ -185,7 +210,6 @@ public class DataStreamXml extends DataStream {
 
 	@Override
 	public DataStream contextList(List<String> names, List<String> values) {
-		upindent();
 		int valuesPerWord = names.size();
 		int numberOfWords = values.size() / valuesPerWord;
 		for (int i = 0; i < numberOfWords; i++) {
@@ -205,7 +229,7 @@ public class DataStreamXml extends DataStream {
 			print("</w>");
 			newline();
 		}
-		return downindent();
+		return this;
 	}
 
 	@Override
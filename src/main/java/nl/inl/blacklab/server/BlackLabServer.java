@@ -7,18 +7,27 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import nl.inl.blacklab.datastream.DataStream;
 import nl.inl.blacklab.server.dataobject.DataFormat;
 import nl.inl.blacklab.server.dataobject.DataObject;
 import nl.inl.blacklab.server.dataobject.DataObjectPlain;
 import nl.inl.blacklab.server.requesthandlers.RequestHandler;
 import nl.inl.blacklab.server.requesthandlers.Response;
+import nl.inl.blacklab.server.search.Job;
 import nl.inl.blacklab.server.search.SearchManager;
 import nl.inl.blacklab.server.search.SearchParameters;
 import nl.inl.util.Json;
@@ -31,6 +40,10 @@ import org.apache.log4j.Logger;
 public class BlackLabServer extends HttpServlet {
 	private static final Logger logger = Logger.getLogger(BlackLabServer.class);
 
+	/** Request attribute: the jobs the request was suspended for
+	 *  (kept across async dispatches, until the response has been written) */
+	private static final String ATTR_JOBS_WAITED_FOR = "nl.inl.blacklab.server.jobsWaitedFor";
+
 	/** Manages all our searches */
 	private SearchManager searchManager;
 
@@ -103,7 +116,9 @@ public class BlackLabServer extends HttpServlet {
 	 */
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse responseObject) throws ServletException {
-		writeResponse(request, responseObject, RequestHandler.handle(this, request));
+		Response response = RequestHandler.handle(this, request);
+		if (!response.isHandledAsync()) // (if so, completeAsync() writes the response)
+			writeResponse(request, responseObject, response);
 	}
 
 	/**
@@ -133,7 +148,124 @@ public class BlackLabServer extends HttpServlet {
 	 */
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse responseObject) {
-		writeResponse(request, responseObject, RequestHandler.handle(this, request));
+		Response response = RequestHandler.handle(this, request);
+		if (response.isSuspended()) {
+			try {
+				suspendUntilFinished(request, responseObject, response.getJobToWaitFor(), response.getSuspendMaxWaitMs());
+			} catch (RuntimeException e) {
+				releaseJobsWaitedFor(request);
+				throw e;
+			}
+		} else {
+			try {
+				writeResponse(request, responseObject, response);
+			} finally {
+				releaseJobsWaitedFor(request);
+			}
+		}
+	}
+
+	/**
+	 * Suspend a request until a job is finished, then handle it again.
+	 *
+	 * This releases the request thread while the job is running, so blocking
+	 * requests for slow searches don't use up the container's threads.
+	 * When the job is finished, the request is dispatched again and will use the
+	 * finished job (we keep it for the request, so this works even if the job isn't
+	 * in the cache). If it takes too long, we send a "search timed out" response
+	 * instead.
+	 *
+	 * @param request HTTP request object
+	 * @param responseObject where to write our response
+	 * @param job the job to wait for (we release our reference to it after the
+	 *   response has been written)
+	 * @param maxWaitMs how long to wait for the job at most
+	 */
+	private void suspendUntilFinished(final HttpServletRequest request, HttpServletResponse responseObject, final Job job, long maxWaitMs) {
+		@SuppressWarnings("unchecked")
+		List<Job> jobsWaitedFor = (List<Job>)request.getAttribute(ATTR_JOBS_WAITED_FOR);
+		if (jobsWaitedFor == null) {
+			jobsWaitedFor = new ArrayList<>();
+			request.setAttribute(ATTR_JOBS_WAITED_FOR, jobsWaitedFor);
+		}
+		jobsWaitedFor.add(job);
+		searchManager.keepJobForSuspendedRequest(job);
+
+		final AsyncContext asyncContext = request.startAsync(request, responseObject);
+		asyncContext.setTimeout(maxWaitMs);
+
+		// Make sure we only resume once (job may finish at the same time we time out)
+		final AtomicBoolean resumed = new AtomicBoolean(false);
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (resumed.compareAndSet(false, true)) {
+					try {
+						writeResponse((HttpServletRequest)asyncContext.getRequest(), (HttpServletResponse)asyncContext.getResponse(), Response.searchTimedOut());
+					} finally {
+						releaseJobsWaitedFor(request);
+					}
+					asyncContext.complete();
+				}
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				if (resumed.compareAndSet(false, true))
+					releaseJobsWaitedFor(request);
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				// (nothing to do)
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+				// (nothing to do)
+			}
+		});
+		job.addFinishedListener(new Runnable() {
+			@Override
+			public void run() {
+				if (resumed.compareAndSet(false, true))
+					asyncContext.dispatch(); // handle the request again
+			}
+		});
+	}
+
+	/**
+	 * Write the response to a request that is handled asynchronously, and complete it.
+	 *
+	 * @param asyncContext the context from request.startAsync()
+	 * @param response the response to write
+	 */
+	public void completeAsync(AsyncContext asyncContext, Response response) {
+		try {
+			writeResponse((HttpServletRequest)asyncContext.getRequest(), (HttpServletResponse)asyncContext.getResponse(), response);
+		} finally {
+			try {
+				asyncContext.complete();
+			} catch (IllegalStateException e) {
+				logger.debug("(couldn't complete async request, client probably cancelled the request)");
+			}
+		}
+	}
+
+	/**
+	 * Release the jobs a request was suspended for, now that it's done.
+	 *
+	 * @param request HTTP request object
+	 */
+	private void releaseJobsWaitedFor(HttpServletRequest request) {
+		@SuppressWarnings("unchecked")
+		List<Job> jobsWaitedFor = (List<Job>)request.getAttribute(ATTR_JOBS_WAITED_FOR);
+		if (jobsWaitedFor == null)
+			return;
+		request.removeAttribute(ATTR_JOBS_WAITED_FOR);
+		for (Job job: jobsWaitedFor) {
+			searchManager.releaseJobForSuspendedRequest(job);
+		}
 	}
 
 	private void writeResponse(HttpServletRequest request,
@@ -152,6 +284,18 @@ public class BlackLabServer extends HttpServlet {
 		String callbackFunction = ServletUtil.getParameter(request, "jsonp", "");
 		boolean isJsonp = callbackFunction.length() > 0;
 
+		if (response.getETag() != null) {
+			// Weak validator: a regenerated response means the same, but isn't
+			// byte-identical (e.g. searchTime differs)
+			responseObject.setHeader("ETag", "W/\"" + response.getETag() + "\"");
+		}
+		if (response.isNotModified()) {
+			// Client's cached copy is still valid; no need to send it again
+			responseObject.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			ServletUtil.writeCacheHeaders(responseObject, searchManager.getClientCacheTimeSec());
+			return;
+		}
+
 		// Write HTTP headers (status code, encoding, content type and cache)
 		if (!isJsonp) // JSONP request always returns 200 OK because otherwise script doesn't load
 			responseObject.setStatus(response.getHttpStatusCode());
@@ -160,23 +304,53 @@ public class BlackLabServer extends HttpServlet {
 		int cacheTime = response.isCacheAllowed() ? searchManager.getClientCacheTimeSec() : 0;
 		ServletUtil.writeCacheHeaders(responseObject, cacheTime);
 
-		try {
-			// Write the response
-			OutputStreamWriter out = new OutputStreamWriter(responseObject.getOutputStream(), "utf-8");
+		// Compress the response if it's large and the client accepts it
+		String contentEncoding = null;
+		int compressionThreshold = searchManager.getResponseCompressionThresholdBytes();
+		if (compressionThreshold >= 0) {
+			responseObject.setHeader("Vary", "Accept-Encoding");
+			contentEncoding = ServletUtil.getAcceptedContentEncoding(request);
+		}
+
+		// Write the response
+		// (buffered; if it turns out to be small, it's sent with a Content-Length,
+		//  otherwise it's compressed on the fly if possible. The stream is closed
+		//  even if the client goes away, so the compressor is always released.)
+		try (CompressingResponseStream responseStream = new CompressingResponseStream(responseObject,
+				contentEncoding, compressionThreshold < 0 ? CompressingResponseStream.UNCOMPRESSED_BUFFER_SIZE : compressionThreshold,
+				searchManager.getResponseCompressionLevel())) {
+			OutputStreamWriter out = new OutputStreamWriter(responseStream, "utf-8");
 			boolean prettyPrint = ServletUtil.getParameter(request, "prettyprint", debugMode);
 			if (isJsonp && !callbackFunction.matches("[_a-zA-Z][_a-zA-Z0-9]+")) {
 				response = Response.badRequest("JSONP_ILLEGAL_CALLBACK", "Illegal JSONP callback function name. Must be a valid Javascript name.");
 				callbackFunction = "";
 			}
 			String rootEl = "blacklabResponse";
-			DataObject dataObject = response.getDataObject();
-			if (dataObject instanceof DataObjectPlain && !((DataObjectPlain) dataObject).shouldAddRootElement()) {
-				// Plain objects sometimes don't want root objects (e.g. because they're
-				// full XML documents already)
-				rootEl = null;
+			Response.Streamer streamer = response.getStreamer();
+			if (streamer != null) {
+				// Write the response data directly, without building a DataObject tree first
+				PrintWriter pw = new PrintWriter(out);
+				DataStream ds = DataStream.create(outputType, pw, prettyPrint, callbackFunction);
+				ds.startDocument(rootEl);
+				streamer.stream(ds);
+				ds.endDocument();
+				pw.flush();
+				if (pw.checkError()) {
+					// (PrintWriter doesn't throw IOExceptions, so check here)
+					logger.debug("(couldn't send response, client probably cancelled the request)");
+					return;
+				}
+			} else {
+				DataObject dataObject = response.getDataObject();
+				if (dataObject instanceof DataObjectPlain && !((DataObjectPlain) dataObject).shouldAddRootElement()) {
+					// Plain objects sometimes don't want root objects (e.g. because they're
+					// full XML documents already)
+					rootEl = null;
+				}
+				dataObject.serializeDocument(rootEl, out, outputType, prettyPrint, callbackFunction);
+				out.flush();
 			}
-			dataObject.serializeDocument(rootEl, out, outputType, prettyPrint, callbackFunction);
-			out.flush();
+			responseStream.finish();
 		} catch (UnsupportedEncodingException e) {
 			throw new RuntimeException(e);
 		} catch (/*ClientAbortException*/ IOException e) {
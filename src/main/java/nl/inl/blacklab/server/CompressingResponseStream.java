@@ -0,0 +1,177 @@
+package nl.inl.blacklab.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Buffers the response output and compresses it if it gets large enough.
+ *
+ * Output is buffered until it reaches the compression threshold. If the
+ * response turns out to be smaller than that, it is sent uncompressed (with a
+ * Content-Length header); otherwise, the Content-Encoding header is set and the
+ * rest of the output is compressed on the fly.
+ *
+ * Call finish() when done writing, and always call close() afterwards (also
+ * if writing failed), so the compressor's native memory is released.
+ */
+class CompressingResponseStream extends OutputStream {
+
+	/** Buffer size for the compressor */
+	private static final int COMPRESSOR_BUFFER_SIZE = 8192;
+
+	/** Buffer size for writing uncompressed output after the threshold is passed */
+	static final int UNCOMPRESSED_BUFFER_SIZE = 8192;
+
+	/** The response to write to */
+	private HttpServletResponse response;
+
+	/** The content encoding to use if we compress ("gzip" or "deflate"), or null for none */
+	private String contentEncoding;
+
+	/** Compression level (1-9, or -1 for the default) */
+	private int level;
+
+	/** Output up to this size is sent uncompressed */
+	private int threshold;
+
+	/** Output buffered so far (until we decide whether to compress) */
+	private ByteArrayOutputStream buffer;
+
+	/** Where we write after we've made our decision (or null if we haven't yet) */
+	private OutputStream out = null;
+
+	/** Compressor we're using (so we can release it when done), or null if not compressing */
+	private Deflater deflater = null;
+
+	/** GZIPOutputStream with a configurable compression level */
+	private static class GzipStream extends GZIPOutputStream {
+		GzipStream(OutputStream out, int level) throws IOException {
+			super(out, COMPRESSOR_BUFFER_SIZE);
+			def.setLevel(level);
+		}
+
+		Deflater getDeflater() {
+			return def;
+		}
+	}
+
+	/**
+	 * Create the stream.
+	 *
+	 * @param response the response to write to
+	 * @param contentEncoding content encoding the client accepts ("gzip" or "deflate"),
+	 *   or null to never compress
+	 * @param threshold output up to this many bytes is sent uncompressed
+	 * @param level compression level (1-9, or -1 for the default)
+	 */
+	CompressingResponseStream(HttpServletResponse response, String contentEncoding, int threshold, int level) {
+		this.response = response;
+		this.contentEncoding = contentEncoding;
+		this.threshold = Math.max(threshold, 0);
+		this.level = level;
+		buffer = new ByteArrayOutputStream(Math.min(this.threshold, UNCOMPRESSED_BUFFER_SIZE) + 1);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (out == null) {
+			buffer.write(b);
+			if (buffer.size() > threshold)
+				startOutput();
+		} else {
+			out.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (out == null) {
+			buffer.write(b, off, len);
+			if (buffer.size() > threshold)
+				startOutput();
+		} else {
+			out.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// We only flush when we've decided whether to compress or not;
+		// otherwise, flushing would force us to send the output uncompressed.
+		if (out != null)
+			out.flush();
+	}
+
+	/**
+	 * The output has passed the threshold: compress the rest, or just pass it on.
+	 *
+	 * @throws IOException on write error
+	 */
+	private void startOutput() throws IOException {
+		OutputStream responseStream = response.getOutputStream();
+		if (contentEncoding == null) {
+			out = new BufferedOutputStream(responseStream, UNCOMPRESSED_BUFFER_SIZE);
+		} else {
+			response.setHeader("Content-Encoding", contentEncoding);
+			if (contentEncoding.equals("gzip")) {
+				GzipStream gzip = new GzipStream(responseStream, level);
+				deflater = gzip.getDeflater();
+				out = gzip;
+			} else {
+				// HTTP "deflate" is the zlib format
+				deflater = new Deflater(level);
+				out = new DeflaterOutputStream(responseStream, deflater, COMPRESSOR_BUFFER_SIZE);
+			}
+		}
+		buffer.writeTo(out);
+		buffer = null;
+	}
+
+	/**
+	 * Done writing; send any buffered output and finish the compressed stream.
+	 *
+	 * Does not close the servlet's output stream.
+	 *
+	 * @throws IOException on write error
+	 */
+	public void finish() throws IOException {
+		if (out == null) {
+			// Small response; send as-is
+			response.setContentLength(buffer.size());
+			buffer.writeTo(response.getOutputStream());
+			buffer = null;
+			return;
+		}
+		try {
+			if (deflater != null)
+				((DeflaterOutputStream) out).finish();
+			out.flush();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Release the compressor's native resources.
+	 *
+	 * Does not close the servlet's output stream, and doesn't send any buffered
+	 * output (call finish() for that). Safe to call more than once, and after
+	 * the client has gone away.
+	 */
+	@Override
+	public void close() {
+		// (we don't close the compressing stream, so it won't do this itself)
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+}
@@ -130,6 +130,72 @@ public class ServletUtil {
 		return defaultFormat;
 	}
 
+	/**
+	 * Determine what compressed content encoding the client accepts.
+	 *
+	 * This is based on the Accept-Encoding header. We prefer gzip over deflate;
+	 * encodings with a quality value of 0 are not acceptable.
+	 *
+	 * @param request the request object
+	 * @return "gzip", "deflate", or null if the client doesn't accept either
+	 */
+	public static String getAcceptedContentEncoding(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null || acceptEncoding.length() == 0)
+			return null;
+		boolean gzip = false, deflate = false;
+		for (String part: acceptEncoding.split(",")) {
+			String[] codingAndParams = part.trim().split(";");
+			String coding = codingAndParams[0].trim().toLowerCase();
+			boolean acceptable = true;
+			for (int i = 1; i < codingAndParams.length; i++) {
+				String param = codingAndParams[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						acceptable = Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						acceptable = false;
+					}
+				}
+			}
+			if (!acceptable)
+				continue;
+			if (coding.equals("gzip") || coding.equals("x-gzip"))
+				gzip = true;
+			else if (coding.equals("deflate"))
+				deflate = true;
+		}
+		if (gzip)
+			return "gzip";
+		return deflate ? "deflate" : null;
+	}
+
+	/**
+	 * Does the request's If-None-Match header match the specified ETag?
+	 *
+	 * If so, the client already has the current version of the response.
+	 * Our ETags are weak, so we use weak comparison (RFC 7232): the W/ prefix
+	 * of the client's tags is ignored.
+	 *
+	 * @param request the request object
+	 * @param etag our ETag for the response (without quotes)
+	 * @return true iff the client's cached copy is still valid
+	 */
+	public static boolean ifNoneMatchMatches(HttpServletRequest request, String etag) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch == null || ifNoneMatch.length() == 0)
+			return false;
+		String quotedEtag = "\"" + etag + "\"";
+		for (String tag: ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(quotedEtag))
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Returns the desired content type for the output.
 	 * This is based on the "outputformat" parameter.
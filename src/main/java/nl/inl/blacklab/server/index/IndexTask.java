@@ -2,9 +2,12 @@ package nl.inl.blacklab.server.index;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import nl.inl.blacklab.index.DocIndexer;
 import nl.inl.blacklab.index.DocumentFormats;
@@ -12,8 +15,11 @@ import nl.inl.blacklab.index.IndexListener;
 import nl.inl.blacklab.index.IndexListenerDecorator;
 import nl.inl.blacklab.index.Indexer;
 import nl.inl.blacklab.search.indexstructure.IndexStructure;
+import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
 import nl.inl.blacklab.server.exceptions.NotAuthorized;
 
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.log4j.Logger;
 
 public class IndexTask {
@@ -26,6 +32,12 @@ public class IndexTask {
 	 *  we're done with it. */
 	private InputStream data;
 
+	/** Counts the bytes read from data (if we're indexing a stream) */
+	private CountingInputStream countingData;
+
+	/** Total size of the data in bytes, or -1 if unknown */
+	private long bytesTotal = -1;
+
 	private String name;
 
 	private File indexDir;
@@ -34,7 +46,19 @@ public class IndexTask {
 
 	private IndexListener decoratedListener;
 
-	String indexError = null;
+	volatile String indexError = null;
+
+	/** When we started indexing (or -1 if we haven't yet) */
+	private volatile long startedAt = -1;
+
+	/** When we finished indexing (or -1 if we haven't yet) */
+	private volatile long finishedAt = -1;
+
+	/** Number of documents indexed so far */
+	private volatile int docsDone = 0;
+
+	/** Number of tokens indexed so far */
+	private volatile long tokensDone = 0;
 
 	/**
 	 * Construct a new SearchThread
@@ -45,7 +69,8 @@ public class IndexTask {
 	 */
 	public IndexTask(File indexDir, InputStream data, String name, IndexListener listener) {
 		this.indexDir = indexDir;
-		this.data = data;
+		this.countingData = new CountingInputStream(data);
+		this.data = countingData;
 		this.name = name;
 		setListener(listener);
 	}
@@ -54,9 +79,22 @@ public class IndexTask {
 		this.indexDir = indexDir;
 		this.dataFile = dataFile;
 		this.name = name;
+		bytesTotal = dataFile.length();
 		setListener(listener);
 	}
 
+	/**
+	 * Set the total size of the data, so we can report progress.
+	 *
+	 * (Only needed when indexing from a stream; we know the size of a file)
+	 *
+	 * @param bytesTotal total number of bytes, or -1 if unknown
+	 */
+	public void setBytesTotal(long bytesTotal) {
+		this.bytesTotal = bytesTotal;
+	}
+
+
 	boolean anyDocsFound = false;
 
 	private void setListener(IndexListener listener) {
@@ -74,10 +112,23 @@ public class IndexTask {
 				super.documentStarted(name);
 				anyDocsFound = true;
 			}
+
+			@Override
+			public synchronized void documentDone(String name) {
+				super.documentDone(name);
+				docsDone++;
+			}
+
+			@Override
+			public synchronized void tokensDone(int n) {
+				super.tokensDone(n);
+				tokensDone += n;
+			}
 		};
 	}
 
 	public void run() throws Exception {
+		startedAt = System.currentTimeMillis();
 		Indexer indexer = null;
 		try {
 			indexer = new Indexer(indexDir, false, null);
@@ -102,24 +153,12 @@ public class IndexTask {
 				if (data == null && dataFile != null) {
 					// Used for zip files, possibly other types in the future.
 					indexer.index(dataFile);
-				} else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
-					// Tar gzipped data; read directly from stream.
-					indexer.indexTarGzip(name, data, "*.xml", true);
-				} else if (name.endsWith(".gz")) {
-					// Tar gzipped data; read directly from stream.
-					indexer.indexGzip(name, data);
 				} else {
-					// Straight XML data. Read as UTF-8.
-					Reader reader = new BufferedReader(new InputStreamReader(data, "utf-8"));
-					try {
-						logger.debug("Starting indexing");
-						indexer.index(name, reader);
-						logger.debug("Done indexing");
-						if (!anyDocsFound) {
-							indexError = "The file contained no documents in the selected format. Do the corpus and file formats match?";
-						}
-					} finally {
-						reader.close();
+					logger.debug("Starting indexing");
+					indexStream(indexer, name, data);
+					logger.debug("Done indexing");
+					if (!anyDocsFound && indexError == null) {
+						indexError = "The file contained no documents in the selected format. Do the corpus and file formats match?";
 					}
 				}
 			} catch (Exception e) {
@@ -143,10 +182,129 @@ public class IndexTask {
 			if (data != null)
 				data.close();
 			data = null;
+			finishedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Index data from a stream, as it arrives.
+	 *
+	 * Zip, tar.gz and gz data is unpacked on the fly, so we never need to
+	 * store the data in a (temporary) file first.
+	 *
+	 * Does not close the stream.
+	 *
+	 * @param indexer the indexer to use
+	 * @param fileName name of the data (determines how we read it)
+	 * @param is the data
+	 * @throws Exception if indexing failed
+	 */
+	private void indexStream(Indexer indexer, String fileName, InputStream is) throws Exception {
+		// Make sure the indexer can't close the stream, because we may
+		// not be done with it (e.g. when reading a zip entry)
+		InputStream shielded = new CloseShieldInputStream(is);
+		if (fileName.endsWith(".zip")) {
+			// Zipped data; index the entries one by one.
+			indexZipStream(indexer, fileName, shielded);
+		} else if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz")) {
+			// Tar gzipped data; read directly from stream.
+			indexer.indexTarGzip(fileName, shielded, "*.xml", true);
+		} else if (fileName.endsWith(".gz")) {
+			// Gzipped data; read directly from stream.
+			indexer.indexGzip(fileName, shielded);
+		} else {
+			// Straight XML data. Read as UTF-8.
+			Reader reader = new BufferedReader(new InputStreamReader(shielded, "utf-8"));
+			try {
+				indexer.index(fileName, reader);
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Index the entries in a zip file, as they arrive.
+	 *
+	 * Indexes xml files and any gz, tar.gz or zip files inside the zip.
+	 *
+	 * @param indexer the indexer to use
+	 * @param zipName name of the zip file (for error messages)
+	 * @param is the zip data
+	 * @throws Exception if indexing failed
+	 */
+	private void indexZipStream(Indexer indexer, String zipName, InputStream is) throws Exception {
+		ZipInputStream zip = new ZipInputStream(is);
+		try {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null && indexError == null) {
+				String entryName = entry.getName();
+				if (!entry.isDirectory() && isIndexable(entryName)) {
+					indexStream(indexer, zipName + "/" + entryName, zip);
+				}
+				zip.closeEntry();
+			}
+		} catch (IOException e) {
+			throw new IOException("Error reading zip file " + zipName + ": " + e.getMessage(), e);
+		} finally {
+			// Releases the decompressor (the underlying stream is shielded)
+			zip.close();
 		}
 	}
 
+	/**
+	 * Can we index a file with this name?
+	 *
+	 * @param fileName the file name
+	 * @return true iff we can index it
+	 */
+	private static boolean isIndexable(String fileName) {
+		return fileName.endsWith(".xml") || fileName.endsWith(".gz") || fileName.endsWith(".tgz")
+				|| fileName.endsWith(".zip");
+	}
+
 	public String getIndexError() {
 		return indexError;
 	}
+
+	/**
+	 * Get the (file) name of the data we're indexing.
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Report on the progress of this task.
+	 *
+	 * Includes an estimate of the time left, if we know how much data there is
+	 * and how much we've read so far.
+	 *
+	 * @return the progress information
+	 */
+	public DataObjectMapElement getProgressDataObject() {
+		long now = System.currentTimeMillis();
+		long bytesRead = countingData == null ? -1 : countingData.getByteCount();
+		DataObjectMapElement progress = new DataObjectMapElement();
+		progress.put("fileName", name);
+		progress.put("started", startedAt >= 0);
+		progress.put("finished", finishedAt >= 0);
+		progress.put("docsDone", docsDone);
+		progress.put("tokensDone", tokensDone);
+		progress.put("bytesRead", bytesRead);
+		progress.put("bytesTotal", bytesTotal);
+		if (startedAt >= 0) {
+			long end = finishedAt >= 0 ? finishedAt : now;
+			double elapsedSec = (end - startedAt) / 1000.0;
+			progress.put("elapsedSec", elapsedSec);
+			if (finishedAt < 0 && bytesRead > 0 && bytesTotal > 0) {
+				double etaSec = elapsedSec * (bytesTotal - bytesRead) / bytesRead;
+				progress.put("etaSec", Math.max(etaSec, 0));
+			}
+		}
+		if (indexError != null)
+			progress.put("indexError", indexError);
+		return progress;
+	}
 }
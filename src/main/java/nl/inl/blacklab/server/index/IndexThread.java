@@ -1,34 +1,56 @@
 package nl.inl.blacklab.server.index;
 
-import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.log4j.Logger;
 
 /**
- * A (background) thread for indexing.
+ * The (background) task adding data to an index.
+ *
+ * Runs on one of the SearchManager's indexing threads.
  */
-final public class IndexThread extends Thread implements UncaughtExceptionHandler {
+final public class IndexThread implements Runnable {
 	protected static final Logger logger = Logger.getLogger(IndexThread.class);
 
-	/** If search execution failed, this is the exception that was thrown */
-	Throwable thrownException = null;
+	/** If indexing failed, this is the exception that was thrown */
+	volatile Throwable thrownException = null;
 
+	/** The indexing job to do */
 	private IndexTask job;
 
+	/** Called when the job is done (successfully or not), or null */
+	private Runnable whenDone;
+
+	/** Has the job started? */
+	private volatile boolean started = false;
+
+	/** Is the job done? */
+	private volatile boolean finished = false;
+
+	/** Released when the job is done and whenDone has been called */
+	private CountDownLatch done = new CountDownLatch(1);
+
+	/** Called when the job is done, after whenDone (see addFinishedListener()) */
+	private List<Runnable> finishedListeners = new ArrayList<>();
+
 	/**
-	 * Construct a new SearchThread
+	 * Construct a new IndexThread
 	 * @param job the job to do
+	 * @param whenDone called when the job is done (successfully or not), or null
 	 */
-	public IndexThread(IndexTask job) {
+	public IndexThread(IndexTask job, Runnable whenDone) {
 		this.job = job;
-		setUncaughtExceptionHandler(this);
+		this.whenDone = whenDone;
 	}
 
 	/**
-	 * Run the thread, performing the requested search.
+	 * Run the task, indexing the data.
 	 */
 	@Override
 	public void run() {
+		started = true;
 		try {
 
 			// ... index the data...
@@ -37,28 +59,93 @@ final public class IndexThread extends Thread implements UncaughtExceptionHandle
 		} catch (Throwable e) {
 			// NOTE: we catch Throwable here (while it's normally good practice to
 			//  catch only Exception and derived classes) because we need to know if
-			//  our thread crashed or not. The Throwable will be re-thrown by the
-			//  main thread, so any non-Exception Throwables will then go uncaught
-			//  as they "should".
-
-			// We've also set an UncaughtExceptionHandler (the thread object itself)
-			// which does the same thing, because apparently some exceptions can occur
-			// outside the run() method or aren't caught here for some other reason).
-			// Even then, some low-level ones (like OutOfMemoryException) seem to slip by.
+			//  our task crashed or not. The client can check the index status to
+			//  see what went wrong.
+			logger.debug("Index task threw an exception, saving it:\n" + e.getClass().getName() + ": " + e.getMessage());
 			thrownException = e;
+		} finally {
+			finished = true;
+			try {
+				if (whenDone != null)
+					whenDone.run();
+			} finally {
+				done.countDown();
+				callFinishedListeners();
+			}
+		}
+	}
+
+	/**
+	 * Call a method when the task is done (and whenDone has been called).
+	 *
+	 * If it's already done, the method is called right away (in the current
+	 * thread). Otherwise, it is called from the indexing thread.
+	 *
+	 * @param listener the method to call
+	 */
+	public void addFinishedListener(Runnable listener) {
+		synchronized (finishedListeners) {
+			if (done.getCount() > 0) {
+				finishedListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Call the finished listeners (once).
+	 */
+	private void callFinishedListeners() {
+		List<Runnable> listeners;
+		synchronized (finishedListeners) {
+			listeners = new ArrayList<>(finishedListeners);
+			finishedListeners.clear();
+		}
+		for (Runnable listener: listeners) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				logger.error("Index task finished listener threw an exception", e);
+			}
 		}
 	}
 
 	/**
-	 * Has the thread stopped running?
-	 * @return true iff the thread has terminated
+	 * Get the indexing job.
+	 * @return the job
+	 */
+	public IndexTask getTask() {
+		return job;
+	}
+
+	/**
+	 * Has the task started running?
+	 * @return true iff the task has started
+	 */
+	public boolean started() {
+		return started;
+	}
+
+	/**
+	 * Has the task stopped running?
+	 * @return true iff the task is done
 	 */
 	public boolean finished() {
-		return getState() == State.TERMINATED;
+		return finished;
 	}
 
 	/**
-	 * Did the thread throw an Exception?
+	 * Wait until the task is done (and whenDone has been called).
+	 *
+	 * @throws InterruptedException if we were interrupted while waiting
+	 */
+	public void waitUntilFinished() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * Did the task throw an Exception?
 	 * @return true iff it threw an Exception
 	 */
 	public boolean threwException() {
@@ -66,17 +153,11 @@ final public class IndexThread extends Thread implements UncaughtExceptionHandle
 	}
 
 	/**
-	 * Get the Exception that was thrown by the thread (if any)
+	 * Get the Exception that was thrown by the task (if any)
 	 * @return the thrown Exception, or null if none was thrown
 	 */
 	public Throwable getThrownException() {
 		return thrownException;
 	}
 
-	@Override
-	public void uncaughtException(Thread t, Throwable e) {
-		logger.debug("Index thread threw an exception, saving it:\n" + e.getClass().getName() + ": " + e.getMessage());
-		thrownException = e;
-	}
-
 }
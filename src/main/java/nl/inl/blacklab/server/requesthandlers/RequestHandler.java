@@ -1,7 +1,10 @@
 package nl.inl.blacklab.server.requesthandlers;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,21 +12,22 @@ import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
-import nl.inl.blacklab.perdocument.DocCount;
-import nl.inl.blacklab.perdocument.DocCounts;
-import nl.inl.blacklab.perdocument.DocGroupProperty;
-import nl.inl.blacklab.perdocument.DocProperty;
-import nl.inl.blacklab.perdocument.DocPropertyMultiple;
-import nl.inl.blacklab.perdocument.DocResults;
+import nl.inl.blacklab.datastream.DataStream;
+import nl.inl.blacklab.search.Concordance;
+import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.Hits;
+import nl.inl.blacklab.search.Kwic;
 import nl.inl.blacklab.search.Searcher;
 import nl.inl.blacklab.search.indexstructure.IndexStructure;
 import nl.inl.blacklab.server.BlackLabServer;
 import nl.inl.blacklab.server.ServletUtil;
-import nl.inl.blacklab.server.dataobject.DataObjectList;
-import nl.inl.blacklab.server.dataobject.DataObjectMapAttribute;
 import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
 import nl.inl.blacklab.server.exceptions.BlsException;
 import nl.inl.blacklab.server.exceptions.InternalServerError;
+import nl.inl.blacklab.server.search.DocInfo;
+import nl.inl.blacklab.server.search.GroupListing;
+import nl.inl.blacklab.server.search.Job;
+import nl.inl.blacklab.server.search.SearchCache;
 import nl.inl.blacklab.server.search.SearchManager;
 import nl.inl.blacklab.server.search.SearchParameters;
 import nl.inl.blacklab.server.search.SearchUtil;
@@ -40,6 +44,10 @@ import org.apache.lucene.document.Document;
 public abstract class RequestHandler {
 	static final Logger logger = Logger.getLogger(RequestHandler.class);
 
+	/** Request attribute holding the time until which we will wait for a blocking search
+	 *  (kept across async dispatches of the same request) */
+	private static final String ATTR_BLOCKING_DEADLINE = "nl.inl.blacklab.server.blockingDeadline";
+
 	/** The available request handlers by name */
 	static Map<String, Class<? extends RequestHandler>> availableHandlers;
 
@@ -172,8 +180,9 @@ public abstract class RequestHandler {
 					try {
 						String handlerName = urlResource;
 
+						// (while data is being added, the previous version of the index can still be searched)
 						String status = searchManager.getIndexStatus(indexName);
-						if (!status.equals("available") && handlerName.length() > 0 && !handlerName.equals("debug") && !handlerName.equals("fields") && !handlerName.equals("status")) {
+						if (!status.equals("available") && !status.equals("indexing") && handlerName.length() > 0 && !handlerName.equals("debug") && !handlerName.equals("fields") && !handlerName.equals("status")) {
 							return Response.unavailable(indexName, status);
 						}
 
@@ -241,7 +250,16 @@ public abstract class RequestHandler {
 
 		// Handle the request
 		try {
-			return requestHandler.handle();
+			// If the client already has the current version of the response,
+			// tell it so before doing any real work.
+			String etag = requestHandler.getETag();
+			if (etag != null && ServletUtil.ifNoneMatchMatches(request, etag))
+				return Response.notModified(etag);
+
+			Response response = requestHandler.handle();
+			if (etag != null)
+				response.setETagIfCacheable(etag);
+			return response;
 		} catch (InternalServerError e) {
 			String msg = ServletUtil.internalErrorMessage(e, debugMode, e.getInternalErrorCode());
 			return Response.error(e.getBlsErrorCode(), msg, e.getHttpStatusCode());
@@ -313,6 +331,58 @@ public abstract class RequestHandler {
 		logger.error(user.uniqueIdShort() + " " + msg);
 	}
 
+	/**
+	 * Does the response only depend on the request and the contents of the index?
+	 *
+	 * If so, the response gets a (weak) ETag and clients may revalidate their
+	 * cached copy using If-None-Match. Child classes should override this if applicable.
+	 *
+	 * @return true iff we can use an ETag for the response
+	 */
+	protected boolean isETagSupported() {
+		return false;
+	}
+
+	/**
+	 * Determine the ETag for the response to this request.
+	 *
+	 * Derived from the search parameters and other request properties that
+	 * influence the response, plus the version of the index (so the ETag changes
+	 * when documents are added to it).
+	 *
+	 * @return the ETag (without quotes), or null if not supported for this request
+	 * @throws BlsException if the index could not be opened
+	 */
+	String getETag() throws BlsException {
+		if (!isETagSupported() || !request.getMethod().equals("GET"))
+			return null;
+		StringBuilder b = new StringBuilder();
+		b.append(getClass().getName()).append("\n")
+			.append(urlResource).append("\n")
+			.append(urlPathInfo).append("\n")
+			.append(searchParam.toString()).append("\n")
+			.append(ServletUtil.getOutputType(request, searchMan.getDefaultOutputType())).append("\n")
+			.append(ServletUtil.getParameter(request, "jsonp", "")).append("\n")
+			.append(ServletUtil.getParameter(request, "prettyprint", debugMode)).append("\n")
+			.append(debugMode).append("\n");
+		if (searchMan.getResponseCompressionThresholdBytes() >= 0) {
+			// Compressed responses are a different representation
+			b.append(ServletUtil.getAcceptedContentEncoding(request)).append("\n");
+		}
+		b.append(searchMan.getIndexVersion(indexName));
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			byte[] digest = md5.digest(b.toString().getBytes("utf-8"));
+			StringBuilder etag = new StringBuilder();
+			for (byte x: digest) {
+				etag.append(String.format("%02x", x & 0xFF));
+			}
+			return etag.toString();
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+			throw new InternalServerError("Could not determine ETag", 31, e);
+		}
+	}
+
 	/**
 	 * Child classes should override this to handle the request.
 	 * @return the response object
@@ -400,46 +470,159 @@ public abstract class RequestHandler {
 		return docInfo;
 	}
 
-	protected DataObjectMapAttribute getFacets(DocResults docsToFacet, String facetSpec) {
-		DataObjectMapAttribute doFacets;
-		DocProperty propMultipleFacets = DocProperty.deserialize(facetSpec);
-		List<DocProperty> props = new ArrayList<>();
-		if (propMultipleFacets instanceof DocPropertyMultiple) {
-			// Multiple facets requested
-			for (DocProperty prop: (DocPropertyMultiple)propMultipleFacets) {
-				props.add(prop);
+	/**
+	 * Stream document information (metadata, contents authorization)
+	 *
+	 * @param ds where to write the document information
+	 * @param searcher our index
+	 * @param docInfo the document information (see SearchManager.getDocInfos())
+	 */
+	public void dataStreamDocumentInfo(DataStream ds, Searcher searcher, DocInfo docInfo) {
+		ds.startMap();
+		for (Map.Entry<String, String> e: docInfo.getMetadata().entrySet()) {
+			ds.entry(e.getKey(), e.getValue());
+		}
+		if (docInfo.getLengthInTokens() >= 0)
+			ds.entry("lengthInTokens", docInfo.getLengthInTokens());
+		ds.entry("mayView", searcher.getIndexStructure().contentViewable());
+		ds.endMap();
+	}
+
+	/**
+	 * The context (left, match, right) of a number of hits.
+	 *
+	 * Retrieved from the forward index or content store when constructed, i.e.
+	 * in handle(), so an error reading them still results in an error response
+	 * (and the jobs the hits came from are still referenced).
+	 */
+	protected static class HitContexts {
+
+		/** KWICs from the forward index, or null if we use the original content */
+		private List<Kwic> kwics;
+
+		/** Concordances from the original content, or null if we use the forward index */
+		private List<Concordance> concordances;
+
+		/**
+		 * Get the context of a number of hits.
+		 *
+		 * @param hits the hits
+		 * @param useOrigContent if true, use the original XML content; otherwise, use the KWIC from the forward index
+		 */
+		HitContexts(Hits hits, boolean useOrigContent) {
+			if (useOrigContent) {
+				// Concordances from original XML
+				concordances = new ArrayList<>();
+				for (Hit hit: hits) {
+					concordances.add(hits.getConcordance(hit));
+				}
+			} else {
+				// KWIC info
+				kwics = new ArrayList<>();
+				for (Hit hit: hits) {
+					kwics.add(hits.getKwic(hit));
+				}
+			}
+		}
+
+		/**
+		 * Get the number of hits.
+		 *
+		 * @return number of hits
+		 */
+		int size() {
+			return concordances != null ? concordances.size() : kwics.size();
+		}
+
+		/**
+		 * Stream the context of a hit (left, match, right).
+		 *
+		 * @param ds where to write the context entries
+		 * @param i index of the hit (in the order of the hits we were constructed with)
+		 */
+		void dataStream(DataStream ds, int i) {
+			if (concordances != null) {
+				Concordance c = concordances.get(i);
+				ds.plainEntry("left", c.left())
+					.plainEntry("match", c.match())
+					.plainEntry("right", c.right());
+			} else {
+				Kwic c = kwics.get(i);
+				ds.startEntry("left").contextList(c.getProperties(), c.getLeft()).endEntry()
+					.startEntry("match").contextList(c.getProperties(), c.getMatch()).endEntry()
+					.startEntry("right").contextList(c.getProperties(), c.getRight()).endEntry();
 			}
-		} else {
-			// Just a single facet requested
-			props.add(propMultipleFacets);
 		}
+	}
 
-		doFacets = new DataObjectMapAttribute("facet", "name");
-		for (DocProperty facetBy: props) {
-			DocCounts facetCounts = docsToFacet.countBy(facetBy);
-			facetCounts.sort(DocGroupProperty.size());
-			DataObjectList doFacet = new DataObjectList("item");
-			int n = 0, maxFacetValues = 10;
+	/**
+	 * Stream the facets (the largest values for each facet).
+	 *
+	 * @param ds where to write the facets
+	 * @param facets the most frequent values per facet, from JobFacets
+	 */
+	protected static void dataStreamFacets(DataStream ds, Map<String, GroupListing> facets) {
+		ds.startMap();
+		for (Map.Entry<String, GroupListing> e: facets.entrySet()) {
+			GroupListing facetValues = e.getValue();
+			ds.startAttrEntry("facet", "name", e.getKey()).startList();
+			int n = facetValues.numberOfGroups(); // (only the most frequent values were kept)
 			int totalSize = 0;
-			for (DocCount count: facetCounts) {
-				DataObjectMapElement doItem = new DataObjectMapElement();
-				doItem.put("value", count.getIdentity().toString());
-				doItem.put("size", count.size());
-				doFacet.add(doItem);
-				totalSize += count.size();
-				n++;
-				if (n >= maxFacetValues)
-					break;
+			for (int i = 0; i < n; i++) {
+				ds.startItem("item").startMap()
+					.entry("value", facetValues.getIdentityDisplay(i))
+					.entry("size", facetValues.getSize(i))
+				.endMap().endItem();
+				totalSize += facetValues.getSize(i);
 			}
-			if (totalSize < facetCounts.getTotalResults()) {
-				DataObjectMapElement doItem = new DataObjectMapElement();
-				doItem.put("value", "[REST]");
-				doItem.put("size", facetCounts.getTotalResults() - totalSize);
-				doFacet.add(doItem);
+			// The values we didn't keep are summed up as [REST]
+			if (totalSize < facetValues.getTotalSize()) {
+				ds.startItem("item").startMap()
+					.entry("value", "[REST]")
+					.entry("size", facetValues.getTotalSize() - totalSize)
+				.endMap().endItem();
 			}
-			doFacets.put(facetBy.getName(), doFacet);
+			ds.endList().endAttrEntry();
+		}
+		ds.endMap();
+	}
+
+	/**
+	 * Wait for a job to finish (used if the client wants to block).
+	 *
+	 * If the servlet container supports it, the request thread isn't tied up
+	 * while we wait: we return a response that suspends the request until the job
+	 * finishes, after which the request is handled again and will find the
+	 * finished job (the servlet keeps it for the request, whether it's cached or
+	 * not). Otherwise, we wait in this thread.
+	 *
+	 * The maximum search time applies to the request as a whole, not to each
+	 * time we wait.
+	 *
+	 * @param job the job to wait for
+	 * @return a response to return right away (suspend request or search timed out),
+	 *   or null if the job is finished
+	 * @throws BlsException if the job threw an exception
+	 */
+	protected Response waitForJob(Job job) throws BlsException {
+		if (job.finished()) {
+			job.rethrowException();
+			return null;
 		}
-		return doFacets;
+		long now = System.currentTimeMillis();
+		Long deadline = (Long)request.getAttribute(ATTR_BLOCKING_DEADLINE);
+		if (deadline == null) {
+			deadline = now + SearchCache.maxSearchTimeSec * 1000L;
+			request.setAttribute(ATTR_BLOCKING_DEADLINE, deadline);
+		}
+		long timeLeftMs = deadline - now;
+		if (timeLeftMs <= 0)
+			return Response.searchTimedOut();
+		if (request.isAsyncSupported())
+			return Response.suspendUntilFinished(job, timeLeftMs);
+		if (!job.waitUntilFinished((int)timeLeftMs))
+			return Response.searchTimedOut();
+		return null;
 	}
 
 	protected Searcher getSearcher() throws BlsException {
@@ -459,6 +642,19 @@ public abstract class RequestHandler {
 		return docFields;
 	}
 
+	public static void dataStreamDocFields(DataStream ds, IndexStructure struct) {
+		ds.startMap();
+		if (struct.pidField() != null)
+			ds.entry("pidField", struct.pidField());
+		if (struct.titleField() != null)
+			ds.entry("titleField", struct.titleField());
+		if (struct.authorField() != null)
+			ds.entry("authorField", struct.authorField());
+		if (struct.dateField() != null)
+			ds.entry("dateField", struct.dateField());
+		ds.endMap();
+	}
+
 	/**
 	 * Get the pid for the specified document
 	 *
@@ -1,10 +1,8 @@
 package nl.inl.blacklab.server.requesthandlers;
 
 import java.io.File;
-import java.io.InputStream;
-import java.util.Iterator;
-import java.util.List;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 
 import nl.inl.blacklab.index.IndexListener;
@@ -13,28 +11,30 @@ import nl.inl.blacklab.server.BlackLabServer;
 import nl.inl.blacklab.server.exceptions.BlsException;
 import nl.inl.blacklab.server.exceptions.IndexNotFound;
 import nl.inl.blacklab.server.exceptions.NotAuthorized;
+import nl.inl.blacklab.server.exceptions.ServiceUnavailable;
 import nl.inl.blacklab.server.index.IndexTask;
+import nl.inl.blacklab.server.index.IndexThread;
 import nl.inl.blacklab.server.search.User;
 
-import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 
 /**
- * Display the contents of the cache.
+ * Add data to a private index.
+ *
+ * The uploaded data is indexed as it arrives, without storing it first.
+ * Because we read directly from the request, we respond when indexing is done;
+ * in the meantime, clients can check the index status to see our progress.
+ * The request thread isn't tied up while we index: the request is handled
+ * asynchronously, and the indexing thread writes the response when it's done.
  */
 public class RequestHandlerAddToIndex extends RequestHandler {
 
 	private static final long MAX_UPLOAD_SIZE = 25 * 1024 * 1024;
 
-	private static final int MAX_MEM_UPLOAD_SIZE = 5 * 1024 * 1024;
-
-	private static final File TMP_DIR = new File(System.getProperty("java.io.tmpdir"));
-
-	String indexError = null;
-
 	public RequestHandlerAddToIndex(BlackLabServer servlet,
 			HttpServletRequest request, User user, String indexName,
 			String urlResource, String urlPathPart) {
@@ -59,111 +59,152 @@ public class RequestHandlerAddToIndex extends RequestHandler {
 		if (!isMultipart) {
 			return Response.badRequest("NO_FILE", "Upload a file to add to the index.");
 		}
-		DiskFileItemFactory factory = new DiskFileItemFactory();
-
-		// maximum size that will be stored in memory
-		factory.setSizeThreshold(MAX_MEM_UPLOAD_SIZE);
-		// Location to save data that is larger than maxMemSize.
-		factory.setRepository(TMP_DIR);
 
-		// Create a new file upload handler
-		ServletFileUpload upload = new ServletFileUpload(factory);
-		// maximum file size to be uploaded.
+		// Create a new (streaming) file upload handler
+		ServletFileUpload upload = new ServletFileUpload();
+		// maximum size to be uploaded. Checked while reading, so an upload that's
+		// too large makes indexing fail (and the changes are rolled back).
 		upload.setSizeMax(MAX_UPLOAD_SIZE);
 
 		try {
-			// Parse the request to get file items.
-			List<FileItem> fileItems;
+			FileItemStream dataItem = null;
 			try {
-				fileItems = upload.parseRequest(request);
+				// Find the uploaded file. Form fields before it are skipped.
+				FileItemIterator i = upload.getItemIterator(request);
+				while (dataItem == null && i.hasNext()) {
+					FileItemStream item = i.next();
+					if (!item.isFormField()) {
+						if (!item.getFieldName().equals("data"))
+							return Response.badRequest("CANNOT_UPLOAD_FILE", "Cannot upload file. File should be uploaded using the 'data' field.");
+						dataItem = item;
+					}
+				}
 			} catch (FileUploadBase.SizeLimitExceededException e) {
-				return Response.badRequest("ERROR_UPLOADING_FILE", "File too large (maximum " + MAX_UPLOAD_SIZE / 1024 / 1024 + " MB)");
+				return fileTooLarge();
 			} catch (FileUploadException e) {
 				return Response.badRequest("ERROR_UPLOADING_FILE", e.getMessage());
 			}
-
-			// Process the uploaded file items
-			Iterator<FileItem> i = fileItems.iterator();
+			if (dataItem == null)
+				return Response.badRequest("NO_FILE", "Upload a file to add to the index.");
 
 			if (!searchMan.indexExists(indexName))
 				return Response.indexNotFound(indexName);
 			File indexDir = searchMan.getIndexDir(indexName);
-			int filesDone = 0;
-			String newStatus = searchMan.setIndexStatus(indexName, "available|empty", "busy");
-			searchMan.closeSearcher(indexName);
-			if (!newStatus.equals("busy")) {
-				return Response.internalError("Could not set index status to busy (status was " + newStatus + ")", debugMode, 28);
+
+			// Get the uploaded file parameters
+			String fileName = dataItem.getName();
+			IndexListener listener = new IndexListenerReportConsole() {
+				@Override
+				public boolean errorOccurred(String error,
+						String unitType, File unit, File subunit) {
+					super.errorOccurred(error, unitType, unit, subunit);
+					return false; // Don't continue indexing
+				}
+			};
+			IndexTask task = new IndexTask(indexDir, dataItem.openStream(), fileName, listener);
+			// (approximately; includes the rest of the request)
+			task.setBytesTotal(request.getContentLength());
+
+			// The current version of the index can still be searched while we're
+			// indexing; clients can follow our progress using the index status.
+			String newStatus = searchMan.setIndexStatus(indexName, "available|empty", "indexing");
+			if (!newStatus.equals("indexing")) {
+				return Response.internalError("Could not set index status to indexing (status was " + newStatus + ")", debugMode, 28);
 			}
-			try {
-				while (i.hasNext()) {
-					FileItem fi = i.next();
-					if (!fi.isFormField()) {
 
-						if (!fi.getFieldName().equals("data"))
-							return Response.badRequest("CANNOT_UPLOAD_FILE", "Cannot upload file. File should be uploaded using the 'data' field.");
+			// The task is reading from our request, so we respond when it's done.
+			// If we can, we release the request thread in the meantime; the
+			// response is written when the task is done.
+			AsyncContext async = null;
+			final IndexThread indexThread;
+			try {
+				if (request.isAsyncSupported()) {
+					async = request.startAsync();
+					async.setTimeout(0); // (indexing may take a while)
+				}
+				indexThread = searchMan.startIndexing(indexName, task);
+			} catch (BlsException | RuntimeException e) {
+				// Task won't run; make the index available again
+				searchMan.setIndexStatus(indexName, null, "available");
+				if (async != null)
+					async.complete(); // (takes effect after we've returned the error response)
+				throw e;
+			}
+			final AsyncContext asyncContext = async;
 
-						if (fi.getSize() > MAX_UPLOAD_SIZE)
-							return Response.badRequest("CANNOT_UPLOAD_FILE", "Cannot upload file. It is larger than the maximum of " + (MAX_UPLOAD_SIZE / 1024 / 1024) + " MB.");
-
-						if (filesDone != 0)
-							return Response.internalError("Tried to upload more than one file.", debugMode, 14);
-
-						// Get the uploaded file parameters
-						String fileName = fi.getName();
-
-						File tmpFile = null;
-						IndexTask task;
-						IndexListener listener = new IndexListenerReportConsole() {
-							@Override
-							public boolean errorOccurred(String error,
-									String unitType, File unit, File subunit) {
-								indexError = error + " in " + unit +
-										(subunit == null ? "" : " (" + subunit + ")");
-								super.errorOccurred(error, unitType, unit, subunit);
-								return false; // Don't continue indexing
-							}
-						};
+			if (asyncContext != null) {
+				indexThread.addFinishedListener(new Runnable() {
+					@Override
+					public void run() {
+						Response response;
 						try {
-							if (fileName.endsWith(".zip")) {
-								// We can only index zip from a file, not from a stream.
-								tmpFile = File.createTempFile("blsupload", ".tmp.zip");
-								fi.write(tmpFile);
-								task = new IndexTask(indexDir, tmpFile, fileName, listener);
-							} else {
-								InputStream data = fi.getInputStream();
-
-								// TODO: do this in the background
-								// TODO: lock the index while indexing
-								// TODO: re-open Searcher after indexing
-								// TODO: keep track of progress
-								// TODO: error handling
-								task = new IndexTask(indexDir, data, fileName, listener);
-							}
-							task.run();
-							if (task.getIndexError() != null) {
-								return Response.internalError(task.getIndexError(), true, 30);
-							}
-						} finally {
-							if (tmpFile != null)
-								tmpFile.delete();
+							response = indexingResult(indexThread);
+						} catch (BlsException e) {
+							response = Response.error(e.getBlsErrorCode(), e.getMessage(), e.getHttpStatusCode());
+						} catch (RuntimeException e) {
+							response = Response.internalError(e, debugMode, 26);
 						}
-
-						//searchMan.addIndexTask(indexName, new IndexTask(is, fileName));
-
-						filesDone++;
+						servlet.completeAsync(asyncContext, response);
 					}
-				}
-			} finally {
-				searchMan.setIndexStatus(indexName, null, "available");
+				});
+				return Response.handledAsync();
 			}
+
+			// No async support; wait for the task in this thread
+			try {
+				indexThread.waitUntilFinished();
+			} catch (InterruptedException e) {
+				throw new ServiceUnavailable("Interrupted while indexing.");
+			}
+			return indexingResult(indexThread);
 		} catch (BlsException ex) {
 			throw ex;
 		} catch (Exception ex) {
 			return Response.internalError(ex, debugMode, 26);
 		}
+	}
+
+	/**
+	 * Determine the response after the indexing task is done.
+	 *
+	 * @param indexThread the finished indexing task
+	 * @return the response
+	 * @throws BlsException if the task threw one
+	 */
+	private Response indexingResult(IndexThread indexThread) throws BlsException {
+		if (indexThread.threwException()) {
+			Throwable e = indexThread.getThrownException();
+			if (isSizeLimitExceeded(e))
+				return fileTooLarge();
+			if (e instanceof BlsException)
+				throw (BlsException)e;
+			if (e instanceof Error)
+				throw (Error)e;
+			return Response.internalError((Exception)e, debugMode, 26);
+		}
+		IndexTask task = indexThread.getTask();
+		if (task.getIndexError() != null) {
+			return Response.badRequest("INDEX_ERROR", "An error occurred during indexing. (error text: " + task.getIndexError() + ")");
+		}
+		return Response.success("Data added succesfully.");
+	}
 
-		if (indexError != null)
-			return Response.badRequest("INDEX_ERROR", "An error occurred during indexing. (error text: " + indexError + ")");
-		return Response.success("Data added succesfully."); //Response.accepted();
+	private static Response fileTooLarge() {
+		return Response.badRequest("ERROR_UPLOADING_FILE", "File too large (maximum " + MAX_UPLOAD_SIZE / 1024 / 1024 + " MB)");
 	}
+
+	/**
+	 * Did indexing fail because the upload was too large?
+	 *
+	 * @param e the exception thrown while indexing
+	 * @return true iff the size limit was exceeded
+	 */
+	private static boolean isSizeLimitExceeded(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof FileUploadBase.SizeLimitExceededException)
+				return true;
+		}
+		return false;
+	}
+
 }
@@ -26,6 +26,11 @@ public class RequestHandlerDocContents extends RequestHandler {
 		super(servlet, request, user, indexName, urlResource, urlPathPart);
 	}
 
+	@Override
+	protected boolean isETagSupported() {
+		return true;
+	}
+
 	@Override
 	public Response handle() throws BlsException {
 		int i = urlPathInfo.indexOf('/');
@@ -54,7 +59,7 @@ public class RequestHandlerDocContents extends RequestHandler {
 			searchParam.put("docpid", docId);
 			JobWithHits search = searchMan.searchHits(user, searchParam);
 			try {
-				search.waitUntilFinished(SearchCache.maxSearchTimeSec);
+				search.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
 				if (!search.finished()) {
 					Response errObj = Response.searchTimedOut();
 					errObj.setOverrideType(type); // Application expects this MIME type, don't disappoint
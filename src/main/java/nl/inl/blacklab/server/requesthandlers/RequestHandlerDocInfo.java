@@ -23,6 +23,11 @@ public class RequestHandlerDocInfo extends RequestHandler {
 		super(servlet, request, user, indexName, urlResource, urlPathPart);
 	}
 
+	@Override
+	protected boolean isETagSupported() {
+		return true;
+	}
+
 	@Override
 	public Response handle() throws BlsException {
 
@@ -32,6 +32,11 @@ public class RequestHandlerDocSnippet extends RequestHandler {
 		super(servlet, request, user, indexName, urlResource, urlPathPart);
 	}
 
+	@Override
+	protected boolean isETagSupported() {
+		return true;
+	}
+
 	@Override
 	public Response handle() throws BlsException {
 		int i = urlPathInfo.indexOf('/');
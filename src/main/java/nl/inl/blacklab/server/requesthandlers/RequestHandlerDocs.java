@@ -1,36 +1,31 @@
 package nl.inl.blacklab.server.requesthandlers;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import javax.servlet.http.HttpServletRequest;
 
-import nl.inl.blacklab.perdocument.DocGroup;
-import nl.inl.blacklab.perdocument.DocGroups;
+import nl.inl.blacklab.datastream.DataStream;
 import nl.inl.blacklab.perdocument.DocProperty;
 import nl.inl.blacklab.perdocument.DocPropertyComplexFieldLength;
 import nl.inl.blacklab.perdocument.DocResult;
 import nl.inl.blacklab.perdocument.DocResults;
 import nl.inl.blacklab.perdocument.DocResultsWindow;
-import nl.inl.blacklab.search.Concordance;
-import nl.inl.blacklab.search.Hit;
 import nl.inl.blacklab.search.Hits;
-import nl.inl.blacklab.search.Kwic;
 import nl.inl.blacklab.search.Searcher;
-import nl.inl.blacklab.search.grouping.HitPropValue;
 import nl.inl.blacklab.server.BlackLabServer;
-import nl.inl.blacklab.server.dataobject.DataObjectContextList;
-import nl.inl.blacklab.server.dataobject.DataObjectList;
-import nl.inl.blacklab.server.dataobject.DataObjectMapAttribute;
-import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
-import nl.inl.blacklab.server.dataobject.DataObjectPlain;
 import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.blacklab.server.search.DocInfo;
+import nl.inl.blacklab.server.search.GroupListing;
 import nl.inl.blacklab.server.search.Job;
-import nl.inl.blacklab.server.search.JobDocsGrouped;
+import nl.inl.blacklab.server.search.JobFacets;
+import nl.inl.blacklab.server.search.JobDocsGroupedViewGroup;
 import nl.inl.blacklab.server.search.JobDocsTotal;
 import nl.inl.blacklab.server.search.JobDocsWindow;
-import nl.inl.blacklab.server.search.SearchCache;
+import nl.inl.blacklab.server.search.SearchManager;
 import nl.inl.blacklab.server.search.User;
 
-import org.apache.lucene.document.Document;
-
 /**
  * Request handler for the doc results.
  */
@@ -39,6 +34,11 @@ public class RequestHandlerDocs extends RequestHandler {
 		super(servlet, request, user, indexName, urlResource, urlPathPart);
 	}
 
+	@Override
+	protected boolean isETagSupported() {
+		return true;
+	}
+
 	@Override
 	public Response handle() throws BlsException {
 		// Do we want to view a single group after grouping?
@@ -49,53 +49,33 @@ public class RequestHandlerDocs extends RequestHandler {
 		if (viewGroup == null)
 			viewGroup = "";
 		Job search = null;
-		JobDocsGrouped searchGrouped = null;
+		JobDocsGroupedViewGroup searchViewGroup = null;
 		JobDocsWindow searchWindow = null;
 		JobDocsTotal total = null;
+		JobFacets facetsJob = null;
 		try {
 			DocResultsWindow window;
-			DocGroup group = null;
 			boolean block = getBoolParameter("block");
 			if (groupBy.length() > 0 && viewGroup.length() > 0) {
 
-				// TODO: clean up, do using JobHitsGroupedViewGroup or something (also cache sorted group!)
-
-				// Yes. Group, then show hits from the specified group
-				searchGrouped = searchMan.searchDocsGrouped(user, searchParam);
-				search = searchGrouped;
+				// Yes. Group, then show docs from the specified group
+				// (sorted, if requested; the sorted group is cached as well)
+				searchViewGroup = searchMan.searchDocsGroupedViewGroup(user, searchParam);
+				search = searchViewGroup;
 				search.incrRef();
 				if (block) {
-					search.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
-					if (!search.finished())
-						return Response.searchTimedOut();
+					Response r = waitForJob(search);
+					if (r != null)
+						return r;
 				}
 
 				// If search is not done yet, indicate this to the user
 				if (!search.finished()) {
 					return Response.busy(servlet);
 				}
+				search.rethrowException(); // (e.g. group value not valid or group not found)
 
-				// Search is done; construct the results object
-				DocGroups groups = searchGrouped.getGroups();
-
-				HitPropValue viewGroupVal = null;
-				viewGroupVal = HitPropValue.deserialize(groups.getOriginalDocResults().getOriginalHits(), viewGroup);
-				if (viewGroupVal == null)
-					return Response.badRequest("ERROR_IN_GROUP_VALUE", "Parameter 'viewgroup' has an illegal value: " + viewGroup);
-
-				group = groups.getGroup(viewGroupVal);
-				if (group == null)
-					return Response.badRequest("GROUP_NOT_FOUND", "Group not found: " + viewGroup);
-
-				String sortBy = searchParam.getString("sort");
-				DocProperty sortProp = sortBy != null && sortBy.length() > 0 ? DocProperty.deserialize(sortBy) : null;
-				DocResults docsSorted;
-				if (sortProp != null) {
-					docsSorted = group.getResults();
-					docsSorted.sort(sortProp, false);
-				} else
-					docsSorted = group.getResults();
-
+				DocResults docsSorted = searchViewGroup.getDocResults();
 				int first = searchParam.getInteger("first");
 				if (first < 0)
 					first = 0;
@@ -111,18 +91,18 @@ public class RequestHandlerDocs extends RequestHandler {
 				search = searchWindow;
 				search.incrRef();
 				if (block) {
-					search.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
-					if (!search.finished())
-						return Response.searchTimedOut();
+					Response r = waitForJob(search);
+					if (r != null)
+						return r;
 				}
 
 				// Also determine the total number of hits
 				// (usually nonblocking, unless "waitfortotal=yes" was passed)
 				total = searchMan.searchDocsTotal(user, searchParam);
 				if (searchParam.getBoolean("waitfortotal")) {
-					total.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
-					if (!total.finished())
-						return Response.searchTimedOut();
+					Response r = waitForJob(total);
+					if (r != null)
+						return r;
 				}
 
 				// If search is not done yet, indicate this to the user
@@ -134,12 +114,21 @@ public class RequestHandlerDocs extends RequestHandler {
 			}
 
 			String parFacets = searchParam.getString("facets");
-			DataObjectMapAttribute doFacets = null;
+			Map<String, GroupListing> facets = null;
 			if (parFacets != null && parFacets.length() > 0) {
-				// Now, group the docs according to the requested facets.
-				//TODO: use background job?
-				DocResults docsToFacet = window.getOriginalDocs();
-				doFacets = getFacets(docsToFacet, parFacets);
+				// Count the docs for the requested facets (in the background; the
+				// counts are cached, so paging through the results doesn't redo this)
+				facetsJob = searchMan.searchFacets(user, searchParam, "JobDocsGroupedViewGroup");
+				if (block) {
+					Response r = waitForJob(facetsJob);
+					if (r != null)
+						return r;
+				}
+				if (!facetsJob.finished()) {
+					return Response.busy(servlet);
+				}
+				facetsJob.rethrowException();
+				facets = facetsJob.getFacetListings();
 			}
 
 			Searcher searcher = search.getSearcher();
@@ -154,116 +143,185 @@ public class RequestHandlerDocs extends RequestHandler {
 				totalTokens = window.getOriginalDocs().intSum(propTokens);
 			}
 
-			// Search is done; construct the results object
-
-			// The hits and document info
-			DataObjectList docList = new DataObjectList("doc");
+			// Search is done; stream the results
+			// (the documents and their snippets are written directly to the response,
+			//  without building a DataObject tree first)
+			DocResults docs = searchWindow != null ? total.getDocResults() : searchViewGroup.getDocResults();
+			int searchTime = (int)(search.userWaitTime() * 1000);
+			int countTime = total != null ? (int)(total.userWaitTime() * 1000) : -1;
+			boolean countFailed = total != null && total.threwException();
+			// Read the document info for the window in one go
+			int[] docIds = new int[window.size()];
+			int i = 0;
 			for (DocResult result: window) {
-				// Doc info (metadata, etc.)
-				Document document = result.getDocument();
-				DataObjectMapElement docInfo = getDocumentInfo(searcher, document);
+				docIds[i++] = result.getDocId();
+			}
+			Map<Integer, DocInfo> docInfos = SearchManager.getDocInfos(searcher, docIds);
+			// Get the snippets now, so errors can still be reported
+			boolean useOrigContent = searchParam.getString("usecontent").equals("orig");
+			List<HitContexts> snippets = new ArrayList<>();
+			for (DocResult result: window) {
+				Hits snippetHits = result.getHits(5); // TODO: make num. snippets configurable
+				snippets.add(new HitContexts(snippetHits, useOrigContent));
+			}
 
-				// Snippets
-				Hits hits = result.getHits(5); // TODO: make num. snippets configurable
-				DataObjectList doSnippetList = null;
-				if (hits.sizeAtLeast(1)) {
-					doSnippetList = new DataObjectList("snippet");
-					for (Hit hit: hits) {
+			Response response = Response.streamed(new DocsStreamer(searcher, window, docs, searchViewGroup != null, searchTime, countTime,
+					countFailed, totalTokens, facets, docInfos, snippets));
+			Hits hits = docs.getOriginalHits();
+			if ((hits != null && !hits.doneFetchingHits()) || countFailed)
+				response.setCacheAllowed(false); // still counting; don't let the client keep this
+			return response;
+		} finally {
+			if (search != null)
+				search.decrRef();
+			if (searchWindow != null)
+				searchWindow.decrRef();
+			if (searchViewGroup != null)
+				searchViewGroup.decrRef();
+			if (total != null)
+				total.decrRef();
+			if (facetsJob != null)
+				facetsJob.decrRef();
+		}
+	}
 
-						// TODO: use RequestHandlerDocSnippet.getHitOrFragmentInfo()
+	/**
+	 * Writes the docs response.
+	 */
+	private class DocsStreamer implements Response.Streamer {
 
-						DataObjectMapElement hitMap = new DataObjectMapElement();
-						if (searchParam.getString("usecontent").equals("orig")) {
-							// Add concordance from original XML
-							Concordance c = hits.getConcordance(hit);
-							hitMap.put("left", new DataObjectPlain(c.left()));
-							hitMap.put("match", new DataObjectPlain(c.match()));
-							hitMap.put("right", new DataObjectPlain(c.right()));
-							doSnippetList.add(hitMap);
-						} else {
-							// Add KWIC info
-							Kwic c = hits.getKwic(hit);
-							hitMap.put("left", new DataObjectContextList(c.getProperties(), c.getLeft()));
-							hitMap.put("match", new DataObjectContextList(c.getProperties(), c.getMatch()));
-							hitMap.put("right", new DataObjectContextList(c.getProperties(), c.getRight()));
-							doSnippetList.add(hitMap);
-						}
-					}
-				}
+		private Searcher searcher;
 
-				// Find pid
-				String pid = getDocumentPid(searcher, result.getDocId(), document);
+		private DocResultsWindow window;
 
-				// Combine all
-				DataObjectMapElement docMap = new DataObjectMapElement();
-				docMap.put("docPid", pid);
-				int numHits = result.getNumberOfHits();
-				if (numHits > 0)
-					docMap.put("numberOfHits", numHits);
-				docMap.put("docInfo", docInfo);
-				if (doSnippetList != null)
-					docMap.put("snippets", doSnippetList);
+		/** The docs the window was taken from (for the summary) */
+		private DocResults docs;
 
-				docList.add(docMap);
-			}
+		/** Are we viewing a group? (if so, there are no hit counts in the summary) */
+		private boolean viewingGroup;
+
+		private int searchTime;
+
+		/** Time the count took, or -1 if there's no separate count */
+		private int countTime;
+
+		/** Did the count throw an exception (i.e. timeout)? */
+		private boolean countFailed;
+
+		/** Total number of tokens in matching documents, or -1 if not requested */
+		private int totalTokens;
+
+		/** The facet counts, or null if not requested */
+		private Map<String, GroupListing> facets;
+
+		/** Information about the documents in the window, per doc id */
+		private Map<Integer, DocInfo> docInfos;
+
+		/** Snippets for each document in the window */
+		private List<HitContexts> snippets;
 
-			// The summary (done last because the count might be done by this time)
-			DataObjectMapElement summary = new DataObjectMapElement();
-			DocResults docs = searchWindow != null ? total.getDocResults() : group.getResults();
+		DocsStreamer(Searcher searcher, DocResultsWindow window, DocResults docs, boolean viewingGroup, int searchTime,
+				int countTime, boolean countFailed, int totalTokens, Map<String, GroupListing> facets,
+				Map<Integer, DocInfo> docInfos, List<HitContexts> snippets) {
+			this.searcher = searcher;
+			this.window = window;
+			this.docs = docs;
+			this.viewingGroup = viewingGroup;
+			this.searchTime = searchTime;
+			this.countTime = countTime;
+			this.countFailed = countFailed;
+			this.totalTokens = totalTokens;
+			this.facets = facets;
+			this.docInfos = docInfos;
+			this.snippets = snippets;
+		}
+
+		@Override
+		public void stream(DataStream ds) {
+			// The summary
+			ds.startEntry("summary").startMap();
 			Hits hits = docs.getOriginalHits();
 			boolean done = hits == null ? true : hits.doneFetchingHits();
-			summary.put("searchParam", searchParam.toDataObject());
-			summary.put("searchTime", (int)(search.userWaitTime() * 1000));
-			if (total != null)
-				summary.put("countTime", (int)(total.userWaitTime() * 1000));
-			summary.put("stillCounting", !done);
-			if (searchGrouped == null && hits != null) {
+			ds.startEntry("searchParam");
+			searchParam.dataStream(ds);
+			ds.endEntry();
+			ds.entry("searchTime", searchTime);
+			if (countTime >= 0)
+				ds.entry("countTime", countTime);
+			ds.entry("stillCounting", !done);
+			if (!viewingGroup && hits != null) {
 				int numberOfHitsCounted = hits.countSoFarHitsCounted();
-				if (total != null && total.threwException())
+				if (countFailed)
 					numberOfHitsCounted = -1;
-				summary.put("numberOfHits", numberOfHitsCounted);
-				summary.put("numberOfHitsRetrieved", hits.countSoFarHitsRetrieved());
-				summary.put("stoppedCountingHits", hits.maxHitsCounted());
-				summary.put("stoppedRetrievingHits", hits.maxHitsRetrieved());
+				ds.entry("numberOfHits", numberOfHitsCounted)
+					.entry("numberOfHitsRetrieved", hits.countSoFarHitsRetrieved())
+					.entry("stoppedCountingHits", hits.maxHitsCounted())
+					.entry("stoppedRetrievingHits", hits.maxHitsRetrieved());
 			}
-			if (hits != null || group != null) {
-				int numberOfDocsCounted = hits == null ? group.getResults().size() : hits.countSoFarDocsCounted();
-				if (total != null && total.threwException())
+			if (hits != null || viewingGroup) {
+				int numberOfDocsCounted = hits == null ? docs.size() : hits.countSoFarDocsCounted();
+				if (countFailed)
 					numberOfDocsCounted = -1;
-				summary.put("numberOfDocs", numberOfDocsCounted);
-				summary.put("numberOfDocsRetrieved", hits == null ? group.getResults().size() : hits.countSoFarDocsRetrieved());
+				ds.entry("numberOfDocs", numberOfDocsCounted)
+					.entry("numberOfDocsRetrieved", hits == null ? docs.size() : hits.countSoFarDocsRetrieved());
 			} else {
-				summary.put("numberOfDocs", docs.countSoFarDocsCounted());
-				summary.put("numberOfDocsRetrieved", docs.countSoFarDocsRetrieved());
+				ds.entry("numberOfDocs", docs.countSoFarDocsCounted())
+					.entry("numberOfDocsRetrieved", docs.countSoFarDocsRetrieved());
+			}
+			ds.entry("windowFirstResult", window.first())
+				.entry("requestedWindowSize", searchParam.getInteger("number"))
+				.entry("actualWindowSize", window.size())
+				.entry("windowHasPrevious", window.hasPrevious())
+				.entry("windowHasNext", window.hasNext());
+			if (totalTokens >= 0)
+				ds.entry("tokensInMatchingDocuments", totalTokens);
+			ds.startEntry("docFields");
+			RequestHandler.dataStreamDocFields(ds, searcher.getIndexStructure());
+			ds.endEntry();
+			ds.endMap().endEntry();
+
+			// The documents, with document info and snippets
+			ds.startEntry("docs").startList();
+			int i = 0;
+			for (DocResult result: window) {
+				DocInfo docInfo = docInfos.get(result.getDocId());
+				String pid = docInfo.getPid();
+				ds.startItem("doc").startMap()
+					.entry("docPid", pid);
+				int numHits = result.getNumberOfHits();
+				if (numHits > 0)
+					ds.entry("numberOfHits", numHits);
+
+				// Doc info (metadata, etc.)
+				ds.startEntry("docInfo");
+				dataStreamDocumentInfo(ds, searcher, docInfo);
+				ds.endEntry();
+
+				// Snippets
+				HitContexts snippetContexts = snippets.get(i);
+				if (snippetContexts.size() > 0) {
+					ds.startEntry("snippets").startList();
+					for (int j = 0; j < snippetContexts.size(); j++) {
+
+						// TODO: use RequestHandlerDocSnippet.getHitOrFragmentInfo()
+
+						ds.startItem("snippet").startMap();
+						snippetContexts.dataStream(ds, j);
+						ds.endMap().endItem();
+					}
+					ds.endList().endEntry();
+				}
+				ds.endMap().endItem();
+				i++;
+			}
+			ds.endList().endEntry();
+
+			if (facets != null) {
+				ds.startEntry("facets");
+				dataStreamFacets(ds, facets);
+				ds.endEntry();
 			}
-			summary.put("windowFirstResult", window.first());
-			summary.put("requestedWindowSize", searchParam.getInteger("number"));
-			summary.put("actualWindowSize", window.size());
-			summary.put("windowHasPrevious", window.hasPrevious());
-			summary.put("windowHasNext", window.hasNext());
-			if (includeTokenCount)
-				summary.put("tokensInMatchingDocuments", totalTokens);
-			summary.put("docFields", RequestHandler.getDocFields(searcher.getIndexStructure()));
-
-			// Assemble all the parts
-			DataObjectMapElement response = new DataObjectMapElement();
-			response.put("summary", summary);
-			response.put("docs", docList);
-			if (doFacets != null)
-				response.put("facets", doFacets);
-
-			return new Response(response);
-		} finally {
-			if (search != null)
-				search.decrRef();
-			if (searchWindow != null)
-				searchWindow.decrRef();
-			if (searchGrouped != null)
-				searchGrouped.decrRef();
-			if (total != null)
-				total.decrRef();
 		}
 	}
 
-
 }
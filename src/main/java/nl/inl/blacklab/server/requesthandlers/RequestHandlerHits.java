@@ -1,40 +1,35 @@
 package nl.inl.blacklab.server.requesthandlers;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.servlet.http.HttpServletRequest;
 
+import nl.inl.blacklab.datastream.DataStream;
 import nl.inl.blacklab.perdocument.DocProperty;
 import nl.inl.blacklab.perdocument.DocPropertyComplexFieldLength;
 import nl.inl.blacklab.perdocument.DocResults;
-import nl.inl.blacklab.search.Concordance;
 import nl.inl.blacklab.search.Hit;
 import nl.inl.blacklab.search.Hits;
 import nl.inl.blacklab.search.HitsWindow;
-import nl.inl.blacklab.search.Kwic;
 import nl.inl.blacklab.search.Searcher;
-import nl.inl.blacklab.search.TermFrequency;
-import nl.inl.blacklab.search.TermFrequencyList;
-import nl.inl.blacklab.search.grouping.HitGroup;
-import nl.inl.blacklab.search.grouping.HitGroups;
-import nl.inl.blacklab.search.grouping.HitPropValue;
-import nl.inl.blacklab.search.grouping.HitProperty;
 import nl.inl.blacklab.search.indexstructure.IndexStructure;
 import nl.inl.blacklab.server.BlackLabServer;
-import nl.inl.blacklab.server.dataobject.DataObject;
-import nl.inl.blacklab.server.dataobject.DataObjectContextList;
-import nl.inl.blacklab.server.dataobject.DataObjectList;
 import nl.inl.blacklab.server.dataobject.DataObjectMapAttribute;
 import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
-import nl.inl.blacklab.server.dataobject.DataObjectPlain;
 import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.blacklab.server.search.DocInfo;
+import nl.inl.blacklab.server.search.GroupListing;
 import nl.inl.blacklab.server.search.Job;
-import nl.inl.blacklab.server.search.JobHitsGrouped;
+import nl.inl.blacklab.server.search.JobCollocations;
+import nl.inl.blacklab.server.search.JobCollocations.Collocation;
+import nl.inl.blacklab.server.search.JobFacets;
+import nl.inl.blacklab.server.search.JobHitsGroupedViewGroup;
 import nl.inl.blacklab.server.search.JobHitsTotal;
 import nl.inl.blacklab.server.search.JobHitsWindow;
-import nl.inl.blacklab.server.search.SearchCache;
+import nl.inl.blacklab.server.search.SearchManager;
 import nl.inl.blacklab.server.search.User;
 
-import org.apache.lucene.document.Document;
-
 /**
  * Request handler for hit results.
  */
@@ -43,10 +38,20 @@ public class RequestHandlerHits extends RequestHandler {
 		super(servlet, request, user, indexName, urlResource, urlPathPart);
 	}
 
+	@Override
+	protected boolean isETagSupported() {
+		return true;
+	}
+
 	@Override
 	public Response handle() throws BlsException {
 		//logger.debug("@PERF RHHits: START");
 
+		if (searchParam.getString("calc").equals("colloc")) {
+			//logger.debug("@PERF RHHits: colloc");
+			return getCollocations();
+		}
+
 		// Do we want to view a single group after grouping?
 		String groupBy = searchParam.getString("group");
 		if (groupBy == null)
@@ -55,56 +60,33 @@ public class RequestHandlerHits extends RequestHandler {
 		if (viewGroup == null)
 			viewGroup = "";
 		Job search = null;
-		JobHitsGrouped searchGrouped = null;
+		JobHitsGroupedViewGroup searchViewGroup = null;
 		JobHitsWindow searchWindow = null;
 		JobHitsTotal total = null;
+		JobFacets facetsJob = null;
 		try {
 			HitsWindow window;
-			HitGroup group = null;
 			boolean block = getBoolParameter("block");
 			if (groupBy.length() > 0 && viewGroup.length() > 0) {
 
-				// TODO: clean up, do using JobHitsGroupedViewGroup or something (also cache sorted group!)
-
 				// Yes. Group, then show hits from the specified group
-				searchGrouped = searchMan.searchHitsGrouped(user, searchParam);
-				search = searchGrouped;
+				// (sorted, if requested; the sorted group is cached as well)
+				searchViewGroup = searchMan.searchHitsGroupedViewGroup(user, searchParam);
+				search = searchViewGroup;
 				search.incrRef();
 				if (block) {
-					//logger.debug("@PERF RHHits: block");
-					search.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
-					if (!search.finished()) {
-						//logger.debug("@PERF RHHits: block, timed out");
-						return Response.searchTimedOut();
-					}
-					//logger.debug("@PERF RHHits: block, finished");
+					Response r = waitForJob(search);
+					if (r != null)
+						return r;
 				}
 
 				// If search is not done yet, indicate this to the user
 				if (!search.finished()) {
 					return Response.busy(servlet);
 				}
+				search.rethrowException(); // (e.g. group value not valid or group not found)
 
-				// Search is done; construct the results object
-				HitGroups groups = searchGrouped.getGroups();
-
-				HitPropValue viewGroupVal = null;
-				viewGroupVal = HitPropValue.deserialize(searchGrouped.getHits(), viewGroup);
-				if (viewGroupVal == null)
-					return Response.badRequest("ERROR_IN_GROUP_VALUE", "Cannot deserialize group value: " + viewGroup);
-
-				group = groups.getGroup(viewGroupVal);
-				if (group == null)
-					return Response.badRequest("GROUP_NOT_FOUND", "Group not found: " + viewGroup);
-
-				String sortBy = searchParam.getString("sort");
-				HitProperty sortProp = sortBy != null && sortBy.length() > 0 ? HitProperty.deserialize(group.getHits(), sortBy) : null;
-				Hits hitsSorted;
-				if (sortProp != null)
-					hitsSorted = group.getHits().sortedBy(sortProp);
-				else
-					hitsSorted = group.getHits();
-
+				Hits hitsSorted = searchViewGroup.getHits();
 				int first = searchParam.getInteger("first");
 				if (first < 0)
 					first = 0;
@@ -122,10 +104,9 @@ public class RequestHandlerHits extends RequestHandler {
 				search = searchWindow;
 				search.incrRef();
 				if (block) {
-					search.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
-					if (!search.finished()) {
-						return Response.searchTimedOut();
-					}
+					Response r = waitForJob(search);
+					if (r != null)
+						return r;
 				}
 
 				// Also determine the total number of hits
@@ -133,10 +114,10 @@ public class RequestHandlerHits extends RequestHandler {
 				total = searchMan.searchHitsTotal(user, searchParam);
 				if (searchParam.getBoolean("waitfortotal")) {
 					//logger.debug("@PERF RHHits: waitfortotal");
-					total.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
-					if (!total.finished()) {
-						//logger.debug("@PERF RHHits: waitfortotal timed out");
-						return Response.searchTimedOut();
+					Response r = waitForJob(total);
+					if (r != null) {
+						//logger.debug("@PERF RHHits: waitfortotal suspended or timed out");
+						return r;
 					}
 					//logger.debug("@PERF RHHits: waitfortotal finished");
 				}
@@ -152,19 +133,24 @@ public class RequestHandlerHits extends RequestHandler {
 				//logger.debug("@PERF RHHits: got Window");
 			}
 
-			if (searchParam.getString("calc").equals("colloc")) {
-				//logger.debug("@PERF RHHits: colloc");
-				return new Response(getCollocations(window.getOriginalHits()));
-			}
-
 			String parFacets = searchParam.getString("facets");
-			DataObjectMapAttribute doFacets = null;
+			Map<String, GroupListing> facets = null;
 			DocResults perDocResults = null;
 			if (parFacets != null && parFacets.length() > 0) {
 				//logger.debug("@PERF RHHits: facets");
-				// Now, group the docs according to the requested facets.
-				perDocResults = window.getOriginalHits().perDocResults();
-				doFacets = getFacets(perDocResults, parFacets);
+				// Count the docs for the requested facets (in the background; the
+				// counts are cached, so paging through the results doesn't redo this)
+				facetsJob = searchMan.searchFacets(user, searchParam, "JobHitsGroupedViewGroup");
+				if (block) {
+					Response r = waitForJob(facetsJob);
+					if (r != null)
+						return r;
+				}
+				if (!facetsJob.finished()) {
+					return Response.busy(servlet);
+				}
+				facetsJob.rethrowException();
+				facets = facetsJob.getFacetListings();
 			}
 
 			Searcher searcher = search.getSearcher();
@@ -182,113 +168,218 @@ public class RequestHandlerHits extends RequestHandler {
 				totalTokens = perDocResults.intSum(propTokens);
 			}
 
-			// Search is done; construct the results object
-
-			// The hits and document info
-			DataObjectList hitList = new DataObjectList("hit");
-			DataObjectMapAttribute docInfos = new DataObjectMapAttribute("docInfo", "pid");
-			//logger.debug("@PERF RHHits: construct results");
+			// Search is done; stream the results
+			// (the hits, their context and the document info are written directly
+			//  to the response, without building a DataObject tree first)
+			Hits hits = searchWindow != null ? searchWindow.getWindow().getOriginalHits() : searchViewGroup.getHits();
+			int searchTime = (int)(search.userWaitTime() * 1000);
+			int countTime = total != null ? (int)(total.userWaitTime() * 1000) : -1;
+			boolean countFailed = total != null && total.threwException();
+			// Read the document info for the window in one go (each document once)
+			int[] docIds = new int[window.size()];
+			int i = 0;
 			for (Hit hit: window) {
-				DataObjectMapElement hitMap = new DataObjectMapElement();
+				docIds[i++] = hit.doc;
+			}
+			Map<Integer, DocInfo> docInfos = SearchManager.getDocInfos(searcher, docIds);
+			// Get the hits' context now, so errors can still be reported
+			boolean useOrigContent = searchParam.getString("usecontent").equals("orig");
+			HitContexts contexts = new HitContexts(window, useOrigContent);
+
+			Response response = Response.streamed(new HitsStreamer(searcher, window, hits, searchTime, countTime, countFailed,
+					totalTokens, facets, docInfos, contexts));
+			if (!hits.doneFetchingHits() || countFailed)
+				response.setCacheAllowed(false); // still counting; don't let the client keep this
+			return response;
+		} finally {
+			if (search != null)
+				search.decrRef();
+			if (searchWindow != null)
+				searchWindow.decrRef();
+			if (searchViewGroup != null)
+				searchViewGroup.decrRef();
+			if (total != null)
+				total.decrRef();
+			if (facetsJob != null)
+				facetsJob.decrRef();
+		}
+	}
 
-				// Find pid
-				Document document = searcher.document(hit.doc);
-				String pid = getDocumentPid(searcher, hit.doc, document);
+	/**
+	 * Writes the hits response.
+	 */
+	private class HitsStreamer implements Response.Streamer {
 
-				boolean useOrigContent = searchParam.getString("usecontent").equals("orig");
+		private Searcher searcher;
 
-				// TODO: use RequestHandlerDocSnippet.getHitOrFragmentInfo()
+		private HitsWindow window;
 
-				// Add basic hit info
-				hitMap.put("docPid", pid);
-				hitMap.put("start", hit.start);
-				hitMap.put("end", hit.end);
-
-				if (useOrigContent) {
-					// Add concordance from original XML
-					Concordance c = window.getConcordance(hit);
-					hitMap.put("left", new DataObjectPlain(c.left()));
-					hitMap.put("match", new DataObjectPlain(c.match()));
-					hitMap.put("right", new DataObjectPlain(c.right()));
-				} else {
-					// Add KWIC info
-					Kwic c = window.getKwic(hit);
-					hitMap.put("left", new DataObjectContextList(c.getProperties(), c.getLeft()));
-					hitMap.put("match", new DataObjectContextList(c.getProperties(), c.getMatch()));
-					hitMap.put("right", new DataObjectContextList(c.getProperties(), c.getRight()));
-				}
-				hitList.add(hitMap);
+		/** The hits the window was taken from (for the summary) */
+		private Hits hits;
 
-				// Add document info if we didn't already
-				if (!docInfos.containsKey(hit.doc)) {
-					docInfos.put(pid, getDocumentInfo(searcher, searcher.document(hit.doc)));
-				}
-			}
-			//logger.debug("@PERF RHHits: construct results DONE");
+		private int searchTime;
+
+		/** Time the count took, or -1 if there's no separate count */
+		private int countTime;
+
+		/** Did the count throw an exception (i.e. timeout)? */
+		private boolean countFailed;
+
+		/** Total number of tokens in matching documents, or -1 if not requested */
+		private int totalTokens;
 
-			// The summary (done last because the count might be done by this time)
-			DataObjectMapElement summary = new DataObjectMapElement();
-			Hits hits = searchWindow != null ? hits = searchWindow.getWindow().getOriginalHits() : group.getHits();
+		/** The facet counts, or null if not requested */
+		private Map<String, GroupListing> facets;
+
+		/** Information about the documents in the window, per doc id */
+		private Map<Integer, DocInfo> docInfos;
+
+		/** Context of the hits in the window */
+		private HitContexts contexts;
+
+		HitsStreamer(Searcher searcher, HitsWindow window, Hits hits, int searchTime, int countTime,
+				boolean countFailed, int totalTokens, Map<String, GroupListing> facets, Map<Integer, DocInfo> docInfos,
+				HitContexts contexts) {
+			this.searcher = searcher;
+			this.window = window;
+			this.hits = hits;
+			this.searchTime = searchTime;
+			this.countTime = countTime;
+			this.countFailed = countFailed;
+			this.totalTokens = totalTokens;
+			this.facets = facets;
+			this.docInfos = docInfos;
+			this.contexts = contexts;
+		}
+
+		@Override
+		public void stream(DataStream ds) {
+			// The summary
+			ds.startEntry("summary").startMap();
 			boolean done = hits.doneFetchingHits();
-			summary.put("searchParam", searchParam.toDataObject());
-			summary.put("searchTime", (int)(search.userWaitTime() * 1000));
-			if (total != null)
-				summary.put("countTime", (int)(total.userWaitTime() * 1000));
-			summary.put("stillCounting", !done);
+			ds.startEntry("searchParam");
+			searchParam.dataStream(ds);
+			ds.endEntry();
+			ds.entry("searchTime", searchTime);
+			if (countTime >= 0)
+				ds.entry("countTime", countTime);
+			ds.entry("stillCounting", !done);
 			int totalHitsCounted = hits.countSoFarHitsCounted();
-			if (total != null && total.threwException()) {
+			if (countFailed) {
 				// indicate that something went wrong while counting;
 				// i.e. timeout
 				totalHitsCounted = -1;
 			}
-			summary.put("numberOfHits", totalHitsCounted);
-			summary.put("numberOfHitsRetrieved", hits.countSoFarHitsRetrieved());
-			summary.put("stoppedCountingHits", hits.maxHitsCounted());
-			summary.put("stoppedRetrievingHits", hits.maxHitsRetrieved());
-			summary.put("numberOfDocs", hits.countSoFarDocsCounted());
-			summary.put("numberOfDocsRetrieved", hits.countSoFarDocsRetrieved());
-			summary.put("windowFirstResult", window.first());
-			summary.put("requestedWindowSize", searchParam.getInteger("number"));
-			summary.put("actualWindowSize", window.size());
-			summary.put("windowHasPrevious", window.hasPrevious());
-			summary.put("windowHasNext", window.hasNext());
-			if (includeTokenCount)
-				summary.put("tokensInMatchingDocuments", totalTokens);
-			summary.put("docFields", RequestHandler.getDocFields(struct));
-
-			// Assemble all the parts
-			DataObjectMapElement response = new DataObjectMapElement();
-			response.put("summary", summary);
-			response.put("hits", hitList);
-			response.put("docInfos", docInfos);
-			if (doFacets != null)
-				response.put("facets", doFacets);
+			ds.entry("numberOfHits", totalHitsCounted)
+				.entry("numberOfHitsRetrieved", hits.countSoFarHitsRetrieved())
+				.entry("stoppedCountingHits", hits.maxHitsCounted())
+				.entry("stoppedRetrievingHits", hits.maxHitsRetrieved())
+				.entry("numberOfDocs", hits.countSoFarDocsCounted())
+				.entry("numberOfDocsRetrieved", hits.countSoFarDocsRetrieved())
+				.entry("windowFirstResult", window.first())
+				.entry("requestedWindowSize", searchParam.getInteger("number"))
+				.entry("actualWindowSize", window.size())
+				.entry("windowHasPrevious", window.hasPrevious())
+				.entry("windowHasNext", window.hasNext());
+			if (totalTokens >= 0)
+				ds.entry("tokensInMatchingDocuments", totalTokens);
+			ds.startEntry("docFields");
+			RequestHandler.dataStreamDocFields(ds, searcher.getIndexStructure());
+			ds.endEntry();
+			ds.endMap().endEntry();
+
+			// The hits
+			Map<String, DocInfo> docInfoPerPid = new LinkedHashMap<>();
+			//logger.debug("@PERF RHHits: stream results");
+			ds.startEntry("hits").startList();
+			int i = 0;
+			for (Hit hit: window) {
+				// Find pid
+				DocInfo docInfo = docInfos.get(hit.doc);
+				String pid = docInfo.getPid();
+				if (!docInfoPerPid.containsKey(pid))
+					docInfoPerPid.put(pid, docInfo);
 
-			return new Response(response);
-		} finally {
-			if (search != null)
-				search.decrRef();
-			if (searchWindow != null)
-				searchWindow.decrRef();
-			if (searchGrouped != null)
-				searchGrouped.decrRef();
-			if (total != null)
-				total.decrRef();
+				// TODO: use RequestHandlerDocSnippet.getHitOrFragmentInfo()
+
+				// Basic hit info and context
+				ds.startItem("hit").startMap()
+					.entry("docPid", pid)
+					.entry("start", hit.start)
+					.entry("end", hit.end);
+				contexts.dataStream(ds, i);
+				ds.endMap().endItem();
+				i++;
+			}
+			ds.endList().endEntry();
+
+			// The document info (once for each document)
+			ds.startEntry("docInfos").startMap();
+			for (Map.Entry<String, DocInfo> e: docInfoPerPid.entrySet()) {
+				ds.startAttrEntry("docInfo", "pid", e.getKey());
+				dataStreamDocumentInfo(ds, searcher, e.getValue());
+				ds.endAttrEntry();
+			}
+			ds.endMap().endEntry();
+			//logger.debug("@PERF RHHits: stream results DONE");
+
+			if (facets != null) {
+				ds.startEntry("facets");
+				dataStreamFacets(ds, facets);
+				ds.endEntry();
+			}
 		}
 	}
 
-	private DataObject getCollocations(Hits originalHits) {
-		originalHits.setContextSize(searchParam.getInteger("wordsaroundhit"));
-		DataObjectMapAttribute doTokenFreq = new DataObjectMapAttribute("token", "text");
-		TermFrequencyList tfl = originalHits.getCollocations();
-		tfl.sort();
-		for (TermFrequency tf: tfl) {
-			doTokenFreq.put(tf.term, tf.frequency);
-		}
+	/**
+	 * Get the most frequent collocations of the hits.
+	 *
+	 * @return the response
+	 * @throws BlsException on error
+	 */
+	private Response getCollocations() throws BlsException {
+		JobCollocations search = searchMan.searchCollocations(user, searchParam);
+		try {
+			if (getBoolParameter("block")) {
+				Response r = waitForJob(search);
+				if (r != null)
+					return r;
+			}
 
-		DataObjectMapElement response = new DataObjectMapElement();
-		response.put("tokenFrequencies", doTokenFreq);
-		return response;
+			// If search is not done yet, indicate this to the user
+			if (!search.finished()) {
+				return Response.busy(servlet);
+			}
+			search.rethrowException();
+
+			// All collocations, unless a number was specified
+			int number = search.numberOfTerms();
+			if (searchParam.containsKey("number")) {
+				number = searchParam.getInteger("number");
+				if (number < 0 || number > searchMan.getMaxPageSize())
+					number = searchMan.getDefaultPageSize();
+			}
+			// (ordered by the selected measure; scores are only included if it's not frequency)
+			String measure = searchParam.getString("collocmeasure");
+			boolean includeScores = measure != null && measure.length() > 0 && !measure.equals(JobCollocations.MEASURE_FREQUENCY);
+			DataObjectMapAttribute doTokenFreq = new DataObjectMapAttribute("token", "text");
+			DataObjectMapAttribute doTokenScore = new DataObjectMapAttribute("token", "text");
+			for (Collocation colloc: search.getTop(number)) {
+				doTokenFreq.put(colloc.term, colloc.frequency);
+				if (includeScores)
+					doTokenScore.put(colloc.term, colloc.score);
+			}
+
+			DataObjectMapElement response = new DataObjectMapElement();
+			response.put("tokenFrequencies", doTokenFreq);
+			if (includeScores) {
+				response.put("measure", measure);
+				response.put("tokenScores", doTokenScore);
+			}
+			return new Response(response);
+		} finally {
+			search.decrRef();
+		}
 	}
 
 }
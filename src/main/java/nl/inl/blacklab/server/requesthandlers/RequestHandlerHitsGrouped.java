@@ -2,15 +2,11 @@ package nl.inl.blacklab.server.requesthandlers;
 
 import javax.servlet.http.HttpServletRequest;
 
-import nl.inl.blacklab.search.Hits;
-import nl.inl.blacklab.search.grouping.HitGroup;
-import nl.inl.blacklab.search.grouping.HitGroups;
+import nl.inl.blacklab.datastream.DataStream;
 import nl.inl.blacklab.server.BlackLabServer;
-import nl.inl.blacklab.server.dataobject.DataObjectList;
-import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
 import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.blacklab.server.search.GroupListing;
 import nl.inl.blacklab.server.search.JobHitsGrouped;
-import nl.inl.blacklab.server.search.SearchCache;
 import nl.inl.blacklab.server.search.User;
 
 /**
@@ -21,19 +17,40 @@ public class RequestHandlerHitsGrouped extends RequestHandler {
 		super(servlet, request, user, indexName, urlResource, urlPathPart);
 	}
 
+	@Override
+	protected boolean isETagSupported() {
+		return true;
+	}
+
 	@Override
 	public Response handle() throws BlsException {
 		//logger.debug("@PERF RHHitsGrouped: START");
 
+		int first = searchParam.getInteger("first");
+		if (first < 0)
+			first = 0;
+		int number = searchParam.getInteger("number");
+		if (number < 0 || number > searchMan.getMaxPageSize())
+			number = searchMan.getDefaultPageSize();
+
+		// Did we store these groups on disk earlier?
+		long startTime = System.currentTimeMillis();
+		GroupListing cached = searchMan.getDiskCachedHitGroups(searchParam);
+		if (cached != null) {
+			//logger.debug("@PERF RHHitsGrouped: from disk cache");
+			int searchTime = (int)(System.currentTimeMillis() - startTime);
+			return Response.streamed(new GroupsStreamer(cached, searchTime, first, number));
+		}
+
 		// Get the window we're interested in
 		JobHitsGrouped search = searchMan.searchHitsGrouped(user, searchParam);
 		try {
 			if (getBoolParameter("block")) {
 				//logger.debug("@PERF RHHitsGrouped: block");
-				search.waitUntilFinished(SearchCache.maxSearchTimeSec * 1000);
-				if (!search.finished()) {
-					//logger.debug("@PERF RHHitsGrouped: block, timed out");
-					return Response.searchTimedOut();
+				Response r = waitForJob(search);
+				if (r != null) {
+					//logger.debug("@PERF RHHitsGrouped: block, suspended or timed out");
+					return r;
 				}
 				//logger.debug("@PERF RHHitsGrouped: block, finished");
 			}
@@ -46,61 +63,74 @@ public class RequestHandlerHitsGrouped extends RequestHandler {
 
 			// Search is done; construct the results object
 			//logger.debug("@PERF RHHitsGrouped: get groups");
-			HitGroups groups = search.getGroups();
+			GroupListing groups = search.getGroupListing();
 
-			//logger.debug("@PERF RHHitsGrouped: construct results");
-			DataObjectList doGroups = null;
-			// The list of groups found
-			// TODO paging..?
-			doGroups = new DataObjectList("hitgroup");
-			int first = searchParam.getInteger("first");
-			if (first < 0)
-				first = 0;
-			int number = searchParam.getInteger("number");
-			if (number < 0 || number > searchMan.getMaxPageSize())
-				number = searchMan.getDefaultPageSize();
-			int i = 0;
-			for (HitGroup group: groups) {
-				if (i >= first && i < first + number) {
-					DataObjectMapElement doGroup = new DataObjectMapElement();
-					doGroup.put("identity", group.getIdentity().serialize());
-					doGroup.put("identityDisplay", group.getIdentity().toString());
-					doGroup.put("size", group.size());
-					doGroups.add(doGroup);
-				}
-				i++;
-			}
+			// Stream the results (without building a DataObject tree first)
+			//logger.debug("@PERF RHHitsGrouped: stream results");
+			return Response.streamed(new GroupsStreamer(groups, (int)(search.userWaitTime() * 1000), first, number));
+		} finally {
+			search.decrRef();
+		}
+	}
+
+	/**
+	 * Writes the hit groups response.
+	 */
+	private class GroupsStreamer implements Response.Streamer {
+
+		private GroupListing groups;
+
+		private int searchTime;
+
+		private int first;
+
+		private int number;
+
+		GroupsStreamer(GroupListing groups, int searchTime, int first, int number) {
+			this.groups = groups;
+			this.searchTime = searchTime;
+			this.first = first;
+			this.number = number;
+		}
+
+		@Override
+		public void stream(DataStream ds) {
+			int numberOfGroups = groups.numberOfGroups();
+			int actualWindowSize = Math.max(0, Math.min(number, numberOfGroups - first));
 
 			// The summary
-			DataObjectMapElement summary = new DataObjectMapElement();
-			Hits hits = search.getHits();
-			summary.put("searchParam", searchParam.toDataObject());
-			summary.put("searchTime", (int)(search.userWaitTime() * 1000));
-			summary.put("stillCounting", false);
-			summary.put("numberOfHits", hits.countSoFarHitsCounted());
-			summary.put("numberOfHitsRetrieved", hits.countSoFarHitsRetrieved());
-			summary.put("stoppedCountingHits", hits.maxHitsCounted());
-			summary.put("stoppedRetrievingHits", hits.maxHitsRetrieved());
-			summary.put("numberOfDocs", hits.countSoFarDocsCounted());
-			summary.put("numberOfDocsRetrieved", hits.countSoFarDocsRetrieved());
-			summary.put("numberOfGroups", groups.numberOfGroups());
-			summary.put("windowFirstResult", first);
-			summary.put("requestedWindowSize", number);
-			summary.put("actualWindowSize", doGroups.size());
-			summary.put("windowHasPrevious", first > 0);
-			summary.put("windowHasNext", first + number < groups.numberOfGroups());
-			summary.put("largestGroupSize", groups.getLargestGroupSize());
-
-			// Assemble all the parts
-			DataObjectMapElement response = new DataObjectMapElement();
-			response.put("summary", summary);
-			response.put("hitGroups", doGroups);
+			ds.startEntry("summary").startMap();
+			ds.startEntry("searchParam");
+			searchParam.dataStream(ds);
+			ds.endEntry();
+			ds.entry("searchTime", searchTime)
+				.entry("stillCounting", false)
+				.entry("numberOfHits", groups.getNumberOfHits())
+				.entry("numberOfHitsRetrieved", groups.getNumberOfHitsRetrieved())
+				.entry("stoppedCountingHits", groups.stoppedCountingHits())
+				.entry("stoppedRetrievingHits", groups.stoppedRetrievingHits())
+				.entry("numberOfDocs", groups.getNumberOfDocs())
+				.entry("numberOfDocsRetrieved", groups.getNumberOfDocsRetrieved())
+				.entry("numberOfGroups", numberOfGroups)
+				.entry("windowFirstResult", first)
+				.entry("requestedWindowSize", number)
+				.entry("actualWindowSize", actualWindowSize)
+				.entry("windowHasPrevious", first > 0)
+				.entry("windowHasNext", first + number < numberOfGroups)
+				.entry("largestGroupSize", groups.getLargestGroupSize());
+			ds.endMap().endEntry();
 
+			// The list of groups found
+			ds.startEntry("hitGroups").startList();
+			for (int i = first; i < first + actualWindowSize; i++) {
+				ds.startItem("hitgroup").startMap()
+					.entry("identity", groups.getIdentity(i))
+					.entry("identityDisplay", groups.getIdentityDisplay(i))
+					.entry("size", groups.getSize(i))
+				.endMap().endItem();
+			}
+			ds.endList().endEntry();
 			//logger.debug("@PERF RHHitsGrouped: DONE");
-
-			return new Response(response);
-		} finally {
-			search.decrRef();
 		}
 	}
 
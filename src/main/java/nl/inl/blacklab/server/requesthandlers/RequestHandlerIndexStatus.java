@@ -5,6 +5,7 @@ import javax.servlet.http.HttpServletRequest;
 import nl.inl.blacklab.server.BlackLabServer;
 import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
 import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.blacklab.server.index.IndexThread;
 import nl.inl.blacklab.server.search.User;
 
 /**
@@ -26,6 +27,17 @@ public class RequestHandlerIndexStatus extends RequestHandler {
 		response.put("indexName", indexName);
 		response.put("status", searchMan.getIndexStatus(indexName));
 
+		// Progress of the most recent indexing task, if any
+		IndexThread indexThread = searchMan.getIndexThread(indexName);
+		if (indexThread != null) {
+			DataObjectMapElement progress = indexThread.getTask().getProgressDataObject();
+			if (indexThread.threwException()) {
+				Throwable e = indexThread.getThrownException();
+				progress.put("indexError", e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+			}
+			response.put("indexProgress", progress);
+		}
+
 		// Remove any empty settings
 		response.removeEmptyMapValues();
 
@@ -1,22 +1,14 @@
 package nl.inl.blacklab.server.requesthandlers;
 
-import java.util.Map;
-
 import javax.servlet.http.HttpServletRequest;
 
-import nl.inl.blacklab.search.Searcher;
-import nl.inl.blacklab.search.TermFrequency;
-import nl.inl.blacklab.search.TermFrequencyList;
-import nl.inl.blacklab.search.indexstructure.ComplexFieldDesc;
-import nl.inl.blacklab.search.indexstructure.IndexStructure;
+import nl.inl.blacklab.datastream.DataStream;
 import nl.inl.blacklab.server.BlackLabServer;
-import nl.inl.blacklab.server.dataobject.DataObjectMapAttribute;
-import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
 import nl.inl.blacklab.server.exceptions.BlsException;
-import nl.inl.blacklab.server.search.SearchManager;
+import nl.inl.blacklab.server.search.JobTermFreq;
+import nl.inl.blacklab.server.search.TermFreqTable;
 import nl.inl.blacklab.server.search.User;
-
-import org.apache.lucene.search.Query;
+import nl.inl.util.StringUtil;
 
 /**
  * Request handler for term frequencies for a set of documents.
@@ -27,44 +19,70 @@ public class RequestHandlerTermFreq extends RequestHandler {
 		super(servlet, request, user, indexName, urlResource, urlPathPart);
 	}
 
+	@Override
+	protected boolean isETagSupported() {
+		return true;
+	}
+
 	@Override
 	public Response handle() throws BlsException {
-		//TODO: use background job?
+		// Determine the frequency list (or find it in the cache)
+		JobTermFreq search = searchMan.searchTermFreq(user, searchParam);
+		try {
+			if (getBoolParameter("block")) {
+				Response r = waitForJob(search);
+				if (r != null)
+					return r;
+			}
 
-		Searcher searcher = getSearcher();
-		IndexStructure struct = searcher.getIndexStructure();
-		ComplexFieldDesc cfd = struct.getMainContentsField();
-		String propName = searchParam.getString("property");
-		boolean sensitive = searchParam.getBoolean("sensitive");
-		Query q = SearchManager.parseFilter(searcher, searchParam.getString("filter"), searchParam.getString("filterlang"));
-		Map<String, Integer> freq = searcher.termFrequencies(q, cfd.getName(), propName, sensitive ? "s" : "i");
+			// If search is not done yet, indicate this to the user
+			if (!search.finished()) {
+				return Response.busy(servlet);
+			}
+			search.rethrowException();
 
-		TermFrequencyList tfl = new TermFrequencyList(freq.size());
-		for (Map.Entry<String, Integer> e: freq.entrySet()) {
-			tfl.add(new TermFrequency(e.getKey(), e.getValue()));
-		}
-		tfl.sort();
+			TermFreqTable termFreqs = search.getTermFreqs();
+			String prefix = searchParam.getString("termprefix");
+			if (prefix != null && prefix.length() > 0) {
+				// Terms in the insensitive alternative are lowercased and without accents
+				if (!searchParam.getBoolean("sensitive"))
+					prefix = StringUtil.removeAccents(prefix).toLowerCase();
+				termFreqs = termFreqs.withPrefix(prefix);
+			}
 
-		int first = searchParam.getInteger("first");
-		if (first < 0 || first >= tfl.size())
-			first = 0;
-		int number = searchParam.getInteger("number");
-		if (number < 0 || number > searchMan.getMaxPageSize())
-			number = searchMan.getDefaultPageSize();
-		int last = first + number;
-		if (last > tfl.size())
-			last = tfl.size();
-		DataObjectMapAttribute termFreq = new DataObjectMapAttribute("term", "text");
-		for (TermFrequency tf: tfl.subList(first, last)) {
-			termFreq.put(tf.term, tf.frequency);
-		}
+			int numberOfTerms = termFreqs.size();
+			int first = searchParam.getInteger("first");
+			if (first < 0 || first >= numberOfTerms)
+				first = 0;
+			int number = searchParam.getInteger("number");
+			if (number < 0 || number > searchMan.getMaxPageSize())
+				number = searchMan.getDefaultPageSize();
+			int last = first + number;
+			if (last > numberOfTerms)
+				last = numberOfTerms;
 
-		// Assemble all the parts
-		DataObjectMapElement response = new DataObjectMapElement();
-		response.put("termFreq", termFreq);
+			// Copy the page, so we don't need the job anymore while streaming
+			final String[] terms = new String[last - first];
+			final long[] frequencies = new long[last - first];
+			for (int i = first; i < last; i++) {
+				terms[i - first] = termFreqs.getTerm(i);
+				frequencies[i - first] = termFreqs.getFrequency(i);
+			}
 
-		return new Response(response);
+			// Stream the results (without building a DataObject tree first)
+			return Response.streamed(new Response.Streamer() {
+				@Override
+				public void stream(DataStream ds) {
+					ds.startEntry("termFreq").startMap();
+					for (int i = 0; i < terms.length; i++) {
+						ds.attrEntry("term", "text", terms[i], frequencies[i]);
+					}
+					ds.endMap().endEntry();
+				}
+			});
+		} finally {
+			search.decrRef();
+		}
 	}
 
-
 }
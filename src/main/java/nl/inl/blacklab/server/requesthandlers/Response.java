@@ -2,9 +2,11 @@ package nl.inl.blacklab.server.requesthandlers;
 
 import javax.servlet.http.HttpServletResponse;
 
+import nl.inl.blacklab.datastream.DataStream;
 import nl.inl.blacklab.server.BlackLabServer;
 import nl.inl.blacklab.server.dataobject.DataFormat;
 import nl.inl.blacklab.server.dataobject.DataObject;
+import nl.inl.blacklab.server.search.Job;
 import nl.inl.blacklab.server.search.SearchManager;
 
 import org.apache.log4j.Logger;
@@ -12,6 +14,37 @@ import org.apache.log4j.Logger;
 public class Response {
 	static final Logger logger = Logger.getLogger(Response.class);
 
+	/**
+	 * Writes the response data directly to the output stream, so we don't
+	 * have to build a DataObject tree first.
+	 *
+	 * Anything that can fail should be done before the response is returned;
+	 * once streaming has started, the HTTP status can't be changed anymore.
+	 */
+	public interface Streamer {
+		/**
+		 * Write the contents of the response.
+		 *
+		 * The document (root element) has already been started and will be
+		 * ended after this returns.
+		 *
+		 * @param ds where to write the response
+		 */
+		void stream(DataStream ds);
+	}
+
+	/**
+	 * Construct a response that streams its data straight to the client.
+	 *
+	 * @param streamer writes the response data
+	 * @return the response
+	 */
+	public static Response streamed(Streamer streamer) {
+		Response r = new Response((DataObject)null);
+		r.streamer = streamer;
+		return r;
+	}
+
 	/**
 	 * Construct a busy response with "check again" advice.
 	 *
@@ -59,7 +92,7 @@ public class Response {
 		return r;
 	}
 
-	// Highest internal error code so far: 30
+	// Highest internal error code so far: 33
 
 	public static Response internalError(Exception e, boolean debugMode, int code) {
 		logger.debug("INTERNAL ERROR " + code + ":");
@@ -91,6 +124,53 @@ public class Response {
 		return status("SUCCESS", "Documents uploaded succesfully; indexing started.", HttpServletResponse.SC_ACCEPTED);
 	}
 
+	/**
+	 * Construct a response that suspends the request until a job is finished.
+	 *
+	 * The servlet will release the request thread and handle the request again
+	 * when the job is finished, or send a "search timed out" response if that takes
+	 * too long. Holds a reference to the job until the response has been written.
+	 *
+	 * @param job the job to wait for
+	 * @param maxWaitMs how long to wait for it
+	 * @return the response
+	 */
+	public static Response suspendUntilFinished(Job job, long maxWaitMs) {
+		Response r = new Response((DataObject)null);
+		job.incrRef();
+		r.suspendUntilFinished = job;
+		r.suspendMaxWaitMs = maxWaitMs;
+		r.setCacheAllowed(false);
+		return r;
+	}
+
+	/**
+	 * Construct a response indicating the request is being handled asynchronously.
+	 *
+	 * The handler has started async processing, and will write the actual response
+	 * later using BlackLabServer.completeAsync().
+	 *
+	 * @return the response
+	 */
+	public static Response handledAsync() {
+		Response r = new Response((DataObject)null);
+		r.handledAsync = true;
+		r.setCacheAllowed(false);
+		return r;
+	}
+
+	/**
+	 * Construct a response telling the client its cached copy is still valid.
+	 *
+	 * @param etag the ETag of the current response
+	 * @return the response
+	 */
+	public static Response notModified(String etag) {
+		Response r = new Response((DataObject)null, HttpServletResponse.SC_NOT_MODIFIED);
+		r.etag = etag;
+		return r;
+	}
+
 	public static Response searchTimedOut() {
 		return error("SEARCH_TIMED_OUT", "Search took too long, cancelled.", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
 	}
@@ -131,15 +211,30 @@ public class Response {
 	/** HTTP response status code to use. */
 	int httpStatusCode = 200;
 
-	/** The response data */
+	/** The response data (or null if this response is streamed) */
 	DataObject dataObject;
 
+	/** If set, writes the response data instead of dataObject */
+	Streamer streamer = null;
+
 	/** If set, overrides the response type (XML/JSON) for this response. */
 	DataFormat overrideType = null;
 
 	/** If true, the client may cache this response. If false, it should never cache this. */
 	boolean cacheAllowed = true;
 
+	/** ETag identifying this response (without quotes), or null for none */
+	String etag = null;
+
+	/** If set, the request should be suspended until this job is finished, then handled again. */
+	Job suspendUntilFinished = null;
+
+	/** How long to keep the request suspended at most */
+	long suspendMaxWaitMs;
+
+	/** If true, the actual response will be written later (see handledAsync()) */
+	boolean handledAsync = false;
+
 	public Response(DataObject dataObject, int httpStatusCode) {
 		this.dataObject = dataObject;
 		this.httpStatusCode = httpStatusCode;
@@ -157,6 +252,15 @@ public class Response {
 		return dataObject;
 	}
 
+	/**
+	 * Get the object that streams the response data.
+	 *
+	 * @return the streamer, or null if this response has a DataObject
+	 */
+	public Streamer getStreamer() {
+		return streamer;
+	}
+
 	public DataFormat getOverrideType() {
 		return overrideType;
 	}
@@ -165,6 +269,65 @@ public class Response {
 		this.overrideType = type;
 	}
 
+	/**
+	 * Should the request be suspended until a job is finished?
+	 *
+	 * @return true iff this is not an actual response, but a request to suspend
+	 */
+	public boolean isSuspended() {
+		return suspendUntilFinished != null;
+	}
+
+	/**
+	 * Get the job to suspend the request for.
+	 *
+	 * The caller should call decrRef() on the job when it's done waiting.
+	 *
+	 * @return the job, or null if this is a regular response
+	 */
+	public Job getJobToWaitFor() {
+		return suspendUntilFinished;
+	}
+
+	public long getSuspendMaxWaitMs() {
+		return suspendMaxWaitMs;
+	}
+
+	/**
+	 * Is the request being handled asynchronously?
+	 *
+	 * @return true iff this is not an actual response, and the actual response will be written later
+	 */
+	public boolean isHandledAsync() {
+		return handledAsync;
+	}
+
+	/**
+	 * Is this a response telling the client its cached copy is still valid?
+	 *
+	 * @return true iff there's no response data to send
+	 */
+	public boolean isNotModified() {
+		return httpStatusCode == HttpServletResponse.SC_NOT_MODIFIED;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Set the ETag for this response, if it may be cached.
+	 *
+	 * Only complete, successful responses get an ETag; a client would
+	 * otherwise keep using e.g. a "still counting" or error response.
+	 *
+	 * @param etag the ETag (without quotes)
+	 */
+	public void setETagIfCacheable(String etag) {
+		if (httpStatusCode == HttpServletResponse.SC_OK && cacheAllowed && !isSuspended())
+			this.etag = etag;
+	}
+
 	public boolean isCacheAllowed() {
 		return cacheAllowed;
 	}
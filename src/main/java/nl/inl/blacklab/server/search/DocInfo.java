@@ -0,0 +1,82 @@
+package nl.inl.blacklab.server.search;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.inl.blacklab.search.Searcher;
+import nl.inl.blacklab.search.indexstructure.IndexStructure;
+
+import org.apache.lucene.document.Document;
+
+/**
+ * The information about a document we include in results: its pid, metadata
+ * and length.
+ *
+ * This is all read from the document's stored fields at once, so it can be
+ * kept in the DocInfoCache instead of reading the Document again.
+ */
+public class DocInfo {
+
+	/** The document's pid (or Lucene doc id if the index doesn't use a pid) */
+	private String pid;
+
+	/** Metadata values, in the order of the index structure's metadata fields */
+	private Map<String, String> metadata;
+
+	/** Length of the document in tokens, or -1 if unknown */
+	private int lengthInTokens;
+
+	/**
+	 * Get the information from a document's stored fields.
+	 *
+	 * @param searcher our index
+	 * @param docId Lucene doc id
+	 * @param document the Lucene document (need only contain the fields from getFieldsToLoad())
+	 * @return the document information
+	 */
+	static DocInfo fromDocument(Searcher searcher, int docId, Document document) {
+		IndexStructure struct = searcher.getIndexStructure();
+		DocInfo info = new DocInfo();
+		String pidField = struct.pidField();
+		info.pid = pidField == null || pidField.length() == 0 ? "" + docId : document.get(pidField);
+		Map<String, String> metadata = new LinkedHashMap<>();
+		for (String metadataFieldName: struct.getMetadataFields()) {
+			String value = document.get(metadataFieldName);
+			if (value != null)
+				metadata.put(metadataFieldName, value);
+		}
+		info.metadata = Collections.unmodifiableMap(metadata);
+		info.lengthInTokens = -1;
+		String tokenLengthField = struct.getMainContentsField().getTokenLengthField();
+		if (tokenLengthField != null) {
+			String length = document.get(tokenLengthField);
+			if (length != null) {
+				int subtractFromLength = struct.alwaysHasClosingToken() ? 1 : 0;
+				info.lengthInTokens = Integer.parseInt(length) - subtractFromLength;
+			}
+		}
+		return info;
+	}
+
+	private DocInfo() {
+	}
+
+	public String getPid() {
+		return pid;
+	}
+
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * Get the length of the document.
+	 *
+	 * @return number of tokens, or -1 if unknown
+	 */
+	public int getLengthInTokens() {
+		return lengthInTokens;
+	}
+
+}
@@ -0,0 +1,131 @@
+package nl.inl.blacklab.server.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import nl.inl.blacklab.search.Searcher;
+import nl.inl.blacklab.search.indexstructure.IndexStructure;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Remembers the information (pid, metadata, length) of recently shown
+ * documents, per Searcher.
+ *
+ * Documents that aren't in the cache are read in one batch per request:
+ * each document is read only once, in order of doc id (so we read the stored
+ * fields sequentially), and only the fields we need are loaded. Up to
+ * MAX_DOCS_PER_SEARCHER documents are remembered (least recently used are
+ * evicted).
+ *
+ * Document ids are only valid for the Searcher they were found in, so the
+ * cache for a Searcher is discarded when it is closed (or reopened, which
+ * gives us a new Searcher object).
+ */
+class DocInfoCache {
+
+	/** Maximum number of documents to remember per Searcher */
+	static final int MAX_DOCS_PER_SEARCHER = 5000;
+
+	/** Cache per Searcher (weak keys, so we never keep a Searcher alive) */
+	private static Map<Searcher, DocInfoCache> caches = new WeakHashMap<>();
+
+	/**
+	 * Get the cache for a Searcher, creating it if necessary.
+	 *
+	 * @param searcher the searcher
+	 * @return the cache
+	 */
+	static synchronized DocInfoCache get(Searcher searcher) {
+		DocInfoCache cache = caches.get(searcher);
+		if (cache == null) {
+			cache = new DocInfoCache(searcher);
+			caches.put(searcher, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Discard the cache for a Searcher.
+	 *
+	 * Call this when the Searcher is closed.
+	 *
+	 * @param searcher the searcher
+	 */
+	static synchronized void invalidate(Searcher searcher) {
+		caches.remove(searcher);
+	}
+
+	/** The index to read documents from */
+	private Searcher searcher;
+
+	/** The stored fields DocInfo needs */
+	private Set<String> fieldsToLoad;
+
+	/** Document information per Lucene doc id, in access order */
+	private Map<Integer, DocInfo> docInfos = new LinkedHashMap<Integer, DocInfo>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, DocInfo> eldest) {
+			return size() > MAX_DOCS_PER_SEARCHER;
+		}
+	};
+
+	private DocInfoCache(Searcher searcher) {
+		this.searcher = searcher;
+		IndexStructure struct = searcher.getIndexStructure();
+		fieldsToLoad = new HashSet<>(struct.getMetadataFields());
+		String pidField = struct.pidField();
+		if (pidField != null && pidField.length() > 0)
+			fieldsToLoad.add(pidField);
+		String tokenLengthField = struct.getMainContentsField().getTokenLengthField();
+		if (tokenLengthField != null)
+			fieldsToLoad.add(tokenLengthField);
+	}
+
+	/**
+	 * Get the information for a number of documents.
+	 *
+	 * @param docIds Lucene doc ids (may contain duplicates, in any order)
+	 * @return the information per doc id
+	 * @throws IOException on index read error
+	 */
+	Map<Integer, DocInfo> getDocInfos(int[] docIds) throws IOException {
+		Map<Integer, DocInfo> result = new HashMap<>();
+		int[] toLoad = new int[docIds.length];
+		int n = 0;
+		synchronized (docInfos) {
+			for (int docId: docIds) {
+				if (result.containsKey(docId))
+					continue;
+				DocInfo info = docInfos.get(docId);
+				if (info == null)
+					toLoad[n++] = docId;
+				result.put(docId, info);
+			}
+		}
+		if (n == 0)
+			return result;
+
+		// Read the missing documents in index order
+		Arrays.sort(toLoad, 0, n);
+		IndexReader reader = searcher.getIndexReader();
+		Map<Integer, DocInfo> loaded = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			Document document = reader.document(toLoad[i], fieldsToLoad);
+			loaded.put(toLoad[i], DocInfo.fromDocument(searcher, toLoad[i], document));
+		}
+		result.putAll(loaded);
+		synchronized (docInfos) {
+			docInfos.putAll(loaded);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,337 @@
+package nl.inl.blacklab.server.search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import nl.inl.blacklab.search.Searcher;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps listings of expensive grouped results (groups and facets) on disk.
+ *
+ * This is a second-tier cache: the SearchCache keeps jobs in memory for a
+ * limited time, but these files survive evictions and server restarts, so a
+ * corpus-wide grouping doesn't have to be recomputed every time.
+ *
+ * Files are keyed by the search parameters, the index (see
+ * SearchManager.getIndexIdentity()) and its commit generation, so results for
+ * an older version of an index are never used; they are removed when the
+ * cache grows too large (least recently used first).
+ *
+ * Each file contains the summary, a table with the position of each group,
+ * and the groups themselves. Files are memory-mapped when read, so reading a
+ * page of groups only touches that part of the file.
+ */
+class GroupDiskCache {
+	private static final Logger logger = Logger.getLogger(GroupDiskCache.class);
+
+	/** Identifies our files ("BLGC") */
+	private static final int MAGIC = 0x424C4743;
+
+	/** Version of the file format */
+	private static final int FORMAT_VERSION = 1;
+
+	/** Size of the header: magic, version, flags and 8 ints of summary information */
+	private static final int HEADER_SIZE = 4 + 4 + 1 + 8 * 4;
+
+	private static final String FILE_EXTENSION = ".groups";
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private static final int FLAG_HAS_HIT_COUNTS = 1;
+
+	private static final int FLAG_STOPPED_COUNTING_HITS = 2;
+
+	private static final int FLAG_STOPPED_RETRIEVING_HITS = 4;
+
+	/** Where the files are stored */
+	private File dir;
+
+	/** Only results that took at least this long to compute are stored */
+	private int minSearchTimeMs;
+
+	/** Maximum total size of the files */
+	private long maxSizeBytes;
+
+	/**
+	 * Create the disk cache.
+	 *
+	 * @param dir where to store the files
+	 * @param minSearchTimeSec only results that took at least this long are stored
+	 * @param maxSizeMegs maximum total size of the files, or -1 for no limit
+	 */
+	GroupDiskCache(File dir, int minSearchTimeSec, int maxSizeMegs) {
+		this.dir = dir;
+		this.minSearchTimeMs = minSearchTimeSec * 1000;
+		this.maxSizeBytes = maxSizeMegs < 0 ? Long.MAX_VALUE : maxSizeMegs * 1024L * 1024L;
+		if (!dir.exists() && !dir.mkdirs())
+			logger.error("Could not create disk cache dir " + dir);
+		logger.info("Disk cache for grouped results: " + dir);
+	}
+
+	/**
+	 * Get a listing from the cache.
+	 *
+	 * @param par the search parameters
+	 * @param searcher the index searched
+	 * @return the listing, or null if not found
+	 */
+	GroupListing get(SearchParameters par, Searcher searcher) {
+		File file = getFile(par, searcher);
+		if (!file.exists())
+			return null;
+		try {
+			GroupListing listing = read(file);
+			file.setLastModified(System.currentTimeMillis()); // for LRU
+			return listing;
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not read " + file + ", removing it: " + e.getMessage());
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Store a listing, if it was expensive enough to compute.
+	 *
+	 * @param par the search parameters
+	 * @param searcher the index searched
+	 * @param listing the listing to store
+	 * @param searchTimeMs how long it took to compute
+	 */
+	void put(SearchParameters par, Searcher searcher, GroupListing listing, long searchTimeMs) {
+		if (searchTimeMs < minSearchTimeMs)
+			return;
+		File file = getFile(par, searcher);
+		File tmpFile = new File(dir, file.getName() + ".tmp" + Thread.currentThread().getId());
+		try {
+			write(tmpFile, listing);
+			// Replace any existing file in one go, so readers never see a partial file
+			if (!tmpFile.renameTo(file)) {
+				file.delete();
+				if (!tmpFile.renameTo(file))
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+			}
+			logger.debug("Stored " + listing.numberOfGroups() + " groups in " + file);
+		} catch (IOException e) {
+			logger.error("Could not write " + file + ": " + e.getMessage());
+			tmpFile.delete();
+			return;
+		}
+		removeLeastRecentlyUsed();
+	}
+
+	/**
+	 * Remove the least recently used files until we're within our size limit.
+	 */
+	private synchronized void removeLeastRecentlyUsed() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		long totalSize = 0;
+		for (File f: files) {
+			totalSize += f.length();
+		}
+		if (totalSize <= maxSizeBytes)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < files.length && totalSize > maxSizeBytes; i++) {
+			if (!files[i].getName().endsWith(FILE_EXTENSION))
+				continue; // don't touch files being written
+			long size = files[i].length();
+			if (files[i].delete())
+				totalSize -= size;
+		}
+	}
+
+	/**
+	 * Determine the file for these search parameters and this version of the index.
+	 *
+	 * @param par the search parameters
+	 * @param searcher the index searched
+	 * @return the file
+	 */
+	private File getFile(SearchParameters par, Searcher searcher) {
+		String key = par.toString() + "|" + SearchManager.getIndexIdentity(searcher) + "|"
+				+ SearchManager.getCommitGeneration(searcher);
+		return new File(dir, hash(key) + FILE_EXTENSION);
+	}
+
+	/**
+	 * Hash a key to get a file name.
+	 *
+	 * @param key the key
+	 * @return the hash (hexadecimal SHA-1)
+	 */
+	static String hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+			StringBuilder name = new StringBuilder();
+			for (byte b: digest) {
+				name.append(String.format("%02x", b & 0xFF));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java implementation must support SHA-1
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a listing from a file.
+	 *
+	 * The file is memory-mapped, so groups are only read when they're needed.
+	 *
+	 * @param file the file
+	 * @return the listing
+	 * @throws IOException on read error, or if this is not a listing file
+	 */
+	static GroupListing read(File file) throws IOException {
+		ByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			// The mapping stays valid after the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		return new MappedGroupListing(buffer);
+	}
+
+	/**
+	 * Write a listing to a file.
+	 *
+	 * @param file the file
+	 * @param listing the listing
+	 * @throws IOException on write error
+	 */
+	static void write(File file, GroupListing listing) throws IOException {
+		int n = listing.numberOfGroups();
+		int[] offsets = new int[n];
+		long tableStart = HEADER_SIZE;
+		long position = tableStart + n * 4L;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			int flags = (listing.hasHitCounts() ? FLAG_HAS_HIT_COUNTS : 0)
+					| (listing.stoppedCountingHits() ? FLAG_STOPPED_COUNTING_HITS : 0)
+					| (listing.stoppedRetrievingHits() ? FLAG_STOPPED_RETRIEVING_HITS : 0);
+			out.writeByte(flags);
+			out.writeInt(listing.getNumberOfHits());
+			out.writeInt(listing.getNumberOfHitsRetrieved());
+			out.writeInt(listing.getNumberOfDocs());
+			out.writeInt(listing.getNumberOfDocsRetrieved());
+			out.writeInt(listing.getLargestGroupSize());
+			out.writeInt(listing.getTotalSize());
+			out.writeInt(n);
+			out.writeInt(0); // reserved
+
+			// Reserve space for the table of group positions; we fill it in later
+			for (int i = 0; i < n; i++) {
+				out.writeInt(0);
+			}
+
+			for (int i = 0; i < n; i++) {
+				if (position > Integer.MAX_VALUE)
+					throw new IOException("Too many groups to store");
+				offsets[i] = (int)position;
+				byte[] identity = listing.getIdentity(i).getBytes(UTF8);
+				byte[] display = listing.getIdentityDisplay(i).getBytes(UTF8);
+				out.writeInt(listing.getSize(i));
+				out.writeInt(identity.length);
+				out.write(identity);
+				out.writeInt(display.length);
+				out.write(display);
+				position += 12 + identity.length + display.length;
+			}
+		}
+
+		// Fill in the table of group positions
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			ByteBuffer table = ByteBuffer.allocate(n * 4);
+			table.asIntBuffer().put(offsets);
+			raf.getChannel().write(table, tableStart);
+		}
+	}
+
+	/**
+	 * A listing read from a (memory-mapped) file.
+	 */
+	private static class MappedGroupListing extends GroupListing {
+
+		private ByteBuffer buffer;
+
+		private int n;
+
+		MappedGroupListing(ByteBuffer buffer) throws IOException {
+			this.buffer = buffer;
+			if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+				throw new IOException("Not a disk cache file, or wrong version");
+			int flags = buffer.get(8);
+			hasHitCounts = (flags & FLAG_HAS_HIT_COUNTS) != 0;
+			stoppedCountingHits = (flags & FLAG_STOPPED_COUNTING_HITS) != 0;
+			stoppedRetrievingHits = (flags & FLAG_STOPPED_RETRIEVING_HITS) != 0;
+			numberOfHits = buffer.getInt(9);
+			numberOfHitsRetrieved = buffer.getInt(13);
+			numberOfDocs = buffer.getInt(17);
+			numberOfDocsRetrieved = buffer.getInt(21);
+			largestGroupSize = buffer.getInt(25);
+			totalSize = buffer.getInt(29);
+			n = buffer.getInt(33);
+			if (n < 0 || HEADER_SIZE + n * 4L > buffer.limit())
+				throw new IOException("Disk cache file is truncated");
+		}
+
+		private int offset(int i) {
+			if (i < 0 || i >= n)
+				throw new IndexOutOfBoundsException("Group " + i + " of " + n);
+			return buffer.getInt(HEADER_SIZE + i * 4);
+		}
+
+		private String getString(int position) {
+			int length = buffer.getInt(position);
+			byte[] bytes = new byte[length];
+			ByteBuffer b = buffer.duplicate(); // (don't change the shared buffer's position)
+			b.position(position + 4);
+			b.get(bytes);
+			return new String(bytes, UTF8);
+		}
+
+		@Override
+		public int numberOfGroups() {
+			return n;
+		}
+
+		@Override
+		public String getIdentity(int i) {
+			return getString(offset(i) + 4);
+		}
+
+		@Override
+		public String getIdentityDisplay(int i) {
+			int identityPos = offset(i) + 4;
+			return getString(identityPos + 4 + buffer.getInt(identityPos));
+		}
+
+		@Override
+		public int getSize(int i) {
+			return buffer.getInt(offset(i));
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+package nl.inl.blacklab.server.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.inl.blacklab.perdocument.DocCount;
+import nl.inl.blacklab.perdocument.DocCounts;
+import nl.inl.blacklab.perdocument.DocGroup;
+import nl.inl.blacklab.perdocument.DocGroups;
+import nl.inl.blacklab.perdocument.DocResults;
+import nl.inl.blacklab.search.Hits;
+import nl.inl.blacklab.search.grouping.HitGroup;
+import nl.inl.blacklab.search.grouping.HitGroups;
+import nl.inl.blacklab.search.grouping.HitPropValue;
+
+/**
+ * What we need to show a list of groups (or facet values): the identity, display
+ * value and size of each group, plus the summary of the grouped results.
+ *
+ * Groups are accessed by their index in the (sorted) list, so a page of groups
+ * can be read without visiting the groups before it.
+ *
+ * A listing can be backed by the grouped results in memory, or by a file in
+ * the GroupDiskCache.
+ */
+public abstract class GroupListing {
+
+	/** Do we have the hit counts? (not for document results without hits) */
+	boolean hasHitCounts;
+
+	int numberOfHits = -1;
+
+	int numberOfHitsRetrieved = -1;
+
+	boolean stoppedCountingHits;
+
+	boolean stoppedRetrievingHits;
+
+	int numberOfDocs = -1;
+
+	int numberOfDocsRetrieved = -1;
+
+	int largestGroupSize;
+
+	/** Total size of all groups (for facets: number of documents counted) */
+	int totalSize;
+
+	/**
+	 * Create a listing of hit groups.
+	 *
+	 * @param groups the groups
+	 * @param list the groups, in the order they should be listed (must allow random access)
+	 * @param hits the hits that were grouped
+	 * @return the listing
+	 */
+	public static GroupListing fromHitGroups(HitGroups groups, final List<HitGroup> list, Hits hits) {
+		GroupListing listing = new GroupListing() {
+			@Override
+			public int numberOfGroups() {
+				return list.size();
+			}
+
+			@Override
+			public String getIdentity(int i) {
+				return list.get(i).getIdentity().serialize();
+			}
+
+			@Override
+			public String getIdentityDisplay(int i) {
+				return list.get(i).getIdentity().toString();
+			}
+
+			@Override
+			public int getSize(int i) {
+				return list.get(i).size();
+			}
+		};
+		listing.setHitCounts(hits);
+		listing.numberOfDocs = hits.countSoFarDocsCounted();
+		listing.numberOfDocsRetrieved = hits.countSoFarDocsRetrieved();
+		listing.largestGroupSize = groups.getLargestGroupSize();
+		listing.totalSize = hits.countSoFarHitsRetrieved();
+		return listing;
+	}
+
+	/**
+	 * Create a listing of document groups.
+	 *
+	 * @param groups the groups
+	 * @param list the groups, in the order they should be listed (must allow random access)
+	 * @param docResults the documents that were grouped
+	 * @return the listing
+	 */
+	public static GroupListing fromDocGroups(DocGroups groups, final List<DocGroup> list, DocResults docResults) {
+		GroupListing listing = new GroupListing() {
+			@Override
+			public int numberOfGroups() {
+				return list.size();
+			}
+
+			@Override
+			public String getIdentity(int i) {
+				return list.get(i).getIdentity().serialize();
+			}
+
+			@Override
+			public String getIdentityDisplay(int i) {
+				return list.get(i).getIdentity().toString();
+			}
+
+			@Override
+			public int getSize(int i) {
+				return list.get(i).size();
+			}
+		};
+		Hits hits = docResults.getOriginalHits();
+		if (hits != null)
+			listing.setHitCounts(hits);
+		listing.numberOfDocs = docResults.countSoFarDocsCounted();
+		listing.numberOfDocsRetrieved = docResults.countSoFarDocsRetrieved();
+		listing.largestGroupSize = groups.getLargestGroupSize();
+		listing.totalSize = docResults.countSoFarDocsRetrieved();
+		return listing;
+	}
+
+	/**
+	 * Create a listing of facet values.
+	 *
+	 * @param counts the document counts per value, in the order they should be listed
+	 * @return the listing
+	 */
+	public static GroupListing fromDocCounts(DocCounts counts) {
+		final List<DocCount> list = new ArrayList<>();
+		int largest = 0;
+		for (DocCount count: counts) {
+			list.add(count);
+			largest = Math.max(largest, count.size());
+		}
+		GroupListing listing = new GroupListing() {
+			@Override
+			public int numberOfGroups() {
+				return list.size();
+			}
+
+			@Override
+			public String getIdentity(int i) {
+				return list.get(i).getIdentity().serialize();
+			}
+
+			@Override
+			public String getIdentityDisplay(int i) {
+				return list.get(i).getIdentity().toString();
+			}
+
+			@Override
+			public int getSize(int i) {
+				return list.get(i).size();
+			}
+		};
+		listing.largestGroupSize = largest;
+		listing.totalSize = counts.getTotalResults();
+		return listing;
+	}
+
+	/**
+	 * Create a listing of (the most frequent) facet values.
+	 *
+	 * @param values the values, in the order they should be listed
+	 * @param sizes the number of documents for each value
+	 * @param totalSize number of documents counted (including those with values not listed)
+	 * @return the listing
+	 */
+	static GroupListing fromValueCounts(final List<HitPropValue> values, final int[] sizes, int totalSize) {
+		GroupListing listing = new GroupListing() {
+			@Override
+			public int numberOfGroups() {
+				return values.size();
+			}
+
+			@Override
+			public String getIdentity(int i) {
+				return values.get(i).serialize();
+			}
+
+			@Override
+			public String getIdentityDisplay(int i) {
+				return values.get(i).toString();
+			}
+
+			@Override
+			public int getSize(int i) {
+				return sizes[i];
+			}
+		};
+		listing.largestGroupSize = sizes.length > 0 ? sizes[0] : 0;
+		listing.totalSize = totalSize;
+		return listing;
+	}
+
+	private void setHitCounts(Hits hits) {
+		hasHitCounts = true;
+		numberOfHits = hits.countSoFarHitsCounted();
+		numberOfHitsRetrieved = hits.countSoFarHitsRetrieved();
+		stoppedCountingHits = hits.maxHitsCounted();
+		stoppedRetrievingHits = hits.maxHitsRetrieved();
+	}
+
+	/**
+	 * How many groups are there?
+	 * @return number of groups
+	 */
+	public abstract int numberOfGroups();
+
+	/**
+	 * Get the serialized identity of a group.
+	 * @param i index of the group
+	 * @return the identity
+	 */
+	public abstract String getIdentity(int i);
+
+	/**
+	 * Get the identity of a group, for display.
+	 * @param i index of the group
+	 * @return the display value
+	 */
+	public abstract String getIdentityDisplay(int i);
+
+	/**
+	 * Get the size of a group.
+	 * @param i index of the group
+	 * @return the size
+	 */
+	public abstract int getSize(int i);
+
+	public boolean hasHitCounts() {
+		return hasHitCounts;
+	}
+
+	public int getNumberOfHits() {
+		return numberOfHits;
+	}
+
+	public int getNumberOfHitsRetrieved() {
+		return numberOfHitsRetrieved;
+	}
+
+	public boolean stoppedCountingHits() {
+		return stoppedCountingHits;
+	}
+
+	public boolean stoppedRetrievingHits() {
+		return stoppedRetrievingHits;
+	}
+
+	public int getNumberOfDocs() {
+		return numberOfDocs;
+	}
+
+	public int getNumberOfDocsRetrieved() {
+		return numberOfDocsRetrieved;
+	}
+
+	public int getLargestGroupSize() {
+		return largestGroupSize;
+	}
+
+	public int getTotalSize() {
+		return totalSize;
+	}
+
+}
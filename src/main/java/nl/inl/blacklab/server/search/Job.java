@@ -2,8 +2,12 @@ package nl.inl.blacklab.server.search;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import nl.inl.blacklab.perdocument.DocResults;
 import nl.inl.blacklab.search.Hits;
@@ -19,21 +23,34 @@ import nl.inl.util.ThreadPriority.Level;
 
 import org.apache.log4j.Logger;
 
-public abstract class Job implements Comparable<Job> {
+public abstract class Job {
 
 	protected static final Logger logger = Logger.getLogger(Job.class);
 
-	private static final double ALMOST_ZERO = 0.0001;
+	private static final int REFS_INVALID = -9999;
 
-	private static final int RUN_PAUSE_PHASE_JUST_STARTED = 5;
+	/** Rough estimate of the fixed memory overhead of a job (parameters, bookkeeping) */
+	protected static final int SIZE_OF_JOB_BYTES = 2000;
 
-	/** How long a job remains "young". Young jobs are treated differently
-	 *  than old jobs when it comes to load management, because we want to
-	 *  give new searches a fair chance, but we also want to eventually put
-	 *  demanding searches on the back burner if the system is overloaded. */
-	private static final int YOUTH_THRESHOLD_SEC = 20;
+	/** Rough estimate of the memory taken by one hit (the Hit object plus its list entry) */
+	protected static final int SIZE_OF_HIT_BYTES = 32;
 
-	private static final int REFS_INVALID = -9999;
+	/** Memory taken by a reference to an object that is owned by another job
+	 *  (e.g. a hit in a sorted copy of a hits list, or in a group) */
+	protected static final int SIZE_OF_REFERENCE_BYTES = 8;
+
+	/** Rough estimate of the memory taken by one per-document result */
+	protected static final int SIZE_OF_DOC_RESULT_BYTES = 200;
+
+	/** Rough estimate of the memory taken by one group or facet value, excluding its contents */
+	protected static final int SIZE_OF_GROUP_BYTES = 200;
+
+	/** Rough estimate of the memory taken by one token of KWIC context
+	 *  (one int per property, e.g. word, lemma, pos and punctuation) */
+	protected static final int SIZE_OF_CONTEXT_TOKEN_BYTES = 16;
+
+	/** Rough estimate of the memory taken by one term string (e.g. in a frequency list) */
+	protected static final int SIZE_OF_TERM_BYTES = 64;
 
 	/** If true (as it should be for production use), we call cleanup() on jobs that
 	 *  aren't referred to anymore in an effor to assist the Java garbage collector.
@@ -78,6 +95,16 @@ public abstract class Job implements Comparable<Job> {
 			search = new JobHitsGrouped(searchMan, user, par);
 		} else if (jobClass.equals("JobDocsGrouped")) {
 			search = new JobDocsGrouped(searchMan, user, par);
+		} else if (jobClass.equals("JobHitsGroupedViewGroup")) {
+			search = new JobHitsGroupedViewGroup(searchMan, user, par);
+		} else if (jobClass.equals("JobDocsGroupedViewGroup")) {
+			search = new JobDocsGroupedViewGroup(searchMan, user, par);
+		} else if (jobClass.equals("JobFacets")) {
+			search = new JobFacets(searchMan, user, par);
+		} else if (jobClass.equals("JobTermFreq")) {
+			search = new JobTermFreq(searchMan, user, par);
+		} else if (jobClass.equals("JobCollocations")) {
+			search = new JobCollocations(searchMan, user, par);
 		} else
 			throw new InternalServerError(1);
 
@@ -115,6 +142,7 @@ public abstract class Job implements Comparable<Job> {
 			job.incrRef();
 		}
 		try {
+			job.runNowIfQueued(this);
 			job.waitUntilFinished();
 		} finally {
 			synchronized(waitingFor) {
@@ -137,7 +165,13 @@ public abstract class Job implements Comparable<Job> {
 	protected long startedAt;
 
 	/** When this job was finished (or -1 if not finished yet) */
-	protected long finishedAt;
+	protected volatile long finishedAt;
+
+	/** Released when the job is finished, waking up anyone waiting for it */
+	private final CountDownLatch finishedLatch = new CountDownLatch(1);
+
+	/** To be called when the job is finished */
+	private List<Runnable> finishedListeners = new ArrayList<>();
 
 	/** If the search thread threw an exception, it's stored here. */
 	protected Throwable thrownException;
@@ -145,6 +179,9 @@ public abstract class Job implements Comparable<Job> {
 	/** The last time the results of this search were accessed (for caching) */
 	private long lastAccessed;
 
+	/** The cache we're in (told when we're accessed, see resetLastAccessed()), or null */
+	private volatile SearchCache cache = null;
+
 	/** If we're paused, this is the time when we were paused */
 	private long setLevelPausedAt;
 
@@ -160,9 +197,18 @@ public abstract class Job implements Comparable<Job> {
 	/** Has cancelJob() been called or not? Don't call it twice! */
 	private boolean cancelJobCalled = false;
 
-	/** Thread object carrying out the search, if performing the search. */
+	/** Task carrying out the search, if performing the search. */
 	private SearchThread searchThread = null;
 
+	/** Has the task started executing (or was it cancelled before it could)? */
+	private volatile boolean executionStarted = false;
+
+	/** Thread currently executing the search, or null if not running */
+	private Thread executingThread = null;
+
+	/** The job whose thread we're running in, if it needed our results (see runNowIfQueued()) */
+	private Job runningInlineFor = null;
+
 	/** Parameters uniquely identifying this search */
 	protected SearchParameters par;
 
@@ -191,109 +237,33 @@ public abstract class Job implements Comparable<Job> {
 		return searcher;
 	}
 
-	/**
-	 * Compare based on 'worthiness' (descending).
-	 *
-	 * 'Worthiness' is a measure indicating how important a
-	 * job is, and determines what jobs get the CPU and what jobs
-	 * are paused or aborted. It also determines what finished
-	 * jobs are removed from the cache.
-	 *
-	 * @param o the other search, to compare to
-	 * @return -1 if this search is worthier than o;
-	 *   1 if this search less worthy o;
-	 *   or 0 if they are equally worthy
-	 */
-	@Override
-	public int compareTo(Job o) {
-
-		// Our return values with more logical names.
-		// (1 refers to this object, 2 to the one supplied as a parameter)
-		final int WORTHY1 = -1;
-		final int WORTHY2 = -WORTHY1;
-
-		// Determine 'finished' status for these searches
-		boolean finished1 = finished();
-		boolean finished2 = o.finished();
-		if (finished1 != finished2) {
-			// One is finished, one is not: the unfinished one is worthiest.
-			// (because the top searches get the CPU, and the bottom
-			//  finished searches might be discarded from the cache)
-			return finished2 ? WORTHY1 : WORTHY2;
-		}
-		if (finished1) {
-			// Neither are running: most recently used search is the worthiest.
-			// (because we want a LRU cache)
-			return notAccessedFor() < o.notAccessedFor() ? WORTHY1 : WORTHY2;
-		}
-		// Both searches are unfinished.
-
-		// Rules to make sure jobs aren't oscillating between
-		// running and not running too much.
-		// First, check if job just started running, and if so,
-		// try not to pause them again right away.
-		double runtime1 = currentRunPhaseLength();
-		double runtime2 = o.currentRunPhaseLength();
-		boolean justStartedRunning1 = runtime1 > ALMOST_ZERO && runtime1 < RUN_PAUSE_PHASE_JUST_STARTED;
-		boolean justStartedRunning2 = runtime2 > ALMOST_ZERO && runtime2 < RUN_PAUSE_PHASE_JUST_STARTED;
-		if (justStartedRunning1 || justStartedRunning2) {
-			// At least one of the jobs just started running.
-			// The shortest-running one is worthiest.
-			return runtime1 < runtime2 ? WORTHY1 : WORTHY2;
-		}
-		// Now, check if job was just paused, and if so,
-		// try not to resume it right away.
-		double pause1 = currentPauseLength();
-		double pause2 = o.currentPauseLength();
-		boolean justPaused1 = pause1 > ALMOST_ZERO && pause1 < RUN_PAUSE_PHASE_JUST_STARTED;
-		boolean justPaused2 = pause2 > ALMOST_ZERO && pause2 < RUN_PAUSE_PHASE_JUST_STARTED;
-		if (justPaused1 || justPaused2) {
-			// At least one of the jobs was just paused.
-			// The longest-paused one is worthiest.
-			return pause1 > pause2 ? WORTHY1 : WORTHY2;
-		}
-		// Neither job just started running or were just paused.
-
-		// Are these jobs relatively young or relatively old?
-		// Young jobs get the CPU in the hope that they will complete
-		// quickly; older jobs are paused sooner because they eat up
-		// a lot of resources.
-		double exec1 = totalExecTime();
-		double exec2 = o.totalExecTime();
-		boolean young1 = exec1 < YOUTH_THRESHOLD_SEC;
-		boolean young2 = exec2 < YOUTH_THRESHOLD_SEC;
-		if (young1 != young2) {
-			// One is old, one is young: young job is worthiest.
-			// (so heavy jobs don't crowd out the light ones)
-			return young1 ? WORTHY1 : WORTHY2;
-		}
-		// Both young or both old. Look at execution time.
-		if (young1) {
-			// Both young: the oldest is the worthiest.
-			// (so light jobs get a fair chance to complete)
-			return exec1 > exec2 ? WORTHY1 : WORTHY2;
-		}
-
-		// Both jobs are old.
-		// Are they searching or counting?
-		boolean count1 = this instanceof JobHitsTotal || this instanceof JobDocsTotal;
-		boolean count2 = this instanceof JobHitsTotal || this instanceof JobDocsTotal;
-		if (count1 != count2) {
-			// One is counting, the other is searching: search is worthiest.
-			return count2 ? WORTHY1 : WORTHY2;
-		}
-
-		// Both searching or both counting; the youngest is worthiest.
-		// (so heavy jobs don't crowd out the lighter ones)
-		return exec1 < exec2 ? WORTHY1 : WORTHY2;
-	}
-
 	public long getLastAccessed() {
 		return lastAccessed;
 	}
 
 	public void resetLastAccessed() {
 		lastAccessed = System.currentTimeMillis();
+		SearchCache c = cache;
+		if (c != null)
+			c.accessed(this);
+	}
+
+	/**
+	 * Set the cache this job is in.
+	 *
+	 * @param cache the cache, or null if the job was removed from it
+	 */
+	void setCache(SearchCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Do other jobs or requests (besides the cache) use this job right now?
+	 *
+	 * @return true iff there are references to this job outside the cache
+	 */
+	boolean isReferencedOutsideCache() {
+		return refsToJob > 1;
 	}
 
 	public SearchParameters getParameters() {
@@ -312,17 +282,94 @@ public abstract class Job implements Comparable<Job> {
 		if (performCalled)
 			throw new RuntimeException("Already performing search!");
 
-		// Create and start thread
-		// TODO: use thread pooling..?
+		// Queue the search task on the executor
 		startedAt = System.currentTimeMillis();
 		setLevelRunningAt = startedAt;
-		searchThread = new SearchThread(this);
-		searchThread.start();
+		SearchThread task = new SearchThread(this);
+		searchThread = task;
 		performCalled = true;
+		try {
+			searchMan.getJobExecutor().execute(this, task);
+		} catch (BlsException e) {
+			thrownException = e;
+			setFinished();
+			throw e;
+		}
 
 		waitUntilFinished(waitTimeMs);
 	}
 
+	/**
+	 * If this job is still waiting in the executor's queue, take it out
+	 * and run it in the current thread.
+	 *
+	 * Called by jobs that need our results. Otherwise, they might occupy all
+	 * the executor's threads waiting for jobs that can't start.
+	 *
+	 * @param borrower the job whose thread we'll run in
+	 */
+	void runNowIfQueued(Job borrower) {
+		SearchThread task;
+		synchronized (this) {
+			task = searchThread;
+			if (task == null || executionStarted || cancelJobCalled)
+				return;
+			if (!searchMan.getJobExecutor().remove(this, task))
+				return; // was just started by the executor
+			runningInlineFor = borrower;
+		}
+		task.run();
+	}
+
+	/**
+	 * Called by the search task when it starts executing.
+	 *
+	 * @return true if the search should be performed, false if it was cancelled
+	 */
+	synchronized boolean startExecution() {
+		executionStarted = true;
+		if (cancelJobCalled) {
+			thrownException = new ServiceUnavailable("The search was cancelled. Please try again later.");
+			setFinished();
+			return false;
+		}
+		executingThread = Thread.currentThread();
+		return true;
+	}
+
+	/**
+	 * Called by the search task when it's done executing.
+	 *
+	 * If we were cancelled while running in a borrowed thread, our interrupt
+	 * is cleared, so it doesn't affect the job that thread belongs to. Unless
+	 * that job was cancelled too, of course; then it needs the interrupt as well.
+	 */
+	void endExecution() {
+		Job borrower;
+		synchronized (this) {
+			executingThread = null;
+			borrower = cancelJobCalled ? runningInlineFor : null;
+			runningInlineFor = null;
+		}
+		if (borrower != null) {
+			// (borrower.cancelJob() interrupts the thread while holding this lock,
+			//  so we can't lose its interrupt)
+			synchronized (borrower) {
+				if (!borrower.cancelJobCalled)
+					Thread.interrupted();
+			}
+		}
+	}
+
+	/**
+	 * Is this job waiting in the executor's queue?
+	 *
+	 * @return true iff the job was queued for execution, but not started yet
+	 */
+	public boolean isQueued() {
+		return performCalled && !executionStarted && !finished();
+	}
+
 	/**
 	 * @throws BlsException on error
 	 */
@@ -337,9 +384,7 @@ public abstract class Job implements Comparable<Job> {
 	 * @return true iff the search operation is finished and the results are available
 	 */
 	public boolean finished() {
-		if (!performCalled)
-			return false;
-		return finishedAt >= 0 || thrownException != null;
+		return finishedLatch.getCount() == 0;
 	}
 
 	/**
@@ -380,27 +425,58 @@ public abstract class Job implements Comparable<Job> {
 	 * Wait until this job's finished, an Exception is thrown or the specified
 	 * time runs out.
 	 *
+	 * Returns as soon as the job finishes, or at the deadline if it doesn't.
+	 *
 	 * @param maxWaitMs maximum time to wait, or a negative number for no limit
+	 * @return true if the job finished, false if we timed out
 	 * @throws BlsException
 	 */
-	public void waitUntilFinished(int maxWaitMs) throws BlsException {
-		int defaultWaitStep = 100;
-		boolean waitUntilFinished = maxWaitMs < 0;
-		while (!performCalled || ( (waitUntilFinished || maxWaitMs > 0) && !finished())) {
-			int w = defaultWaitStep;
-			if (!waitUntilFinished) {
-				if (maxWaitMs < defaultWaitStep)
-					w = maxWaitMs;
-				maxWaitMs -= w;
-			}
-			try {
-				Thread.sleep(w);
-			} catch (InterruptedException e) {
-				throw new ServiceUnavailable("The server seems to be under heavy load right now. Please try again later.");
-			}
+	public boolean waitUntilFinished(int maxWaitMs) throws BlsException {
+		return waitUntilFinished(maxWaitMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wait until this job's finished, an Exception is thrown or the specified
+	 * time runs out.
+	 *
+	 * Returns as soon as the job finishes, or at the deadline if it doesn't.
+	 *
+	 * @param maxWait maximum time to wait, or a negative number for no limit
+	 * @param unit unit of maxWait
+	 * @return true if the job finished, false if we timed out
+	 * @throws BlsException
+	 */
+	public boolean waitUntilFinished(long maxWait, TimeUnit unit) throws BlsException {
+		try {
+			if (maxWait < 0)
+				finishedLatch.await();
+			else
+				finishedLatch.await(maxWait, unit);
+		} catch (InterruptedException e) {
+			throw new ServiceUnavailable("The server seems to be under heavy load right now. Please try again later.");
 		}
 		// If an Exception occurred, re-throw it now.
 		rethrowException();
+		return finished();
+	}
+
+	/**
+	 * Call a listener when this job is finished.
+	 *
+	 * If the job is already finished, the listener is called right away (in the
+	 * current thread). Otherwise, it is called from the thread that finishes the job,
+	 * so it should return quickly.
+	 *
+	 * @param listener what to call when the job is finished
+	 */
+	public void addFinishedListener(Runnable listener) {
+		synchronized (finishedListeners) {
+			if (!finished()) {
+				finishedListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
 	}
 
 	/**
@@ -415,14 +491,24 @@ public abstract class Job implements Comparable<Job> {
 	/**
 	 * Try to cancel this job.
 	 */
-	public void cancelJob() {
+	public synchronized void cancelJob() {
 		if (!performCalled)
 			return; // can't cancel, hasn't been started yet (shouldn't happen)
 		if (cancelJobCalled)
 			return; // don't call this twice!
 		cancelJobCalled = true;
 
-		searchThread.interrupt();
+		if (executingThread != null) {
+			// Running; ask the thread to stop
+			executingThread.interrupt();
+		} else if (!executionStarted && searchThread != null && searchMan.getJobExecutor().remove(this, searchThread)) {
+			// Still queued, and now it will never run. Let anyone waiting for us know.
+			executionStarted = true;
+			thrownException = new ServiceUnavailable("The search was cancelled. Please try again later.");
+			setFinished();
+		}
+		// (if the task was just taken from the queue but hasn't started yet,
+		//  startExecution() will notice that we were cancelled)
 		searchThread = null; // ensure garbage collection
 
 		// Tell the jobs we were waiting for we're no longer interested
@@ -439,14 +525,30 @@ public abstract class Job implements Comparable<Job> {
 	/**
 	 * Estimate how much memory this Search object holds.
 	 *
-	 * For now, defaults to an arbitrary 1M.
-	 *
-	 * TODO: implement size estimation in subclasses
+	 * Subclasses add the memory taken by the results they own, based on
+	 * what has been retrieved so far. Results shared with another job (e.g. the
+	 * Hits a window is based on) are only counted for the job that created them.
+	 * This must be cheap and must never block, as it is called for every cached
+	 * job whenever the cache is cleaned up.
 	 *
 	 * @return estimated memory size in bytes
 	 */
 	public long estimateSizeBytes() {
-		return 1000000;
+		return SIZE_OF_JOB_BYTES;
+	}
+
+	/**
+	 * Estimate the memory taken by a DocResults object.
+	 *
+	 * Only counts the per-document results, not the hits they were created from.
+	 *
+	 * @param docResults the results (may be null)
+	 * @return estimated memory size in bytes
+	 */
+	protected static long estimateDocResultsSizeBytes(DocResults docResults) {
+		if (docResults == null)
+			return 0;
+		return (long)docResults.countSoFarDocsRetrieved() * SIZE_OF_DOC_RESULT_BYTES;
 	}
 
 	@Override
@@ -486,6 +588,7 @@ public abstract class Job implements Comparable<Job> {
 		stats.put("createdBy", shortUserId());
 		stats.put("refsToJob", refsToJob - 1); // (- 1 because the cache always references it)
 		stats.put("waitingForJobs", waitingFor.size());
+		stats.put("estimatedSizeBytes", estimateSizeBytes());
 
 		DataObjectMapElement d = new DataObjectMapElement();
 		d.put("id", id);
@@ -514,6 +617,7 @@ public abstract class Job implements Comparable<Job> {
 			dbg.put("setLevelPausedAt", setLevelPausedAt);
 			dbg.put("setLevelRunningAt", setLevelRunningAt);
 			dbg.put("performCalled", performCalled);
+			dbg.put("queued", isQueued());
 			dbg.put("cancelJobCalled", cancelJobCalled);
 			dbg.put("priorityLevel", level.toString());
 			dbg.put("resultsPriorityLevel", getPriorityOfResultsObject().toString());
@@ -531,14 +635,15 @@ public abstract class Job implements Comparable<Job> {
 
 			// Information about thread object, if any
 			DataObjectMapElement thr = new DataObjectMapElement();
-			if (searchThread != null) {
-				thr.put("name", searchThread.getName());
-				thr.put("osPriority", searchThread.getPriority());
-				thr.put("isAlive", searchThread.isAlive());
-				thr.put("isDaemon", searchThread.isDaemon());
-				thr.put("isInterrupted", searchThread.isInterrupted());
-				thr.put("state", searchThread.getState().toString());
-				StackTraceElement[] stackTrace = searchThread.getStackTrace();
+			Thread thread = executingThread;
+			if (thread != null) {
+				thr.put("name", thread.getName());
+				thr.put("osPriority", thread.getPriority());
+				thr.put("isAlive", thread.isAlive());
+				thr.put("isDaemon", thread.isDaemon());
+				thr.put("isInterrupted", thread.isInterrupted());
+				thr.put("state", thread.getState().toString());
+				StackTraceElement[] stackTrace = thread.getStackTrace();
 				StringBuilder stackTraceStr = new StringBuilder();
 				for (StackTraceElement element: stackTrace) {
 					stackTraceStr.append(element.toString()).append("\n");
@@ -583,11 +688,17 @@ public abstract class Job implements Comparable<Job> {
 	public synchronized void incrRef() {
 		if (refsToJob == REFS_INVALID)
 			throw new RuntimeException("Cannot add ref, job was already cleaned up!");
+		if (refsToJob == 0) {
+			// We're being used; so is our Searcher
+			searchMan.jobUsesSearcher(searcher, true);
+		}
 		refsToJob++;
 	}
 
 	public synchronized void decrRef() {
 		refsToJob--;
+		if (refsToJob == 0)
+			searchMan.jobUsesSearcher(searcher, false);
 		if (refsToJob == 1) {
 			// Only in cache; set the last accessed time so we
 			// know for how long it's been ignored.
@@ -615,8 +726,12 @@ public abstract class Job implements Comparable<Job> {
 	 * @return the age in seconds
 	 */
 	public double cacheAge() {
+		return cacheAge(System.currentTimeMillis());
+	}
+
+	double cacheAge(long now) {
 		if (finished())
-			return (System.currentTimeMillis() - lastAccessed) / 1000.0;
+			return (now - lastAccessed) / 1000.0;
 		return 0;
 	}
 
@@ -630,10 +745,14 @@ public abstract class Job implements Comparable<Job> {
 	 * @return execution time in ms
 	 */
 	public double userWaitTime() {
+		return userWaitTime(System.currentTimeMillis());
+	}
+
+	double userWaitTime(long now) {
 		if (startedAt < 0)
 			return -1;
 		if (finishedAt < 0)
-			return (System.currentTimeMillis() - startedAt) / 1000.0;
+			return (now - startedAt) / 1000.0;
 		return (finishedAt - startedAt) / 1000.0;
 	}
 
@@ -645,13 +764,17 @@ public abstract class Job implements Comparable<Job> {
 	 * @return how long ago this job was last accessed.
 	 */
 	public double notAccessedFor() {
+		return notAccessedFor(System.currentTimeMillis());
+	}
+
+	double notAccessedFor(long now) {
 		if (refsToJob > 1) {
 			// More references to this job than just the cache;
 			// This counts as being continually accessed, because
 			// those jobs apparently need this job.
 			return 0;
 		}
-		return (System.currentTimeMillis() - lastAccessed) / 1000.0;
+		return (now - lastAccessed) / 1000.0;
 	}
 
 	/**
@@ -662,9 +785,13 @@ public abstract class Job implements Comparable<Job> {
 	 * @return number of ms since the job was paused, or 0 if not paused
 	 */
 	public double currentPauseLength() {
+		return currentPauseLength(System.currentTimeMillis());
+	}
+
+	double currentPauseLength(long now) {
 		if (level != Level.PAUSED)
 			return 0;
-		return (System.currentTimeMillis() - setLevelPausedAt) / 1000.0;
+		return (now - setLevelPausedAt) / 1000.0;
 	}
 
 	/**
@@ -675,9 +802,13 @@ public abstract class Job implements Comparable<Job> {
 	 * @return number of ms since the job was set to running, or 0 if not running
 	 */
 	public double currentRunPhaseLength() {
+		return currentRunPhaseLength(System.currentTimeMillis());
+	}
+
+	double currentRunPhaseLength(long now) {
 		if (level == Level.PAUSED)
 			return 0;
-		return (System.currentTimeMillis() - setLevelRunningAt) / 1000.0;
+		return (now - setLevelRunningAt) / 1000.0;
 	}
 
 	/**
@@ -686,9 +817,13 @@ public abstract class Job implements Comparable<Job> {
 	 * @return total number of ms the job has been paused
 	 */
 	public double pausedTotal() {
+		return pausedTotal(System.currentTimeMillis());
+	}
+
+	double pausedTotal(long now) {
 		if (finished() || level != Level.PAUSED)
 			return pausedTime / 1000.0;
-		return (pausedTime + System.currentTimeMillis() - setLevelPausedAt) / 1000.0;
+		return (pausedTime + now - setLevelPausedAt) / 1000.0;
 	}
 
 	/**
@@ -699,7 +834,11 @@ public abstract class Job implements Comparable<Job> {
 	 * @return total number of ms the job has actually been running
 	 */
 	public double totalExecTime() {
-		return userWaitTime() - pausedTotal();
+		return totalExecTime(System.currentTimeMillis());
+	}
+
+	double totalExecTime(long now) {
+		return userWaitTime(now) - pausedTotal(now);
 	}
 
 	/**
@@ -791,6 +930,21 @@ public abstract class Job implements Comparable<Job> {
 			//  "PAUSED")
 			setPriorityLevel(Level.RUNNING);
 		}
+
+		// Wake up anyone waiting for us
+		finishedLatch.countDown();
+		List<Runnable> listeners;
+		synchronized (finishedListeners) {
+			listeners = new ArrayList<>(finishedListeners);
+			finishedListeners.clear();
+		}
+		for (Runnable listener: listeners) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				logger.error("Job finished listener threw an exception", e);
+			}
+		}
 	}
 
 }
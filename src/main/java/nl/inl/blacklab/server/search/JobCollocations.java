@@ -0,0 +1,372 @@
+package nl.inl.blacklab.server.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+
+import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.Hits;
+import nl.inl.blacklab.search.QueryExecutionContext;
+import nl.inl.blacklab.search.TermFrequency;
+import nl.inl.blacklab.search.TermFrequencyList;
+import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
+import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.blacklab.server.exceptions.ServiceUnavailable;
+import nl.inl.util.ThreadPriority.Level;
+
+/**
+ * Determines the collocations of the hits (the frequencies of the terms in
+ * their context).
+ *
+ * Large sets of hits are divided into partitions, which are counted in
+ * parallel on the job executor (see JobExecutor.runParts()), after which we
+ * add up the counts. The partitions are part of this job, so they don't take
+ * up cache entries or count as searches the user is running. Each partition
+ * counts a copy of its part of the hits, so we don't change the (shared) hits
+ * object's context size.
+ *
+ * Collocations can be ranked by frequency, or by an association measure
+ * (collocmeasure parameter) that compares their frequency near the hits
+ * with their frequency in the whole index.
+ */
+public class JobCollocations extends Job {
+
+	/** Don't bother using multiple partitions for fewer hits than this per partition */
+	private static final int MIN_HITS_PER_PARTITION = 10000;
+
+	/** Rank by frequency near the hits (the default) */
+	public static final String MEASURE_FREQUENCY = "frequency";
+
+	/** Rank by mutual information */
+	public static final String MEASURE_MI = "mi";
+
+	/** Rank by t-score */
+	public static final String MEASURE_T_SCORE = "tscore";
+
+	/** Rank by log-likelihood */
+	public static final String MEASURE_LOG_LIKELIHOOD = "loglikelihood";
+
+	/** Orders collocations by descending score, then alphabetically */
+	private static final Comparator<Collocation> BY_SCORE = new Comparator<Collocation>() {
+		@Override
+		public int compare(Collocation a, Collocation b) {
+			int c = Double.compare(b.score, a.score);
+			return c != 0 ? c : a.term.compareTo(b.term);
+		}
+	};
+
+	/**
+	 * A collocation and its score.
+	 */
+	public static class Collocation {
+		/** The term */
+		public final String term;
+
+		/** How often the term occurs near the hits */
+		public final long frequency;
+
+		/** The score by the selected measure (the frequency by default) */
+		public final double score;
+
+		Collocation(String term, long frequency, double score) {
+			this.term = term;
+			this.frequency = frequency;
+			this.score = score;
+		}
+	}
+
+	/** The terms found in the context of the hits (in no particular order) */
+	private String[] terms;
+
+	/** Frequency of each term */
+	private long[] frequencies;
+
+	/** Frequency of each term in the whole index (only if we rank by an association measure) */
+	private long[] corpusFrequencies;
+
+	/** Number of tokens in the whole index (only if we rank by an association measure) */
+	private long corpusSize;
+
+	/** Number of hits we determined the collocations of */
+	private int numberOfHits = -1;
+
+	public JobCollocations(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
+		super(searchMan, user, par);
+	}
+
+	@Override
+	public void performSearch() throws BlsException {
+		final Hits hits = getSourceHits();
+		int size = hits.size(); // (retrieves all hits)
+		Map<String, long[]> counts = new HashMap<>();
+		int partitions = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_HITS_PER_PARTITION));
+		if (partitions == 1) {
+			count(hits, 0, size, counts);
+		} else {
+			// Count the partitions in parallel, each into its own map
+			List<Map<String, long[]>> partCounts = new ArrayList<>();
+			List<Runnable> parts = new ArrayList<>();
+			for (int i = 0; i < partitions; i++) {
+				final int start = (int)((long)size * i / partitions);
+				final int end = (int)((long)size * (i + 1) / partitions);
+				final Map<String, long[]> thisPartCounts = new HashMap<>();
+				partCounts.add(thisPartCounts);
+				parts.add(new Runnable() {
+					@Override
+					public void run() {
+						count(hits, start, end, thisPartCounts);
+					}
+				});
+			}
+			try {
+				searchMan.getJobExecutor().runParts(this, parts);
+			} catch (InterruptedException e) {
+				throw new ServiceUnavailable("The search was cancelled. Please try again later.");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if (cause instanceof Error)
+					throw (Error)cause;
+				throw new RuntimeException(cause);
+			}
+			for (Map<String, long[]> thisPartCounts: partCounts) {
+				addCounts(thisPartCounts, counts);
+			}
+		}
+
+		// Keep the counts in compact arrays
+		String[] theTerms = new String[counts.size()];
+		long[] theFrequencies = new long[counts.size()];
+		int i = 0;
+		for (Map.Entry<String, long[]> e: counts.entrySet()) {
+			theTerms[i] = e.getKey();
+			theFrequencies[i] = e.getValue()[0];
+			i++;
+		}
+		String measure = getMeasure();
+		if (!measure.equals(MEASURE_FREQUENCY)) {
+			// Look up the frequencies in the whole index, so we can calculate the scores
+			TermFreqTable corpusFreqs = getCorpusFrequencies();
+			long[] theCorpusFrequencies = new long[theTerms.length];
+			for (i = 0; i < theTerms.length; i++) {
+				theCorpusFrequencies[i] = corpusFreqs.frequencyOf(theTerms[i]);
+			}
+			corpusFrequencies = theCorpusFrequencies;
+			corpusSize = corpusFreqs.getTotalFrequency();
+		}
+		frequencies = theFrequencies;
+		numberOfHits = size;
+		terms = theTerms; // we're done, caller can use the counts now
+	}
+
+	private String getMeasure() {
+		String measure = par.get("collocmeasure");
+		return measure == null ? MEASURE_FREQUENCY : measure;
+	}
+
+	/**
+	 * Get the frequencies of all terms in the whole index.
+	 *
+	 * @return the frequencies
+	 * @throws BlsException if the search failed
+	 */
+	private TermFreqTable getCorpusFrequencies() throws BlsException {
+		JobTermFreq termFreqSearch = searchMan.searchTermFreq(user, par.copyWithOnly("indexname", "property", "sensitive"));
+		try {
+			waitForJobToFinish(termFreqSearch);
+			return termFreqSearch.getTermFreqs();
+		} finally {
+			termFreqSearch.decrRef();
+			termFreqSearch = null;
+		}
+	}
+
+	/**
+	 * Get the hits to determine the collocations of.
+	 *
+	 * @return the hits (the group being viewed, or all hits)
+	 * @throws BlsException if the search failed
+	 */
+	private Hits getSourceHits() throws BlsException {
+		String viewGroup = par.getString("viewgroup");
+		JobWithHits hitsSearch;
+		if (viewGroup != null && viewGroup.length() > 0)
+			hitsSearch = searchMan.searchHitsGroupedViewGroup(user, par);
+		else
+			hitsSearch = searchMan.searchHits(user, par);
+		try {
+			waitForJobToFinish(hitsSearch);
+			return hitsSearch.getHits();
+		} finally {
+			hitsSearch.decrRef();
+			hitsSearch = null;
+		}
+	}
+
+	/**
+	 * Count the collocations of a range of hits.
+	 *
+	 * @param hits the hits
+	 * @param start first hit to count
+	 * @param end hit after the last hit to count
+	 * @param counts where to add the counts
+	 */
+	private void count(Hits hits, int start, int end, Map<String, long[]> counts) {
+		// Copy the hits, so we can set the context size without affecting anyone else
+		List<Hit> range = new ArrayList<>(end - start);
+		for (int i = start; i < end; i++) {
+			range.add(hits.get(i));
+		}
+		Hits part = new Hits(searcher, range);
+		part.setContextSize(par.getInteger("wordsaroundhit"));
+		boolean sensitive = par.getBoolean("sensitive");
+		QueryExecutionContext ctx = searcher.getDefaultExecutionContext(searcher.getMainContentsFieldName())
+				.withSensitive(sensitive, sensitive);
+		TermFrequencyList tfl = part.getCollocations(par.getString("property"), ctx);
+		for (TermFrequency tf: tfl) {
+			long[] count = counts.get(tf.term);
+			if (count == null) {
+				count = new long[1];
+				counts.put(tf.term, count);
+			}
+			count[0] += tf.frequency;
+		}
+	}
+
+	/**
+	 * Add the counts of a partition to the total counts.
+	 *
+	 * @param partCounts the partition's counts
+	 * @param counts where to add the counts
+	 */
+	private static void addCounts(Map<String, long[]> partCounts, Map<String, long[]> counts) {
+		for (Map.Entry<String, long[]> e: partCounts.entrySet()) {
+			long[] count = counts.get(e.getKey());
+			if (count == null) {
+				count = new long[1];
+				counts.put(e.getKey(), count);
+			}
+			count[0] += e.getValue()[0];
+		}
+	}
+
+	/**
+	 * Calculate the score of a collocation.
+	 *
+	 * The expected frequency of a term near the hits is its frequency in the
+	 * whole index times the fraction of the index that is near a hit.
+	 *
+	 * @param measure the association measure
+	 * @param observed how often the term occurs near the hits
+	 * @param corpusFrequency how often the term occurs in the whole index
+	 * @return the score
+	 */
+	private double score(String measure, long observed, long corpusFrequency) {
+		if (measure.equals(MEASURE_FREQUENCY))
+			return observed;
+		// (if the index changed, a term may not have been counted in the whole index yet)
+		double corpusFreq = Math.max(corpusFrequency, observed);
+		double n = corpusSize;
+		double nearHits = (double)numberOfHits * 2 * par.getInteger("wordsaroundhit");
+		if (n <= 0 || nearHits <= 0)
+			return 0;
+		double expected = corpusFreq * nearHits / n;
+		switch (measure) {
+		case MEASURE_MI:
+			return Math.log(observed / expected) / Math.log(2);
+		case MEASURE_T_SCORE:
+			return (observed - expected) / Math.sqrt(observed);
+		default:
+			// Log-likelihood (G2) of the 2x2 contingency table:
+			// near the hits or not, this term or another term
+			double o11 = observed;
+			double o12 = Math.max(0, nearHits - observed);
+			double o21 = Math.max(0, corpusFreq - observed);
+			double o22 = Math.max(0, n - o11 - o12 - o21);
+			double total = o11 + o12 + o21 + o22;
+			return 2 * (logLikelihoodTerm(o11, (o11 + o12) * (o11 + o21) / total)
+					+ logLikelihoodTerm(o12, (o11 + o12) * (o12 + o22) / total)
+					+ logLikelihoodTerm(o21, (o21 + o22) * (o11 + o21) / total)
+					+ logLikelihoodTerm(o22, (o21 + o22) * (o12 + o22) / total));
+		}
+	}
+
+	private static double logLikelihoodTerm(double observed, double expected) {
+		return observed > 0 && expected > 0 ? observed * Math.log(observed / expected) : 0;
+	}
+
+	/**
+	 * Get the top collocations by the selected measure.
+	 *
+	 * Uses a bounded heap, so we don't have to sort all the terms.
+	 *
+	 * @param n how many to get
+	 * @return the top collocations, by descending score
+	 */
+	public List<Collocation> getTop(int n) {
+		if (n <= 0)
+			return new ArrayList<>();
+		String measure = getMeasure();
+		// Keep the collocations in a heap with the lowest score at the top
+		PriorityQueue<Collocation> heap = new PriorityQueue<>(n + 1, Collections.reverseOrder(BY_SCORE));
+		for (int i = 0; i < terms.length; i++) {
+			double score = score(measure, frequencies[i], corpusFrequencies == null ? 0 : corpusFrequencies[i]);
+			if (heap.size() == n && score < heap.peek().score)
+				continue; // lower than the lowest score we're keeping
+			heap.add(new Collocation(terms[i], frequencies[i], score));
+			if (heap.size() > n)
+				heap.poll();
+		}
+		List<Collocation> result = new ArrayList<>(heap);
+		Collections.sort(result, BY_SCORE);
+		return result;
+	}
+
+	/**
+	 * Get the number of distinct terms found.
+	 * @return number of terms, or -1 if we're not done yet
+	 */
+	public int numberOfTerms() {
+		String[] t = terms;
+		return t == null ? -1 : t.length;
+	}
+
+	@Override
+	public Level getPriorityOfResultsObject() {
+		return Level.RUNNING;
+	}
+
+	@Override
+	public long estimateSizeBytes() {
+		// term string and reference, frequency
+		String[] t = terms;
+		long size = SIZE_OF_JOB_BYTES;
+		if (t != null)
+			size += (long)t.length * (SIZE_OF_TERM_BYTES + SIZE_OF_REFERENCE_BYTES + (corpusFrequencies == null ? 8 : 16));
+		return size;
+	}
+
+	@Override
+	public DataObjectMapElement toDataObject(boolean debugInfo) {
+		DataObjectMapElement d = super.toDataObject(debugInfo);
+		d.put("numberOfHits", numberOfHits);
+		d.put("numberOfTerms", numberOfTerms());
+		d.put("measure", getMeasure());
+		return d;
+	}
+
+	@Override
+	protected void cleanup() {
+		terms = null;
+		frequencies = null;
+		corpusFrequencies = null;
+		super.cleanup();
+	}
+
+}
@@ -1,5 +1,6 @@
 package nl.inl.blacklab.server.search;
 
+import nl.inl.blacklab.perdocument.DocResults;
 import nl.inl.blacklab.search.ConcordanceType;
 import nl.inl.blacklab.search.Hits;
 import nl.inl.blacklab.server.exceptions.BlsException;
@@ -48,4 +49,10 @@ public class JobDocs extends JobWithDocs {
 		}
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		DocResults d = docResults;
+		return super.estimateSizeBytes() + estimateDocResultsSizeBytes(d);
+	}
+
 }
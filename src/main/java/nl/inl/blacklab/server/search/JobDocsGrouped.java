@@ -1,5 +1,11 @@
 package nl.inl.blacklab.server.search;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import nl.inl.blacklab.perdocument.DocGroup;
 import nl.inl.blacklab.perdocument.DocGroupProperty;
 import nl.inl.blacklab.perdocument.DocGroups;
 import nl.inl.blacklab.perdocument.DocProperty;
@@ -16,14 +22,37 @@ public class JobDocsGrouped extends Job {
 
 	private DocGroups groups;
 
+	/** The groups, for listing them (and for storing them in the disk cache) */
+	private GroupListing listing;
+
 	private DocResults docResults;
 
+	/** Did we group the documents ourselves? (if not, we only hold a sorted list
+	 *  of the groups from the unsorted grouping job) */
+	private boolean ownsGroups;
+
 	public JobDocsGrouped(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
 		super(searchMan, user, par);
 	}
 
 	@Override
 	public void performSearch() throws BlsException {
+		long start = System.currentTimeMillis();
+		String sortBy = par.get("sort");
+		if (sortBy != null && sortBy.length() > 0) {
+			sortGroups(sortBy);
+		} else {
+			group();
+		}
+		searchMan.storeInDiskCache(par, searcher, listing, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Group the documents (we're the unsorted grouping job).
+	 *
+	 * @throws BlsException on error
+	 */
+	private void group() throws BlsException {
 		// First, execute blocking docs search.
 		SearchParameters parNoGroup = par.copyWithout("group", "sort");
 		JobWithDocs docsSearch = searchMan.searchDocs(user, parNoGroup);
@@ -46,17 +75,53 @@ public class JobDocsGrouped extends Job {
 			throw new BadRequest("UNKNOWN_GROUP_PROPERTY", "Unknown group property '" + groupBy + "'.");
 		DocGroups theGroups = docResults.groupedBy(groupProp);
 
-		String sortBy = par.getString("sort");
-		if (sortBy == null)
-			sortBy = "";
+		listing = GroupListing.fromDocGroups(theGroups, new ArrayList<>(theGroups.getGroups()), docResults);
+		ownsGroups = true;
+		groups = theGroups; // we're done, caller can use the groups now
+	}
+
+	/**
+	 * Sort the groups found by the unsorted grouping job.
+	 *
+	 * The groups are shared with that job, so we sort our own list of them,
+	 * and leave the groups themselves alone. Each sort order is a separate job
+	 * in the cache, but the grouping is only done once.
+	 *
+	 * @param sortBy how to sort the groups
+	 * @throws BlsException on error
+	 */
+	private void sortGroups(String sortBy) throws BlsException {
+		JobDocsGrouped groupSearch = searchMan.searchDocsGrouped(user, par.copyWithout("sort"));
+		DocGroups theGroups;
+		try {
+			waitForJobToFinish(groupSearch);
+			docResults = groupSearch.getDocResults();
+			theGroups = groupSearch.getGroups();
+			setPriorityInternal();
+		} finally {
+			groupSearch.decrRef();
+			groupSearch = null;
+		}
+
 		boolean reverse = false;
-		if (sortBy.length() > 0 && sortBy.charAt(0) == '-') {
+		if (sortBy.charAt(0) == '-') {
 			reverse = true;
 			sortBy = sortBy.substring(1);
 		}
-		DocGroupProperty sortProp = DocGroupProperty.deserialize(sortBy);
-		theGroups.sort(sortProp, reverse);
+		List<DocGroup> sorted = new ArrayList<>(theGroups.getGroups());
+		final DocGroupProperty sortProp = DocGroupProperty.deserialize(sortBy);
+		if (sortProp != null) {
+			// (same order as DocGroups.sort())
+			final boolean descending = sortProp.defaultSortDescending() ? !reverse : reverse;
+			Collections.sort(sorted, new Comparator<DocGroup>() {
+				@Override
+				public int compare(DocGroup a, DocGroup b) {
+					return descending ? sortProp.compare(b, a) : sortProp.compare(a, b);
+				}
+			});
+		}
 
+		listing = GroupListing.fromDocGroups(theGroups, sorted, docResults);
 		groups = theGroups; // we're done, caller can use the groups now
 	}
 
@@ -71,6 +136,14 @@ public class JobDocsGrouped extends Job {
 		return docResults == null ? Level.RUNNING : docResults.getPriorityLevel();
 	}
 
+	/**
+	 * Get the groups in a form suitable for listing them.
+	 * @return the listing, or null if we're not done yet
+	 */
+	public GroupListing getGroupListing() {
+		return groups == null ? null : listing;
+	}
+
 	public DocGroups getGroups() {
 		return groups;
 	}
@@ -79,6 +152,24 @@ public class JobDocsGrouped extends Job {
 		return docResults;
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		// The DocResult objects belong to the docs job; we hold the groups, which
+		// together contain a reference to each result. (or, if we're sorting,
+		// just a list of references to the groups)
+		DocGroups g = groups;
+		long size = super.estimateSizeBytes();
+		if (g != null) {
+			if (ownsGroups) {
+				size += (long)g.numberOfGroups() * SIZE_OF_GROUP_BYTES;
+				size += (long)docResults.countSoFarDocsRetrieved() * SIZE_OF_REFERENCE_BYTES;
+			} else {
+				size += (long)g.numberOfGroups() * SIZE_OF_REFERENCE_BYTES;
+			}
+		}
+		return size;
+	}
+
 	@Override
 	public DataObjectMapElement toDataObject(boolean debugInfo) {
 		DataObjectMapElement d = super.toDataObject(debugInfo);
@@ -90,6 +181,7 @@ public class JobDocsGrouped extends Job {
 	@Override
 	protected void cleanup() {
 		groups = null;
+		listing = null;
 		docResults = null;
 		super.cleanup();
 	}
@@ -0,0 +1,110 @@
+package nl.inl.blacklab.server.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.inl.blacklab.perdocument.DocGroup;
+import nl.inl.blacklab.perdocument.DocProperty;
+import nl.inl.blacklab.perdocument.DocResult;
+import nl.inl.blacklab.perdocument.DocResults;
+import nl.inl.blacklab.search.grouping.HitPropValue;
+import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
+import nl.inl.blacklab.server.exceptions.BadRequest;
+import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.util.ThreadPriority.Level;
+
+/**
+ * Represents the documents in one group, sorted.
+ *
+ * Uses the (cached) unsorted grouping job, so the grouping is only done once
+ * for all groups and sort orders. The group's results are never sorted in
+ * place (other requests may be using them); we sort our own copy.
+ */
+public class JobDocsGroupedViewGroup extends JobWithDocs {
+
+	/** Did we sort the results? (if not, they belong to the grouping job) */
+	private boolean sortedCopy = false;
+
+	public JobDocsGroupedViewGroup(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
+		super(searchMan, user, par);
+	}
+
+	@Override
+	public void performSearch() throws BlsException {
+		// First, execute blocking grouping job.
+		SearchParameters parNoSort = par.copyWithout("sort", "viewgroup");
+		JobDocsGrouped groupSearch = searchMan.searchDocsGrouped(user, parNoSort);
+		DocGroup group;
+		try {
+			waitForJobToFinish(groupSearch);
+
+			// Now, find the group we want.
+			String viewGroup = par.getString("viewgroup");
+			HitPropValue viewGroupVal = HitPropValue.deserialize(groupSearch.getGroups().getOriginalDocResults().getOriginalHits(), viewGroup);
+			if (viewGroupVal == null)
+				throw new BadRequest("ERROR_IN_GROUP_VALUE", "Parameter 'viewgroup' has an illegal value: " + viewGroup);
+			group = groupSearch.getGroups().getGroup(viewGroupVal);
+			if (group == null)
+				throw new BadRequest("GROUP_NOT_FOUND", "Group not found: " + viewGroup);
+		} finally {
+			groupSearch.decrRef();
+			groupSearch = null;
+		}
+
+		String sortBy = par.getString("sort");
+		if (sortBy == null)
+			sortBy = "";
+		boolean reverse = false;
+		if (sortBy.length() > 0 && sortBy.charAt(0) == '-') {
+			reverse = true;
+			sortBy = sortBy.substring(1);
+		}
+		DocProperty sortProp = sortBy.length() > 0 ? DocProperty.deserialize(sortBy) : null;
+		DocResults groupResults = group.getResults();
+		if (sortProp != null) {
+			// (DocResults.sort() sorts in place, so make our own copy first)
+			List<DocResult> copy = new ArrayList<>(groupResults.size());
+			for (DocResult result: groupResults) {
+				copy.add(result);
+			}
+			DocResults sorted = new DocResults(searcher, copy);
+			sorted.sort(sortProp, reverse);
+			docResults = sorted;
+			sortedCopy = true;
+		} else {
+			// Be lenient of sort values we can't carry out (see JobDocsSorted)
+			docResults = groupResults;
+		}
+		setPriorityInternal();
+	}
+
+	@Override
+	protected void setPriorityInternal() {
+		if (docResults != null)
+			setDocsPriority(docResults);
+	}
+
+	@Override
+	public Level getPriorityOfResultsObject() {
+		return docResults == null ? Level.RUNNING : docResults.getPriorityLevel();
+	}
+
+	@Override
+	public long estimateSizeBytes() {
+		// The DocResult objects themselves belong to the grouping job;
+		// we only hold a sorted list of references to them.
+		DocResults d = docResults;
+		long size = SIZE_OF_JOB_BYTES;
+		if (d != null && sortedCopy)
+			size += (long)d.size() * SIZE_OF_REFERENCE_BYTES;
+		return size;
+	}
+
+	@Override
+	public DataObjectMapElement toDataObject(boolean debugInfo) {
+		DataObjectMapElement d = super.toDataObject(debugInfo);
+		d.put("numberOfDocs", docResults == null ? -1 : docResults.size());
+		return d;
+	}
+
+}
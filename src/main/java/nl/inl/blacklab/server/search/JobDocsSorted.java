@@ -68,6 +68,12 @@ public class JobDocsSorted extends JobWithDocs {
 		return sourceResults == null ? Level.RUNNING : sourceResults.getPriorityLevel();
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		// We sort the results of the docs job in place, so we don't own anything.
+		return super.estimateSizeBytes();
+	}
+
 	@Override
 	public DataObjectMapElement toDataObject(boolean debugInfo) {
 		DataObjectMapElement d = super.toDataObject(debugInfo);
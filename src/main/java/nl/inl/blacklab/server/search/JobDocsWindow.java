@@ -55,6 +55,15 @@ public class JobDocsWindow extends Job {
 		return sourceResults == null ? Level.RUNNING : sourceResults.getPriorityLevel();
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		DocResultsWindow w = window;
+		long size = super.estimateSizeBytes();
+		if (w != null)
+			size += (long)w.size() * SIZE_OF_REFERENCE_BYTES;
+		return size;
+	}
+
 	public DocResultsWindow getWindow() {
 		return window;
 	}
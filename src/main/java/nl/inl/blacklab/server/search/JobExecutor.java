@@ -0,0 +1,183 @@
+package nl.inl.blacklab.server.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.inl.blacklab.server.dataobject.DataObject;
+import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
+import nl.inl.blacklab.server.exceptions.ServiceUnavailable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Executes search jobs on bounded pools of threads, instead of
+ * starting a new thread for each job.
+ *
+ * Counting jobs (JobHitsTotal, JobDocsTotal) get their own pool, so long-running
+ * counts can never starve the searches that produce the actual results.
+ */
+class JobExecutor {
+	private static final Logger logger = Logger.getLogger(JobExecutor.class);
+
+	/** How long an idle pool thread is kept around */
+	private static final int IDLE_THREAD_TIMEOUT_SEC = 60;
+
+	/** Pool for regular search jobs */
+	private ThreadPoolExecutor searchPool;
+
+	/** Pool for counting jobs */
+	private ThreadPoolExecutor countPool;
+
+	/**
+	 * Create the executor.
+	 *
+	 * @param maxSearchThreads maximum number of threads for search jobs
+	 * @param maxCountThreads maximum number of threads for counting jobs
+	 */
+	JobExecutor(int maxSearchThreads, int maxCountThreads) {
+		logger.debug("Creating job executor: " + maxSearchThreads + " search threads, " + maxCountThreads + " count threads");
+		searchPool = createPool("BlsSearch", Math.max(maxSearchThreads, 1));
+		countPool = createPool("BlsCount", Math.max(maxCountThreads, 1));
+	}
+
+	private static ThreadPoolExecutor createPool(final String threadNamePrefix, int numberOfThreads) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, threadNamePrefix + "-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(numberOfThreads, numberOfThreads,
+				IDLE_THREAD_TIMEOUT_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Is this a counting job?
+	 *
+	 * @param job the job
+	 * @return true iff it should run in the count pool
+	 */
+	static boolean isCountJob(Job job) {
+		return job instanceof JobHitsTotal || job instanceof JobDocsTotal;
+	}
+
+	private ThreadPoolExecutor poolFor(Job job) {
+		return isCountJob(job) ? countPool : searchPool;
+	}
+
+	/**
+	 * Queue a job's task for execution.
+	 *
+	 * @param job the job
+	 * @param task the task that performs the job
+	 * @throws ServiceUnavailable if the executor has been shut down
+	 */
+	void execute(Job job, SearchThread task) throws ServiceUnavailable {
+		try {
+			poolFor(job).execute(task);
+		} catch (RejectedExecutionException e) {
+			throw new ServiceUnavailable("The server is shutting down. Please try again later.");
+		}
+	}
+
+	/**
+	 * Remove a job's task from the queue if it hasn't started yet.
+	 *
+	 * @param job the job
+	 * @param task the task that performs the job
+	 * @return true if the task was removed (and will never be run by the executor),
+	 *   false if it was already started (or finished)
+	 */
+	boolean remove(Job job, SearchThread task) {
+		return poolFor(job).remove(task);
+	}
+
+	/**
+	 * Run parts of a job in parallel, if threads are available.
+	 *
+	 * The parts are queued in the job's pool. They're internal to the job: they
+	 * aren't cached and don't count as searches the user is running. Parts that
+	 * haven't been started by the time we need them are run in the job's own
+	 * thread, so we never wait for parts that can't start because all threads
+	 * are busy (e.g. with jobs like this one).
+	 *
+	 * Returns when all parts are done. If one fails or we're interrupted, the
+	 * remaining parts are cancelled.
+	 *
+	 * @param job the job the parts belong to (must be running in the current thread)
+	 * @param parts the parts to run
+	 * @throws InterruptedException if we were interrupted while waiting for a part
+	 * @throws ExecutionException if a part threw an exception
+	 * @throws ServiceUnavailable if the executor has been shut down
+	 */
+	void runParts(Job job, List<Runnable> parts) throws InterruptedException, ExecutionException, ServiceUnavailable {
+		ThreadPoolExecutor pool = poolFor(job);
+		List<FutureTask<Void>> tasks = new ArrayList<>();
+		try {
+			for (Runnable part: parts) {
+				FutureTask<Void> task = new FutureTask<>(part, null);
+				tasks.add(task);
+				try {
+					pool.execute(task);
+				} catch (RejectedExecutionException e) {
+					throw new ServiceUnavailable("The server is shutting down. Please try again later.");
+				}
+			}
+			for (FutureTask<Void> task: tasks) {
+				if (pool.remove(task))
+					task.run(); // not started yet; do it ourselves
+				task.get();
+			}
+		} finally {
+			// (no effect on parts that are done)
+			for (FutureTask<Void> task: tasks) {
+				pool.remove(task);
+				task.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Stop all threads, interrupting running jobs.
+	 */
+	void shutdown() {
+		searchPool.shutdownNow();
+		countPool.shutdownNow();
+	}
+
+	private static DataObject poolStatus(ThreadPoolExecutor pool) {
+		DataObjectMapElement doPool = new DataObjectMapElement();
+		doPool.put("maxThreads", pool.getMaximumPoolSize());
+		doPool.put("threads", pool.getPoolSize());
+		doPool.put("activeThreads", pool.getActiveCount());
+		doPool.put("queuedJobs", pool.getQueue().size());
+		return doPool;
+	}
+
+	/**
+	 * Return information about the thread pools.
+	 *
+	 * @return the status object
+	 */
+	DataObject getStatusDataObject() {
+		DataObjectMapElement doExecutor = new DataObjectMapElement();
+		doExecutor.put("searchPool", poolStatus(searchPool));
+		doExecutor.put("countPool", poolStatus(countPool));
+		return doExecutor;
+	}
+
+}
@@ -1,45 +1,63 @@
 package nl.inl.blacklab.server.search;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
-import nl.inl.blacklab.perdocument.DocCounts;
 import nl.inl.blacklab.perdocument.DocProperty;
 import nl.inl.blacklab.perdocument.DocPropertyMultiple;
+import nl.inl.blacklab.perdocument.DocResult;
 import nl.inl.blacklab.perdocument.DocResults;
+import nl.inl.blacklab.search.grouping.HitPropValue;
 import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
 import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.blacklab.server.exceptions.ServiceUnavailable;
 import nl.inl.util.ThreadPriority.Level;
 
 /**
- * Represents a hits search and sort operation.
+ * Counts the documents in a result set for one or more facets.
+ *
+ * All facets are counted in a single pass over the documents, so each
+ * document is only retrieved once. For each facet, only the most frequent
+ * values are kept (as many as the facetvalues parameter says).
  */
 public class JobFacets extends Job {
 
-	private Map<String, DocCounts> counts;
+	/** How many values to keep for each facet by default (the most frequent ones) */
+	public static final int DEFAULT_FACET_VALUES = 10;
+
+	/** Orders facet values by descending count, then by value */
+	private static final Comparator<Map.Entry<HitPropValue, int[]>> BY_COUNT = new Comparator<Map.Entry<HitPropValue, int[]>>() {
+		@Override
+		public int compare(Map.Entry<HitPropValue, int[]> a, Map.Entry<HitPropValue, int[]> b) {
+			int c = b.getValue()[0] - a.getValue()[0];
+			return c != 0 ? c : a.getKey().compareTo(b.getKey());
+		}
+	};
+
+	/** Listing of the most frequent values for each facet (by facet name) */
+	private Map<String, GroupListing> listings;
 
 	private DocResults docResults;
 
+	/** Did we create the DocResults ourselves? (if not, they belong to another job) */
+	private boolean ownsDocResults = false;
+
+	/** Total number of facet values (over all facets), for estimating memory use */
+	private int numberOfFacetValues;
+
 	public JobFacets(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
 		super(searchMan, user, par);
 	}
 
 	@Override
 	public void performSearch() throws BlsException {
-		// First, execute blocking docs search.
-		SearchParameters parNoGroup = par.copyWithout("group", "sort");
-		JobWithDocs docsSearch = searchMan.searchDocs(user, parNoGroup);
-		try {
-			waitForJobToFinish(docsSearch);
-
-			// Now, group the docs according to the requested facets.
-			docResults = docsSearch.getDocResults();
-		} finally {
-			docsSearch.decrRef();
-			docsSearch = null;
-		}
+		long start = System.currentTimeMillis();
 		String facets = par.getString("facets");
 		if (facets == null) {
 			// If no facets were specified, we shouldn't even be here.
@@ -57,12 +75,138 @@ public class JobFacets extends Job {
 			props.add(propMultipleFacets);
 		}
 
-		Map<String, DocCounts> theCounts = new HashMap<>();
+		// Maybe we've counted these facets before?
+		if (searchMan.isDiskCacheEnabled()) {
+			Map<String, GroupListing> cached = new LinkedHashMap<>();
+			for (DocProperty facetBy: props) {
+				GroupListing facetListing = searchMan.getFromDiskCache(facetParameters(facetBy), searcher);
+				if (facetListing == null)
+					break;
+				cached.put(facetBy.getName(), facetListing);
+			}
+			if (cached.size() == props.size()) {
+				listings = cached;
+				return;
+			}
+		}
+
+		// First, execute blocking docs search.
+		docResults = getDocsToCount();
+		setPriorityInternal();
+
+		// Count all facets in one pass over the documents
+		List<Map<HitPropValue, int[]>> facetCounts = new ArrayList<>();
+		for (int i = 0; i < props.size(); i++) {
+			facetCounts.add(new HashMap<HitPropValue, int[]>());
+		}
+		int docsCounted = 0;
+		for (DocResult result: docResults) {
+			for (int i = 0; i < props.size(); i++) {
+				HitPropValue value = props.get(i).get(result);
+				Map<HitPropValue, int[]> valueCounts = facetCounts.get(i);
+				int[] count = valueCounts.get(value);
+				if (count == null) {
+					count = new int[1];
+					valueCounts.put(value, count);
+				}
+				count[0]++;
+			}
+			docsCounted++;
+			if (docsCounted % 1000 == 0 && Thread.interrupted())
+				throw new ServiceUnavailable("Counting facets took too long, cancelled");
+		}
+
+		int maxValues = par.getInteger("facetvalues");
+		Map<String, GroupListing> theListings = new LinkedHashMap<>();
+		int n = 0;
+		for (int i = 0; i < props.size(); i++) {
+			GroupListing facetListing = mostFrequent(facetCounts.get(i), maxValues, docsCounted);
+			theListings.put(props.get(i).getName(), facetListing);
+			n += facetListing.numberOfGroups();
+		}
+		numberOfFacetValues = n;
+		listings = theListings; // we're done, caller can use the counts now
+
+		long searchTimeMs = System.currentTimeMillis() - start;
 		for (DocProperty facetBy: props) {
-			DocCounts facetCounts = docResults.countBy(facetBy);
-			counts.put(facetBy.serialize(), facetCounts);
+			searchMan.storeInDiskCache(facetParameters(facetBy), searcher, theListings.get(facetBy.getName()), searchTimeMs);
+		}
+	}
+
+	/**
+	 * Get the documents to count (the whole result set, or the group being viewed).
+	 *
+	 * @return the documents
+	 * @throws BlsException if the search failed
+	 */
+	private DocResults getDocsToCount() throws BlsException {
+		String facetsOf = par.get("facetsof");
+		SearchParameters parDocs = par.copyWithout("facets", "facetsof");
+		Job search;
+		if (facetsOf == null)
+			search = searchMan.searchDocs(user, parDocs);
+		else if (facetsOf.equals("JobHitsGroupedViewGroup"))
+			search = searchMan.searchHitsGroupedViewGroup(user, parDocs);
+		else
+			search = searchMan.searchDocsGroupedViewGroup(user, parDocs);
+		try {
+			waitForJobToFinish(search);
+			if (search instanceof JobWithHits) {
+				ownsDocResults = true;
+				return ((JobWithHits)search).getHits().perDocResults();
+			}
+			return ((JobWithDocs)search).getDocResults();
+		} finally {
+			search.decrRef();
+			search = null;
 		}
-		counts = theCounts; // we're done, caller can use the groups now
+	}
+
+	/**
+	 * Select the most frequent values for a facet.
+	 *
+	 * Uses a bounded heap, so we don't have to sort all the values.
+	 *
+	 * @param valueCounts number of documents per value
+	 * @param maxValues how many values to keep
+	 * @param docsCounted total number of documents counted
+	 * @return listing of the most frequent values
+	 */
+	private static GroupListing mostFrequent(Map<HitPropValue, int[]> valueCounts, int maxValues, int docsCounted) {
+		// Keep the values in a heap with the least frequent at the top
+		PriorityQueue<Map.Entry<HitPropValue, int[]>> heap = new PriorityQueue<>(maxValues + 1,
+				Collections.reverseOrder(BY_COUNT));
+		for (Map.Entry<HitPropValue, int[]> e: valueCounts.entrySet()) {
+			if (heap.size() == maxValues && BY_COUNT.compare(e, heap.peek()) >= 0)
+				continue; // not more frequent than the least frequent value we're keeping
+			heap.add(e);
+			if (heap.size() > maxValues)
+				heap.poll();
+		}
+		List<Map.Entry<HitPropValue, int[]>> top = new ArrayList<>(heap);
+		Collections.sort(top, BY_COUNT);
+		List<HitPropValue> values = new ArrayList<>(top.size());
+		int[] sizes = new int[top.size()];
+		for (int i = 0; i < top.size(); i++) {
+			values.add(top.get(i).getKey());
+			sizes[i] = top.get(i).getValue()[0];
+		}
+		return GroupListing.fromValueCounts(values, sizes, docsCounted);
+	}
+
+	/**
+	 * Parameters identifying the counts for one facet (for the disk cache).
+	 *
+	 * Each facet is stored separately, so it can be reused for requests that
+	 * ask for a different combination of facets.
+	 *
+	 * @param facetBy the facet
+	 * @return the parameters
+	 */
+	private SearchParameters facetParameters(DocProperty facetBy) {
+		SearchParameters facetPar = par.copyWithout("facets");
+		facetPar.put("facets", facetBy.serialize());
+		return facetPar;
 	}
 
 	@Override
@@ -76,25 +220,39 @@ public class JobFacets extends Job {
 		return docResults == null ? Level.RUNNING : docResults.getPriorityLevel();
 	}
 
-	public Map<String, DocCounts> getCounts() {
-		return counts;
+	/**
+	 * Get the most frequent values for each facet, sorted by size.
+	 *
+	 * @return the listing per facet name, or null if we're not done yet
+	 */
+	public Map<String, GroupListing> getFacetListings() {
+		return listings;
 	}
 
 	public DocResults getDocResults() {
 		return docResults;
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		// The DocResult objects usually belong to the docs job; we only hold the counts.
+		long size = super.estimateSizeBytes() + (long)numberOfFacetValues * SIZE_OF_GROUP_BYTES;
+		if (ownsDocResults)
+			size += estimateDocResultsSizeBytes(docResults);
+		return size;
+	}
+
 	@Override
 	public DataObjectMapElement toDataObject(boolean debugInfo) {
 		DataObjectMapElement d = super.toDataObject(debugInfo);
 		d.put("numberOfDocResults", docResults == null ? -1 : docResults.size());
-		d.put("numberOfFacets", counts == null ? -1 : counts.size());
+		d.put("numberOfFacets", listings == null ? -1 : listings.size());
 		return d;
 	}
 
 	@Override
 	protected void cleanup() {
-		counts = null;
+		listings = null;
 		docResults = null;
 		super.cleanup();
 	}
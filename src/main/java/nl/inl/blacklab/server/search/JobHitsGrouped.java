@@ -1,7 +1,13 @@
 package nl.inl.blacklab.server.search;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import nl.inl.blacklab.search.Hits;
 import nl.inl.blacklab.search.grouping.GroupProperty;
+import nl.inl.blacklab.search.grouping.HitGroup;
 import nl.inl.blacklab.search.grouping.HitGroups;
 import nl.inl.blacklab.search.grouping.HitProperty;
 import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
@@ -16,14 +22,37 @@ public class JobHitsGrouped extends Job {
 
 	private HitGroups groups;
 
+	/** The groups, for listing them (and for storing them in the disk cache) */
+	private GroupListing listing;
+
 	private Hits hits;
 
+	/** Did we group the hits ourselves? (if not, we only hold a sorted list
+	 *  of the groups from the unsorted grouping job) */
+	private boolean ownsGroups;
+
 	public JobHitsGrouped(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
 		super(searchMan, user, par);
 	}
 
 	@Override
 	public void performSearch() throws BlsException {
+		long start = System.currentTimeMillis();
+		String sortBy = par.get("sort");
+		if (sortBy != null && sortBy.length() > 0) {
+			sortGroups(sortBy);
+		} else {
+			group();
+		}
+		searchMan.storeInDiskCache(par, searcher, listing, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Group the hits (we're the unsorted grouping job).
+	 *
+	 * @throws BlsException on error
+	 */
+	private void group() throws BlsException {
 		// First, execute blocking hits search.
 		SearchParameters parNoGroup = par.copyWithout("group", "sort");
 		JobWithHits hitsSearch = searchMan.searchHits(user, parNoGroup);
@@ -46,20 +75,64 @@ public class JobHitsGrouped extends Job {
 			throw new BadRequest("UNKNOWN_GROUP_PROPERTY", "Unknown group property '" + groupBy + "'.");
 		HitGroups theGroups = hits.groupedBy(groupProp);
 
-		String sortBy = par.getString("sort");
-		if (sortBy == null)
-			sortBy = "";
+		listing = GroupListing.fromHitGroups(theGroups, theGroups.getGroups(), hits);
+		ownsGroups = true;
+		groups = theGroups; // we're done, caller can use the groups now
+	}
+
+	/**
+	 * Sort the groups found by the unsorted grouping job.
+	 *
+	 * The groups are shared with that job, so we sort our own list of them,
+	 * and leave the groups themselves alone. Each sort order is a separate job
+	 * in the cache, but the grouping is only done once.
+	 *
+	 * @param sortBy how to sort the groups
+	 * @throws BlsException on error
+	 */
+	private void sortGroups(String sortBy) throws BlsException {
+		JobHitsGrouped groupSearch = searchMan.searchHitsGrouped(user, par.copyWithout("sort"));
+		HitGroups theGroups;
+		try {
+			waitForJobToFinish(groupSearch);
+			hits = groupSearch.getHits();
+			theGroups = groupSearch.getGroups();
+			setPriorityInternal();
+		} finally {
+			groupSearch.decrRef();
+			groupSearch = null;
+		}
+
 		boolean reverse = false;
-		if (sortBy.length() > 0 && sortBy.charAt(0) == '-') {
+		if (sortBy.charAt(0) == '-') {
 			reverse = true;
 			sortBy = sortBy.substring(1);
 		}
-		GroupProperty sortProp = GroupProperty.deserialize(sortBy);
-		theGroups.sortGroups(sortProp, reverse);
+		List<HitGroup> sorted = new ArrayList<>(theGroups.getGroups());
+		final GroupProperty sortProp = GroupProperty.deserialize(sortBy);
+		if (sortProp != null) {
+			// (same order as HitGroups.sortGroups())
+			final boolean descending = sortProp.defaultSortDescending() ? !reverse : reverse;
+			Collections.sort(sorted, new Comparator<HitGroup>() {
+				@Override
+				public int compare(HitGroup a, HitGroup b) {
+					return descending ? sortProp.compare(b, a) : sortProp.compare(a, b);
+				}
+			});
+		}
 
+		listing = GroupListing.fromHitGroups(theGroups, sorted, hits);
 		groups = theGroups; // we're done, caller can use the groups now
 	}
 
+	/**
+	 * Get the groups in a form suitable for listing them.
+	 * @return the listing, or null if we're not done yet
+	 */
+	public GroupListing getGroupListing() {
+		return groups == null ? null : listing;
+	}
+
 	public HitGroups getGroups() {
 		return groups;
 	}
@@ -78,6 +151,24 @@ public class JobHitsGrouped extends Job {
 		return hits == null ? Level.RUNNING : hits.getPriorityLevel();
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		// The Hit objects belong to the hits job; we hold the groups, which
+		// together contain a reference to each hit. (or, if we're sorting,
+		// just a list of references to the groups)
+		HitGroups g = groups;
+		long size = super.estimateSizeBytes();
+		if (g != null) {
+			if (ownsGroups) {
+				size += (long)g.numberOfGroups() * SIZE_OF_GROUP_BYTES;
+				size += (long)hits.countSoFarHitsRetrieved() * SIZE_OF_REFERENCE_BYTES;
+			} else {
+				size += (long)g.numberOfGroups() * SIZE_OF_REFERENCE_BYTES;
+			}
+		}
+		return size;
+	}
+
 	@Override
 	public DataObjectMapElement toDataObject(boolean debugInfo) {
 		DataObjectMapElement d = super.toDataObject(debugInfo);
@@ -89,6 +180,7 @@ public class JobHitsGrouped extends Job {
 	@Override
 	protected void cleanup() {
 		groups = null;
+		listing = null;
 		hits = null;
 		super.cleanup();
 	}
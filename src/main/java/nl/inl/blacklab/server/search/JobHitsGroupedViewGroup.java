@@ -0,0 +1,98 @@
+package nl.inl.blacklab.server.search;
+
+import nl.inl.blacklab.search.Hits;
+import nl.inl.blacklab.search.grouping.HitGroup;
+import nl.inl.blacklab.search.grouping.HitPropValue;
+import nl.inl.blacklab.search.grouping.HitProperty;
+import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
+import nl.inl.blacklab.server.exceptions.BadRequest;
+import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.util.ThreadPriority.Level;
+
+/**
+ * Represents the hits in one group, sorted.
+ *
+ * Uses the (cached) unsorted grouping job, so the grouping is only done once
+ * for all groups and sort orders. The group's hits are never sorted in place.
+ */
+public class JobHitsGroupedViewGroup extends JobWithHits {
+
+	/** Did we sort the hits? (if not, they belong to the grouping job) */
+	private boolean sortedCopy = false;
+
+	public JobHitsGroupedViewGroup(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
+		super(searchMan, user, par);
+	}
+
+	@Override
+	public void performSearch() throws BlsException {
+		// First, execute blocking grouping job.
+		SearchParameters parNoSort = par.copyWithout("sort", "viewgroup");
+		JobHitsGrouped groupSearch = searchMan.searchHitsGrouped(user, parNoSort);
+		HitGroup group;
+		try {
+			waitForJobToFinish(groupSearch);
+
+			// Now, find the group we want.
+			String viewGroup = par.getString("viewgroup");
+			HitPropValue viewGroupVal = HitPropValue.deserialize(groupSearch.getHits(), viewGroup);
+			if (viewGroupVal == null)
+				throw new BadRequest("ERROR_IN_GROUP_VALUE", "Cannot deserialize group value: " + viewGroup);
+			group = groupSearch.getGroups().getGroup(viewGroupVal);
+			if (group == null)
+				throw new BadRequest("GROUP_NOT_FOUND", "Group not found: " + viewGroup);
+		} finally {
+			groupSearch.decrRef();
+			groupSearch = null;
+		}
+
+		String sortBy = par.getString("sort");
+		if (sortBy == null)
+			sortBy = "";
+		boolean reverse = false;
+		if (sortBy.length() > 0 && sortBy.charAt(0) == '-') {
+			reverse = true;
+			sortBy = sortBy.substring(1);
+		}
+		HitProperty sortProp = sortBy.length() > 0 ? HitProperty.deserialize(group.getHits(), sortBy) : null;
+		if (sortProp != null) {
+			// (sortedBy() returns a sorted copy; the group's own hits stay as they are)
+			hits = group.getHits().sortedBy(sortProp, reverse);
+			sortedCopy = true;
+		} else {
+			// Be lenient of sort values we can't carry out (see JobHitsSorted)
+			hits = group.getHits();
+		}
+		setPriorityInternal();
+	}
+
+	@Override
+	protected void setPriorityInternal() {
+		if (hits != null)
+			setHitsPriority(hits);
+	}
+
+	@Override
+	public Level getPriorityOfResultsObject() {
+		return hits == null ? Level.RUNNING : hits.getPriorityLevel();
+	}
+
+	@Override
+	public long estimateSizeBytes() {
+		// The Hit objects themselves belong to the grouping job;
+		// we only hold a sorted list of references to them.
+		Hits h = hits;
+		long size = SIZE_OF_JOB_BYTES;
+		if (h != null && sortedCopy)
+			size += (long)h.countSoFarHitsRetrieved() * SIZE_OF_REFERENCE_BYTES;
+		return size;
+	}
+
+	@Override
+	public DataObjectMapElement toDataObject(boolean debugInfo) {
+		DataObjectMapElement d = super.toDataObject(debugInfo);
+		d.put("numberOfHits", hits == null ? -1 : hits.size());
+		return d;
+	}
+
+}
@@ -11,6 +11,9 @@ import nl.inl.util.ThreadPriority.Level;
  */
 public class JobHitsSorted extends JobWithHits {
 
+	/** Did we create a sorted copy of the hits, or are we using the unsorted hits? */
+	private boolean sortedCopy = false;
+
 	public JobHitsSorted(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
 		super(searchMan, user, par);
 	}
@@ -51,6 +54,7 @@ public class JobHitsSorted extends JobWithHits {
 			// We don't want the client to have to validate this, so we simply
 			// ignore sort requests we can't carry out.
 			hits = hitsUnsorted.sortedBy(sortProp, reverse);
+			sortedCopy = true;
 		} else
 			hits = hitsUnsorted;
 		setPriorityInternal();
@@ -67,6 +71,17 @@ public class JobHitsSorted extends JobWithHits {
 		return hits == null ? Level.RUNNING : hits.getPriorityLevel();
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		// The Hit objects themselves belong to the unsorted hits job;
+		// we only hold a sorted list of references to them.
+		Hits h = hits;
+		long size = SIZE_OF_JOB_BYTES;
+		if (h != null && sortedCopy)
+			size += (long)h.countSoFarHitsRetrieved() * SIZE_OF_REFERENCE_BYTES;
+		return size;
+	}
+
 	@Override
 	public DataObjectMapElement toDataObject(boolean debugInfo) {
 		DataObjectMapElement d = super.toDataObject(debugInfo);
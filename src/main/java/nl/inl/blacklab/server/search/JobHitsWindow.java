@@ -16,6 +16,9 @@ public class JobHitsWindow extends Job {
 
 	private int requestedWindowSize;
 
+	/** The context size (in words) used for the concordances */
+	private int contextSize;
+
 	public JobHitsWindow(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
 		super(searchMan, user, par);
 	}
@@ -38,7 +41,7 @@ public class JobHitsWindow extends Job {
 			}
 			hitsWindow = hits.window(first, requestedWindowSize);
 			setPriorityInternal(); // make sure hits has the right priority
-			int contextSize = par.getInteger("wordsaroundhit");
+			contextSize = par.getInteger("wordsaroundhit");
 			int maxContextSize = searchMan.getMaxContextSize();
 			if (contextSize > maxContextSize) {
 				debug(logger, "Clamping context size to " + maxContextSize + " (" + contextSize + " requested)");
@@ -65,6 +68,19 @@ public class JobHitsWindow extends Job {
 		return hitsWindow == null ? Level.RUNNING : hitsWindow.getPriorityLevel();
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		HitsWindow w = hitsWindow;
+		long size = super.estimateSizeBytes();
+		if (w != null) {
+			// Hits in the window, plus (once retrieved) their context on both sides of the match.
+			// (the match itself is usually only a few words; we count it as one)
+			long hitsInWindow = w.size();
+			size += hitsInWindow * (SIZE_OF_HIT_BYTES + (2L * contextSize + 1) * SIZE_OF_CONTEXT_TOKEN_BYTES);
+		}
+		return size;
+	}
+
 	@Override
 	public DataObjectMapElement toDataObject(boolean debugInfo) {
 		DataObjectMapElement d = super.toDataObject(debugInfo);
@@ -0,0 +1,136 @@
+package nl.inl.blacklab.server.search;
+
+/**
+ * A job's 'worthiness', determined at a specific moment in time.
+ *
+ * 'Worthiness' is a measure indicating how important a
+ * job is, and determines what jobs get the CPU and what jobs
+ * are paused or aborted, and what unfinished jobs are removed
+ * from the cache first. (Finished jobs are removed least recently
+ * used first; SearchCache keeps them in that order.)
+ *
+ * The job's state is read once, when the JobPriority is created, so comparing
+ * two JobPriority objects is cheap and always gives the same answer. Sorting
+ * jobs directly using their live state would not be a consistent order, because
+ * their state (and the time) changes while we're sorting.
+ *
+ * Natural order is by descending worthiness.
+ */
+final class JobPriority implements Comparable<JobPriority> {
+
+	private static final double ALMOST_ZERO = 0.0001;
+
+	private static final int RUN_PAUSE_PHASE_JUST_STARTED = 5;
+
+	/** How long a job remains "young". Young jobs are treated differently
+	 *  than old jobs when it comes to load management, because we want to
+	 *  give new searches a fair chance, but we also want to eventually put
+	 *  demanding searches on the back burner if the system is overloaded. */
+	private static final int YOUTH_THRESHOLD_SEC = 20;
+
+	// Worthiness tiers, from worthiest to least worthy.
+
+	/** Unfinished job that just started running; try not to pause it again right away */
+	private static final int TIER_JUST_STARTED_RUNNING = 0;
+
+	/** Unfinished job that was just paused; try not to resume it right away */
+	private static final int TIER_JUST_PAUSED = 1;
+
+	/** Unfinished job that hasn't been running long */
+	private static final int TIER_YOUNG = 2;
+
+	/** Unfinished search that has been running for a while */
+	private static final int TIER_OLD_SEARCH = 3;
+
+	/** Unfinished count that has been running for a while */
+	private static final int TIER_OLD_COUNT = 4;
+
+	/** Finished job */
+	private static final int TIER_FINISHED = 5;
+
+	/** The job */
+	private Job job;
+
+	/** Worthiness tier (lower is worthier) */
+	private int tier;
+
+	/** Worthiness within the tier (lower is worthier) */
+	private double rank;
+
+	/**
+	 * Determine a job's worthiness.
+	 *
+	 * @param job the job
+	 * @param now the current time (the same for all jobs we want to compare)
+	 */
+	JobPriority(Job job, long now) {
+		this.job = job;
+		if (job.finished()) {
+			// Most recently used search is the worthiest.
+			// (because we want a LRU cache)
+			tier = TIER_FINISHED;
+			rank = job.notAccessedFor(now);
+			return;
+		}
+
+		// Rules to make sure jobs aren't oscillating between
+		// running and not running too much.
+		// First, check if job just started running, and if so,
+		// try not to pause them again right away.
+		// The shortest-running one is worthiest.
+		double runtime = job.currentRunPhaseLength(now);
+		if (runtime > ALMOST_ZERO && runtime < RUN_PAUSE_PHASE_JUST_STARTED) {
+			tier = TIER_JUST_STARTED_RUNNING;
+			rank = runtime;
+			return;
+		}
+		// Now, check if job was just paused, and if so,
+		// try not to resume it right away.
+		// The longest-paused one is worthiest.
+		double pause = job.currentPauseLength(now);
+		if (pause > ALMOST_ZERO && pause < RUN_PAUSE_PHASE_JUST_STARTED) {
+			tier = TIER_JUST_PAUSED;
+			rank = -pause;
+			return;
+		}
+
+		// Is this job relatively young or relatively old?
+		// Young jobs get the CPU in the hope that they will complete
+		// quickly; older jobs are paused sooner because they eat up
+		// a lot of resources.
+		double exec = job.totalExecTime(now);
+		if (exec < YOUTH_THRESHOLD_SEC) {
+			// Young: the oldest is the worthiest.
+			// (so light jobs get a fair chance to complete)
+			tier = TIER_YOUNG;
+			rank = -exec;
+			return;
+		}
+
+		// Old. Searches are worthier than counts; the youngest is worthiest.
+		// (so heavy jobs don't crowd out the lighter ones)
+		tier = JobExecutor.isCountJob(job) ? TIER_OLD_COUNT : TIER_OLD_SEARCH;
+		rank = exec;
+	}
+
+	/**
+	 * Get the job.
+	 *
+	 * @return the job
+	 */
+	Job getJob() {
+		return job;
+	}
+
+	@Override
+	public int compareTo(JobPriority o) {
+		if (tier != o.tier)
+			return tier < o.tier ? -1 : 1;
+		int c = Double.compare(rank, o.rank);
+		if (c != 0)
+			return c;
+		// Equally worthy; make sure we have a total order
+		return job.id < o.job.id ? -1 : (job.id == o.job.id ? 0 : 1);
+	}
+
+}
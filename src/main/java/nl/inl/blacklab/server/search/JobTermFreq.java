@@ -0,0 +1,93 @@
+package nl.inl.blacklab.server.search;
+
+import java.util.Map;
+
+import nl.inl.blacklab.index.complex.ComplexFieldUtil;
+import nl.inl.blacklab.search.Searcher;
+import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
+import nl.inl.blacklab.server.exceptions.BlsException;
+import nl.inl.util.ThreadPriority.Level;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * Determines the term frequencies in a set of documents (or the whole index).
+ *
+ * For the whole index, we use the Lucene term statistics (stored in the disk
+ * cache, if enabled); otherwise, we count the terms in each document.
+ */
+public class JobTermFreq extends Job {
+
+	/** The frequency list */
+	private TermFreqTable termFreqs;
+
+	public JobTermFreq(SearchManager searchMan, User user, SearchParameters par) throws BlsException {
+		super(searchMan, user, par);
+	}
+
+	@Override
+	public void performSearch() throws BlsException {
+		String propName = par.getString("property");
+		String alt = par.getBoolean("sensitive") ? "s" : "i";
+		String filter = par.getString("filter");
+		TermFreqTable table = null;
+		if (filter == null || filter.length() == 0) {
+			// Whole index; no need to look at each document
+			table = searchMan.getTermFreqTable(searcher, luceneField(searcher, propName, alt));
+		}
+		if (table == null) {
+			String fieldName = searcher.getIndexStructure().getMainContentsField().getName();
+			Query q = SearchManager.parseFilter(searcher, filter, par.getString("filterlang"));
+			Map<String, Integer> freq = searcher.termFrequencies(q, fieldName, propName, alt);
+			table = TermFreqTable.fromMap(freq);
+		}
+		termFreqs = table; // we're done, caller can use the list now
+	}
+
+	/**
+	 * Get the Lucene field for a property of the main contents field.
+	 *
+	 * @param searcher the index
+	 * @param propName the property
+	 * @param alt the alternative ("s" or "i")
+	 * @return the Lucene field name
+	 */
+	static String luceneField(Searcher searcher, String propName, String alt) {
+		String fieldName = searcher.getIndexStructure().getMainContentsField().getName();
+		return ComplexFieldUtil.propertyField(fieldName, propName, alt);
+	}
+
+	/**
+	 * Get the frequency list, sorted by descending frequency.
+	 *
+	 * @return the list, or null if we're not done yet
+	 */
+	public TermFreqTable getTermFreqs() {
+		return termFreqs;
+	}
+
+	@Override
+	public Level getPriorityOfResultsObject() {
+		return Level.RUNNING;
+	}
+
+	@Override
+	public long estimateSizeBytes() {
+		TermFreqTable t = termFreqs;
+		return SIZE_OF_JOB_BYTES + (t == null ? 0 : t.estimateSizeBytes());
+	}
+
+	@Override
+	public DataObjectMapElement toDataObject(boolean debugInfo) {
+		DataObjectMapElement d = super.toDataObject(debugInfo);
+		d.put("numberOfTerms", termFreqs == null ? -1 : termFreqs.size());
+		return d;
+	}
+
+	@Override
+	protected void cleanup() {
+		termFreqs = null;
+		super.cleanup();
+	}
+
+}
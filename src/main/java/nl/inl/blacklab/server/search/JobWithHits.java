@@ -21,6 +21,15 @@ public class JobWithHits extends Job {
 		return hits;
 	}
 
+	@Override
+	public long estimateSizeBytes() {
+		Hits h = hits;
+		long size = super.estimateSizeBytes();
+		if (h != null)
+			size += (long)h.countSoFarHitsRetrieved() * SIZE_OF_HIT_BYTES;
+		return size;
+	}
+
 	@Override
 	public DataObjectMapElement toDataObject(boolean debugInfo) {
 		DataObjectMapElement d = super.toDataObject(debugInfo);
@@ -0,0 +1,128 @@
+package nl.inl.blacklab.server.search;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import nl.inl.blacklab.search.Searcher;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Remembers the Lucene document id for recently looked-up pids, per Searcher.
+ *
+ * Pids that aren't in the cache are looked up in the pid field's postings
+ * directly, instead of running a query. Both found and not-found results are
+ * cached, up to MAX_PIDS_PER_SEARCHER entries (least recently used are evicted).
+ *
+ * Document ids are only valid for the Searcher they were found in, so the
+ * cache for a Searcher is discarded when it is closed (or reopened, which
+ * gives us a new Searcher object).
+ */
+class PidLookupCache {
+	private static final Logger logger = Logger.getLogger(PidLookupCache.class);
+
+	/** Maximum number of pids to remember per Searcher */
+	static final int MAX_PIDS_PER_SEARCHER = 10000;
+
+	/** Cache per Searcher (weak keys, so we never keep a Searcher alive) */
+	private static Map<Searcher, PidLookupCache> caches = new WeakHashMap<>();
+
+	/**
+	 * Get the cache for a Searcher, creating it if necessary.
+	 *
+	 * @param searcher the searcher
+	 * @return the cache
+	 */
+	static synchronized PidLookupCache get(Searcher searcher) {
+		PidLookupCache cache = caches.get(searcher);
+		if (cache == null) {
+			cache = new PidLookupCache(searcher.getIndexReader());
+			caches.put(searcher, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Discard the cache for a Searcher.
+	 *
+	 * Call this when the Searcher is closed.
+	 *
+	 * @param searcher the searcher
+	 */
+	static synchronized void invalidate(Searcher searcher) {
+		caches.remove(searcher);
+	}
+
+	/** The index reader to look up pids in */
+	private IndexReader reader;
+
+	/** Lucene doc id per pid (or -1 if not found), in access order */
+	private Map<String, Integer> docIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_PIDS_PER_SEARCHER;
+		}
+	};
+
+	private PidLookupCache(IndexReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Find the Lucene doc id for a pid.
+	 *
+	 * @param pidField the field containing the pid
+	 * @param pid the pid to look up
+	 * @return the Lucene doc id, or -1 if not found
+	 * @throws IOException on index read error
+	 */
+	int getDocId(String pidField, String pid) throws IOException {
+		synchronized (docIds) {
+			Integer docId = docIds.get(pid);
+			if (docId != null)
+				return docId;
+		}
+		int docId = findDocId(pidField, pid);
+		if (docId < 0) {
+			// HACK in case pid field is incorrectly lowercased
+			String lowerCasePid = pid.toLowerCase();
+			if (!lowerCasePid.equals(pid))
+				docId = findDocId(pidField, lowerCasePid);
+		}
+		synchronized (docIds) {
+			docIds.put(pid, docId);
+		}
+		return docId;
+	}
+
+	/**
+	 * Look up a pid in the pid field's postings.
+	 *
+	 * @param pidField the field containing the pid
+	 * @param pid the pid to look up
+	 * @return the (first) Lucene doc id with this pid, or -1 if not found
+	 * @throws IOException on index read error
+	 */
+	private int findDocId(String pidField, String pid) throws IOException {
+		DocsEnum docs = MultiFields.getTermDocsEnum(reader, MultiFields.getLiveDocs(reader), pidField, new BytesRef(pid));
+		if (docs == null)
+			return -1;
+		int docId = docs.nextDoc();
+		if (docId == DocIdSetIterator.NO_MORE_DOCS)
+			return -1;
+		if (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+			// Should probably throw a fatal exception, but sometimes
+			// documents accidentally occur twice in a dataset...
+			logger.error("Pid must uniquely identify a document, but it occurs more than once: " + pid);
+		}
+		return docId;
+	}
+
+}
@@ -3,12 +3,17 @@ package nl.inl.blacklab.server.search;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import nl.inl.blacklab.search.Searcher;
 import nl.inl.blacklab.server.dataobject.DataObject;
 import nl.inl.blacklab.server.dataobject.DataObjectList;
 import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
@@ -29,10 +34,42 @@ public class SearchCache {
 		SearchCache.maxSearchTimeSec = maxSearchTimeSec;
 	}
 
-	/** The cached search objects. */
-	private Map<SearchParameters, Job> cachedSearches;
+	/** The cached search objects.
+	 *
+	 * This is a concurrent map, so cache lookups never block, not even
+	 * while another thread is adding a search or cleaning up the cache. */
+	private ConcurrentMap<SearchParameters, Job> cachedSearches;
+
+	/** The cached searches that haven't finished yet.
+	 *
+	 * Jobs are added when they are put in the cache and removed when they finish
+	 * or are removed from the cache, so load management only has to look at these,
+	 * not at all the (mostly finished) searches in the cache. */
+	private Set<Job> unfinishedSearches = Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
 
-	/** Maximum size in MB to target, or -1 for no limit. NOT IMPLEMENTED YET. */
+	/** The cached searches that have finished, least recently accessed first,
+	 *  with their (estimated) size in bytes.
+	 *
+	 * Jobs are added when they finish, moved to the end when accessed and
+	 * removed when they are removed from the cache. So cleaning up the cache
+	 * only has to take the first few, instead of ranking all cached jobs.
+	 * Synchronize on this map; never lock a Job while holding it. */
+	private Map<Job, Long> finishedSearches = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** Total (estimated) size of finishedSearches; guarded by finishedSearches */
+	private long finishedSizeBytes = 0;
+
+	/** Held while adding a search and while removing the searches for a replaced
+	 *  Searcher, so we can't add a search for a Searcher that was just replaced
+	 *  after its searches were removed. */
+	private final Object replacedSearcherLock = new Object();
+
+	/** Held while cleaning up the cache or managing server load, so those
+	 *  passes don't run at the same time. Cache lookups never take this lock. */
+	private final Object maintenanceLock = new Object();
+
+	/** Maximum size in MB to target, or -1 for no limit.
+	 *  (based on the size estimates of the cached jobs, see Job.estimateSizeBytes()) */
 	private long maxSizeMegs = -1;
 
 	/** Maximum number of searches to cache, or -1 for no limit. Defaults to (a fairly low) 20.*/
@@ -42,9 +79,9 @@ public class SearchCache {
 	 *  adding new searches. Defaults to one hour. */
 	private int maxJobAgeSec = 3600;
 
-	/** (Estimated) size of the cache. Only updated in removeOldSearches, so may not
-	 * always be accurate. */
-	private long cacheSizeBytes;
+	/** (Estimated) size of the cache. Recalculated in removeOldSearches and decreased when
+	 * searches are removed, so may not always be accurate (jobs grow while they run). */
+	private volatile long cacheSizeBytes;
 
 	/** How much free memory we should try to target when cleaning the cache. */
 	private long minFreeMemTargetMegs;
@@ -58,13 +95,17 @@ public class SearchCache {
 
 	private int maxPausedSearches;
 
+	/** How many more searches to remove in this cleanup pass, regardless of
+	 *  age and cache size (when we're low on memory); see removeOldSearches() */
+	private int searchesToRemove;
+
 	/**
 	 * Initialize the cache.
 	 *
 	 * @param settings cache settings
 	 */
 	public SearchCache(JSONObject settings) {
-		cachedSearches = new HashMap<>();
+		cachedSearches = new ConcurrentHashMap<>();
 		maxJobAgeSec = JsonUtil.getIntProp(settings, "maxJobAgeSec", 3600);
 		maxNumberOfJobs = JsonUtil.getIntProp(settings, "maxNumberOfJobs", 20);
 		maxSizeMegs = JsonUtil.getIntProp(settings, "maxSizeMegs", -1);
@@ -73,7 +114,7 @@ public class SearchCache {
 	}
 
 	public SearchCache() {
-		cachedSearches = new HashMap<>();
+		cachedSearches = new ConcurrentHashMap<>();
 		maxJobAgeSec = 3600;
 		maxNumberOfJobs = 20;
 		maxSizeMegs = -1;
@@ -98,35 +139,104 @@ public class SearchCache {
 		return search;
 	}
 
-	/** Put a search in the cache.
+	/** Put a search in the cache, unless a search with the same parameters is
+	 * already there.
+	 *
+	 * This is an atomic get-or-create: if two threads try to add a search
+	 * with the same parameters, only one of them succeeds, and the other should
+	 * use (and not perform) the search returned.
 	 *
 	 * Also cleans older searches from the cache if necessary.
 	 *
 	 * @param search the search object
+	 * @return the search that was already in the cache, or null if ours was added
+	 *   (or if it wasn't, because the cache is disabled or its Searcher was just
+	 *   replaced by a newer version; the caller should perform it either way)
 	 */
-	public void put(Job search) {
+	public Job putIfAbsent(Job search) {
 		if (maxNumberOfJobs <= 0)
-			return;
+			return null;
 
-		removeOldSearches();
+		// Put search in cache, unless someone beat us to it
+		// (the cache counts as a reference to the job)
+		SearchParameters searchParameters = search.getParameters();
+		Job existing;
+		synchronized (replacedSearcherLock) {
+			if (!search.searchMan.isCurrentSearcher(searchParameters.getString("indexname"), search.getSearcher())) {
+				// The index was replaced by a newer version while we were
+				// creating this search; don't cache results for the old version.
+				return null;
+			}
+			search.incrRef();
+			existing = cachedSearches.putIfAbsent(searchParameters, search);
+		}
+		if (existing != null) {
+			// Same search was just added by another thread; use that one.
+			// (our job was never started, so dropping the reference is enough)
+			search.decrRef();
+			existing.resetLastAccessed();
+			return existing;
+		}
+		//logger.debug("Put in cache: " + searchParameters);
+		search.setCache(this);
+		trackUntilFinished(search);
 
+		removeOldSearches();
 		performLoadManagement(search);
+		return null;
+	}
 
-		// Search already in cache?
-		SearchParameters searchParameters = search.getParameters();
-		if (cachedSearches.containsKey(searchParameters)) {
-			if (cachedSearches.get(searchParameters) != search) {
-				throw new RuntimeException("Cache already contains different search object!");
+	/**
+	 * Keep track of an unfinished search until it finishes.
+	 *
+	 * Then it moves to the finished searches (if it's still in the cache).
+	 *
+	 * @param search the search
+	 */
+	private void trackUntilFinished(final Job search) {
+		unfinishedSearches.add(search);
+		search.addFinishedListener(new Runnable() {
+			@Override
+			public void run() {
+				unfinishedSearches.remove(search);
+				long size = search.estimateSizeBytes();
+				synchronized (finishedSearches) {
+					// (removeFromCache() removes it from cachedSearches before
+					//  finishedSearches, so we can't add a removed job here)
+					if (cachedSearches.get(search.getParameters()) == search) {
+						finishedSearches.put(search, size);
+						finishedSizeBytes += size;
+					}
+				}
 			}
-			// Same object already in cache, do nothing
-			logger.debug("Same object put in cache twice: " + searchParameters);
-			return;
+		});
+	}
+
+	/**
+	 * Called when a cached search is accessed.
+	 *
+	 * @param search the search
+	 */
+	void accessed(Job search) {
+		synchronized (finishedSearches) {
+			finishedSearches.get(search); // (moves it to the end)
 		}
+	}
 
-		// Put search in cache
-		//logger.debug("Put in cache: " + searchParameters);
-		cachedSearches.put(searchParameters, search);
-		search.incrRef();
+	/**
+	 * Find the least recently accessed finished search.
+	 *
+	 * @param skip searches to skip
+	 * @return the search, or null if there are no (more) finished searches
+	 */
+	private Job leastRecentlyAccessedFinishedSearch(Set<Job> skip) {
+		synchronized (finishedSearches) {
+			for (Job search: finishedSearches.keySet()) {
+				if (!skip.contains(search))
+					return search;
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -140,8 +250,26 @@ public class SearchCache {
 		while (it.hasNext()) {
 			Entry<SearchParameters, Job> entry = it.next();
 			if (entry.getKey().getString("indexname").equals(indexName)) {
-				entry.getValue().decrRef();
-				it.remove();
+				removeFromCache(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Remove all cache entries that were created using the specified Searcher.
+	 *
+	 * Used when an index has changed: searches on the new version of the index
+	 * (if any yet) are kept. Call this after the new Searcher has replaced
+	 * the old one; putIfAbsent() won't add searches for the old one after that.
+	 *
+	 * @param searcher the (old) Searcher
+	 */
+	public void clearCacheForSearcher(Searcher searcher) {
+		synchronized (replacedSearcherLock) {
+			for (Job job: cachedSearches.values()) {
+				if (job.getSearcher() == searcher) {
+					removeFromCache(job);
+				}
 			}
 		}
 	}
@@ -162,9 +290,8 @@ public class SearchCache {
 		for (Job cachedSearch: cachedSearches.values()) {
 			if (!cachedSearch.finished())
 				cachedSearch.cancelJob();
-			cachedSearch.decrRef();
+			removeFromCache(cachedSearch);
 		}
-		cachedSearches.clear();
 		logger.debug("Cache cleared.");
 	}
 
@@ -173,65 +300,107 @@ public class SearchCache {
 	 * removing less recently used searches.
 	 */
 	void removeOldSearches() {
+		synchronized (maintenanceLock) {
+			removeOldSearchesInternal();
+		}
+	}
 
-		// Sort cache by last access time
-		List<Job> lastAccessOrder = new ArrayList<>(cachedSearches.values());
-		Collections.sort(lastAccessOrder); // sort on worthiness
+	private void removeOldSearchesInternal() {
+		long now = System.currentTimeMillis();
 
-		calculateSizeBytes(lastAccessOrder);
+		// Cancel searches that are taking too long.
+		for (Job search: unfinishedSearches) {
+			if (!search.finished() && search.userWaitTime(now) > maxSearchTimeSec) {
+				logger.debug("Search is taking too long, cancelling: " + search);
+				abortSearch(search);
+			}
+		}
+
+		// Determine the (estimated) cache size. Only the unfinished searches
+		// are still growing; we know the size of the finished ones.
+		long size = 0;
+		for (Job search: unfinishedSearches) {
+			size += search.estimateSizeBytes();
+		}
+		synchronized (finishedSearches) {
+			size += finishedSizeBytes;
+		}
+		cacheSizeBytes = size;
 
 		// If we're low on memory, always remove a few searches from cache.
-		int minSearchesToRemove = 0;
+		searchesToRemove = 0;
 		long freeMegs = MemoryUtil.getFree() / 1000000;
 		if (freeMegs < minFreeMemTargetMegs) {
-			minSearchesToRemove = numberOfJobsToPurgeWhenBelowTargetMem; // arbitrary, number but will keep on being removed every call until enough free mem has been reclaimed
+			searchesToRemove = numberOfJobsToPurgeWhenBelowTargetMem; // arbitrary, number but will keep on being removed every call until enough free mem has been reclaimed
 			logger.debug("Not enough free mem, will remove some searches.");
 		}
 
-		// Look at searches from least worthy to worthiest.
-		// Get rid of old searches
-		boolean lookAtCacheSizeAndSearchAccessTime = true;
-		for (int i = lastAccessOrder.size() - 1; i >= 0; i--) {
-			Job search = lastAccessOrder.get(i);
-
-			if (!search.finished() && search.userWaitTime() > maxSearchTimeSec) {
-				// Search is taking too long. Cancel it.
-				logger.debug("Search is taking too long, cancelling: " + search);
-				abortSearch(search);
-
-			} else {
-				boolean removeBecauseOfCacheSizeOrAge = false;
-				if (lookAtCacheSizeAndSearchAccessTime) {
-					boolean isCacheTooBig = cacheTooBig();
-					boolean isSearchTooOld = false;
-					if (!isCacheTooBig)
-						isSearchTooOld = searchTooOld(search);
-					removeBecauseOfCacheSizeOrAge = isCacheTooBig || isSearchTooOld;
-				}
-				if (minSearchesToRemove > 0 || removeBecauseOfCacheSizeOrAge) {
-					// Search is too old or cache is too big. Keep removing searches until that's no longer the case
-					//logger.debug("Remove from cache: " + search);
-					removeFromCache(search);
-
-					minSearchesToRemove--;
-				} else {
-					// Cache is no longer too big and these searches are not too old. Stop checking that,
-					// just check for long-running searches
-					lookAtCacheSizeAndSearchAccessTime = false;
-				}
+		// Get rid of old searches, and keep removing searches while the
+		// (estimated) cache size in bytes is too large. Least worthy first:
+		// finished searches, least recently accessed first (the ones other jobs
+		// are still using go last), then unfinished searches by priority. We stop
+		// at the first search we want to keep, so we only look at the searches we
+		// remove (and the few that are in use).
+		Set<Job> inUse = new HashSet<>();
+		List<Job> finishedInUse = new ArrayList<>();
+		while (true) {
+			Job search = leastRecentlyAccessedFinishedSearch(inUse);
+			if (search == null)
+				break;
+			if (search.isReferencedOutsideCache()) {
+				inUse.add(search);
+				finishedInUse.add(search);
+				continue;
 			}
+			if (!removeIfNecessary(search, now))
+				return;
+		}
+		for (Job search: finishedInUse) {
+			if (!removeIfNecessary(search, now))
+				return;
+		}
+		// (usually a cache is too big because of its finished searches, so we rarely get here)
+		List<JobPriority> unfinished = new ArrayList<>(unfinishedSearches.size());
+		for (Job search: unfinishedSearches) {
+			unfinished.add(new JobPriority(search, now));
+		}
+		Collections.sort(unfinished, Collections.<JobPriority>reverseOrder());
+		for (JobPriority priority: unfinished) {
+			if (!removeIfNecessary(priority.getJob(), now))
+				return;
 		}
 		// NOTE: we used to hint the Java GC to run, but this caused severe
 		// slowdowns. It's better to rely on the incremental garbage collection.
 	}
 
+	/**
+	 * Remove a search if it is too old, the cache is too big or we're
+	 * low on memory.
+	 *
+	 * @param search the least worthy search left in the cache
+	 * @param now the current time
+	 * @return true if it was removed, false if we can stop cleaning up
+	 */
+	private boolean removeIfNecessary(Job search, long now) {
+		if (searchesToRemove > 0 || cacheTooBig() || searchTooOld(search, now)) {
+			// Search is too old or cache is too big. Keep removing searches until that's no longer the case
+			//logger.debug("Remove from cache: " + search);
+			removeFromCache(search);
+			searchesToRemove--;
+			return true;
+		}
+		// Cache is no longer too big and the worthier searches are not too old.
+		return false;
+	}
+
 	private long calculateSizeBytes(Collection<Job> collection) {
 		// Estimate the total cache size
-		cacheSizeBytes = 0;
+		long size = 0;
 		for (Job search: collection) {
-			cacheSizeBytes += search.estimateSizeBytes();
+			size += search.estimateSizeBytes();
 		}
-		return cacheSizeBytes;
+		cacheSizeBytes = size;
+		return size;
 	}
 
 	/**
@@ -255,10 +424,11 @@ public class SearchCache {
 	 * Only applies if maxJobAgeSec >= 0.
 	 *
 	 * @param search the search to check
+	 * @param now the current time
 	 * @return true iff the search is too old
 	 */
-	private boolean searchTooOld(Job search) {
-		boolean tooOld = maxJobAgeSec >= 0 && search.cacheAge() > maxJobAgeSec;
+	private boolean searchTooOld(Job search, long now) {
+		boolean tooOld = maxJobAgeSec >= 0 && search.cacheAge(now) > maxJobAgeSec;
 		return tooOld;
 	}
 
@@ -268,7 +438,7 @@ public class SearchCache {
 	 * @return targeted max. size of the cache in bytes, or -1 for no limit
 	 */
 	public long getMaxSizeBytes() {
-		return maxSizeMegs;
+		return maxSizeMegs < 0 ? -1 : maxSizeMegs * 1000000;
 	}
 
 	/**
@@ -283,7 +453,7 @@ public class SearchCache {
 	 * @param maxSizeBytes targeted max. size of the cache in bytes, or -1 for no limit
 	 */
 	public void setMaxSizeBytes(long maxSizeBytes) {
-		this.maxSizeMegs = maxSizeBytes;
+		this.maxSizeMegs = maxSizeBytes < 0 ? -1 : maxSizeBytes / 1000000;
 		removeOldSearches();
 	}
 
@@ -336,8 +506,8 @@ public class SearchCache {
 
 	public int numberOfRunningSearches() {
 		int n = 0;
-		for (Job job: cachedSearches.values()) {
-			if (!job.finished() && !job.isWaitingForOtherJob() && job.getPriorityLevel() != Level.PAUSED) {
+		for (Job job: unfinishedSearches) {
+			if (!job.finished() && !job.isWaitingForOtherJob() && !job.isQueued() && job.getPriorityLevel() != Level.PAUSED) {
 				n++;
 			}
 		}
@@ -358,7 +528,7 @@ public class SearchCache {
 		this.minFreeMemTargetMegs = minFreeMemTargetBytes;
 	}
 
-	public DataObject getCacheStatusDataObject() {
+	public DataObjectMapElement getCacheStatusDataObject() {
 		DataObjectMapElement doCache = new DataObjectMapElement();
 		doCache.put("maxSizeBytes", getMaxSizeBytes());
 		doCache.put("maxNumberOfSearches", getMaxJobsToCache());
@@ -393,6 +563,12 @@ public class SearchCache {
 	 * @param newSearch the new search just started, or null if none.
 	 */
 	void performLoadManagement(Job newSearch) {
+		synchronized (maintenanceLock) {
+			performLoadManagementInternal(newSearch);
+		}
+	}
+
+	private void performLoadManagementInternal(Job newSearch) {
 
 		if (autoDetectMaxConcurrent) {
 			// Autodetect number of CPUs
@@ -403,24 +579,30 @@ public class SearchCache {
 			}
 		}
 
-		List<Job> searches = new ArrayList<>(cachedSearches.values());
-
-		// Sort the searches based on descending "worthiness"
+		// Sort the unfinished searches based on descending "worthiness"
+		// (finished searches don't need any CPU)
+		long now = System.currentTimeMillis();
+		List<JobPriority> searches = new ArrayList<>(unfinishedSearches.size());
+		for (Job search: unfinishedSearches) {
+			searches.add(new JobPriority(search, now));
+		}
 		Collections.sort(searches);
 
 		int coresLeft = maxConcurrentSearches;
 		int pauseSlotsLeft = maxPausedSearches;
 		//logger.debug("=== LOADMGR: START. cores=" + coresLeft + ", pauseSlots=" + pauseSlotsLeft);
 		//int cacheSlotsLeft = maxNumberOfJobs;
-		for (Job search: searches) {
+		for (JobPriority priority: searches) {
+			Job search = priority.getJob();
 			if (search.finished()) {
-				// Finished search. Keep in cache?
+				// Finished search (just now). Keep in cache?
 
 				// NOTE: we'll leave this to removeOldSearches() for now.
 				// Later we'll integrate the two.
 
-			} else if (search.isWaitingForOtherJob()) {
-				// Waiting, not taking up any CPU. Can run normally, but doesn't take a core.
+			} else if (search.isWaitingForOtherJob() || search.isQueued()) {
+				// Waiting (for another job or for an executor thread), not taking up
+				// any CPU. Can run normally, but doesn't take a core.
 				applyAction(search, ServerLoadQueryAction.RUN_NORMALLY);
 			} else {
 				// Running search. Run, pause or abort?
@@ -480,10 +662,27 @@ public class SearchCache {
 		}
 	}
 
-	private void removeFromCache(Job search) {
-		cachedSearches.remove(search.getParameters());
-		search.decrRef();
-		cacheSizeBytes -= search.estimateSizeBytes();
+	/**
+	 * Remove a search from the cache.
+	 *
+	 * Does nothing if the search was already removed (e.g. by another thread),
+	 * so the cache's reference is only released once.
+	 *
+	 * @param search the search to remove
+	 */
+	void removeFromCache(Job search) {
+		if (cachedSearches.remove(search.getParameters(), search)) {
+			search.setCache(null);
+			unfinishedSearches.remove(search);
+			Long size;
+			synchronized (finishedSearches) {
+				size = finishedSearches.remove(search);
+				if (size != null)
+					finishedSizeBytes -= size;
+			}
+			cacheSizeBytes -= size != null ? size : search.estimateSizeBytes();
+			search.decrRef();
+		}
 	}
 
 	private void abortSearch(Job search) {
@@ -491,6 +690,22 @@ public class SearchCache {
 		removeFromCache(search);
 	}
 
+	/**
+	 * How many searches may use a CPU core at the same time?
+	 * @return the maximum number of concurrently running searches
+	 */
+	public int getMaxConcurrentSearches() {
+		return maxConcurrentSearches;
+	}
+
+	/**
+	 * How many searches may be paused at the same time?
+	 * @return the maximum number of paused searches
+	 */
+	public int getMaxPausedSearches() {
+		return maxPausedSearches;
+	}
+
 	public void setServerLoadOptions(JSONObject jsonServerLoad) {
 		maxConcurrentSearches = 1;
 		if (jsonServerLoad != null)
@@ -2,7 +2,9 @@ package nl.inl.blacklab.server.search;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -14,19 +16,36 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
 
-import nl.inl.blacklab.perdocument.DocResults;
 import nl.inl.blacklab.queryParser.contextql.ContextualQueryLanguageParser;
 import nl.inl.blacklab.queryParser.corpusql.CorpusQueryLanguageParser;
 import nl.inl.blacklab.queryParser.corpusql.ParseException;
@@ -49,6 +68,8 @@ import nl.inl.blacklab.server.exceptions.InternalServerError;
 import nl.inl.blacklab.server.exceptions.NotAuthorized;
 import nl.inl.blacklab.server.exceptions.ServiceUnavailable;
 import nl.inl.blacklab.server.exceptions.TooManyRequests;
+import nl.inl.blacklab.server.index.IndexTask;
+import nl.inl.blacklab.server.index.IndexThread;
 import nl.inl.util.FileUtil;
 import nl.inl.util.FileUtil.FileTask;
 import nl.inl.util.MemoryUtil;
@@ -136,19 +157,90 @@ public class SearchManager {
 	private int maxPageSize;
 
 	/** Our current set of indices (with dir and mayViewContent setting) */
-	private Map<String, IndexParam> indexParam;
+	private ConcurrentMap<String, IndexParam> indexParam;
 
 	/**
 	 * The status of each index, i.e. "available" or "indexing". If no status is
 	 * stored here, the status is "available".
 	 */
-	Map<String, String> indexStatus;
+	ConcurrentMap<String, String> indexStatus;
 
-	/** The Searcher objects, one for each of the indices we can search. */
-	private Map<String, Searcher> searchers = new HashMap<>();
+	/** State of an index's Searcher in our registry */
+	enum SearcherState {
+		/** Being opened; requests for this index wait until it's open */
+		OPENING,
 
-//	/** The IndexJob objects, one for each of the indices we're adding to. */
-//	private Map<String, IndexJob> indexJobs = new HashMap<String, IndexJob>();
+		/** Open and ready for searching */
+		OPEN,
+
+		/** Removed from the registry and being closed; a new Searcher will be opened if needed */
+		CLOSING
+	}
+
+	/** An index in our registry: the task that opens its Searcher, and its state. */
+	private static class SearcherEntry {
+
+		/** Opens the Searcher (and gives it to anyone waiting for it) */
+		final FutureTask<Searcher> opener;
+
+		/** The Searcher's state */
+		final AtomicReference<SearcherState> state = new AtomicReference<>(SearcherState.OPENING);
+
+		/** The Searcher, once it's open (so we don't need to ask the opener) */
+		volatile Searcher searcher;
+
+		SearcherEntry(Callable<Searcher> opener) {
+			this.opener = new FutureTask<>(opener);
+		}
+	}
+
+	/** The Searcher objects, one for each of the indices we can search.
+	 *
+	 * Looking up an open index takes no locks. Each index is opened by its
+	 * own task, so a request for an index that is still being opened waits for
+	 * that index only. See getSearcher(). */
+	private ConcurrentMap<String, SearcherEntry> searchers = new ConcurrentHashMap<>();
+
+	/** Version of each open Searcher (see getIndexVersion()) */
+	private Map<Searcher, String> indexVersions = new ConcurrentHashMap<>();
+
+	/** How many Searchers we've opened (so each index version is unique within this run) */
+	private AtomicLong searchersOpened = new AtomicLong();
+
+	/** How long to keep a replaced Searcher open after the longest a search may
+	 *  take, for requests that are still writing a response using it */
+	private static final long RETIRED_SEARCHER_GRACE_MS = 60000;
+
+	/** Number of jobs using each Searcher (i.e. that have references to them);
+	 *  a replaced Searcher is only closed when none are left. See jobUsesSearcher(). */
+	private Map<Searcher, Integer> jobsUsingSearcher = new HashMap<>();
+
+	/** A Searcher that was replaced by a newer version, and when that happened. */
+	private static class RetiredSearcher {
+		final String indexName;
+
+		final SearcherEntry entry;
+
+		final long retiredAt = System.currentTimeMillis();
+
+		RetiredSearcher(String indexName, SearcherEntry entry) {
+			this.indexName = indexName;
+			this.entry = entry;
+		}
+	}
+
+	/** Replaced Searchers waiting to be closed, oldest first (see refreshSearcher()) */
+	private Queue<RetiredSearcher> retiredSearchers = new ConcurrentLinkedQueue<>();
+
+	/** The most recent indexing task for each of the indices we've added data to
+	 *  (so clients can check on its progress). */
+	private ConcurrentMap<String, IndexThread> indexThreads = new ConcurrentHashMap<>();
+
+	/** Runs indexing tasks in the background */
+	private ThreadPoolExecutor indexingPool;
+
+	/** How many indexing tasks may wait for a thread before we refuse new ones */
+	private static final int MAX_QUEUED_INDEXING_TASKS = 20;
 
 	/** Configured index collections directories */
 	private List<File> collectionsDirs;
@@ -162,9 +254,19 @@ public class SearchManager {
 	/** All running searches as well as recently run searches */
 	private SearchCache cache;
 
+	/** Keeps expensive grouped results on disk (or null if not configured) */
+	private GroupDiskCache groupDiskCache;
+
+	/** Where whole-index term frequency tables are stored (or null if not configured) */
+	private File termFreqDir;
+
 	/** Keeps track of running jobs per user, so we can limit this. */
 	private Map<String, Set<Job>> runningJobsPerUser = new HashMap<>();
 
+	/** Jobs that suspended requests are waiting for, with the number of requests
+	 *  holding each. See keepJobForSuspendedRequest(). */
+	private Map<Job, Integer> jobsForSuspendedRequests = new HashMap<>();
+
 	/** Default pattern language to use. [corpusql] */
 	private String defaultPatternLanguage;
 
@@ -212,6 +314,15 @@ public class SearchManager {
 	 */
 	private int clientCacheTimeSec;
 
+	/**
+	 * Responses larger than this are compressed, if the client accepts that
+	 * (-1 = never compress).
+	 */
+	private int responseCompressionThresholdBytes = 1024;
+
+	/** Compression level for responses (1 = fastest, 9 = best compression) */
+	private int responseCompressionLevel = 6;
+
 	/** Maximum allowed value for maxretrieve parameter (-1 = no limit). */
 	private int maxHitsToRetrieveAllowed;
 
@@ -231,6 +342,15 @@ public class SearchManager {
 	 */
 	private Thread loadManagerThread;
 
+	/** Runs our search jobs */
+	private JobExecutor jobExecutor;
+
+	/** Opens the indices when the server starts (or null if we don't do that) */
+	private ExecutorService warmUpPool;
+
+	/** Buffer size for reading forward index files during warm-up */
+	private static final int PREFETCH_BUFFER_SIZE = 65536;
+
 	public SearchManager(JSONObject properties) throws ConfigurationException {
 		logger.debug("SearchManager created");
 
@@ -304,6 +424,10 @@ public class SearchManager {
 			}
 
 			// Performance properties
+			JSONObject jsonServerLoad = null;
+			int indexWarmUpThreads = 2;
+			boolean indexWarmUpPrefetch = false;
+			int maxIndexingThreads = 1;
 			if (properties.has("performance")) {
 				JSONObject perfProp = properties.getJSONObject("performance");
 				minFreeMemForSearchMegs = JsonUtil.getIntProp(perfProp,
@@ -318,14 +442,37 @@ public class SearchManager {
 						"waitTimeInNonblockingModeMs", 100);
 				clientCacheTimeSec = JsonUtil.getIntProp(perfProp,
 						"clientCacheTimeSec", 3600);
+				responseCompressionThresholdBytes = JsonUtil.getIntProp(perfProp,
+						"responseCompressionThresholdBytes", 1024);
+				responseCompressionLevel = JsonUtil.getIntProp(perfProp,
+						"responseCompressionLevel", 6);
+				if (responseCompressionLevel < 1 || responseCompressionLevel > 9) {
+					logger.warn("Illegal responseCompressionLevel " + responseCompressionLevel + ", using 6");
+					responseCompressionLevel = 6;
+				}
+				indexWarmUpThreads = JsonUtil.getIntProp(perfProp,
+						"indexWarmUpThreads", 2);
+				indexWarmUpPrefetch = JsonUtil.getBooleanProp(perfProp,
+						"indexWarmUpPrefetch", false);
+				maxIndexingThreads = JsonUtil.getIntProp(perfProp,
+						"maxIndexingThreads", 1);
 
 				// Cache properties
 				JSONObject cacheProp = perfProp.getJSONObject("cache");
 
 				// Start with empty cache
 				cache = new SearchCache(cacheProp);
+				if (cacheProp.has("diskCacheDir")) {
+					groupDiskCache = new GroupDiskCache(new File(cacheProp.getString("diskCacheDir")),
+							JsonUtil.getIntProp(cacheProp, "diskCacheMinSearchTimeSec", 10),
+							JsonUtil.getIntProp(cacheProp, "diskCacheMaxSizeMegs", 1000));
+					termFreqDir = new File(cacheProp.getString("diskCacheDir"), "termfreq");
+					if (!termFreqDir.exists() && !termFreqDir.mkdirs()) {
+						logger.error("Could not create term frequency dir " + termFreqDir);
+						termFreqDir = null;
+					}
+				}
 
-				JSONObject jsonServerLoad = null;
 				if (perfProp.has("serverLoad")) {
 					// Load manager stuff (experimental)
 
@@ -338,11 +485,23 @@ public class SearchManager {
 				cache.setServerLoadOptions(jsonServerLoad);
 			} else {
 				cache = new SearchCache(); // default settings
+				cache.setServerLoadOptions(null);
 			}
 
+			// Thread pools for running jobs. By default, we have a thread for each search
+			// that may be running or paused at the same time; the load manager aborts
+			// any more than that anyway.
+			int defaultThreads = cache.getMaxConcurrentSearches() + cache.getMaxPausedSearches();
+			int maxSearchThreads = defaultThreads, maxCountThreads = defaultThreads;
+			if (jsonServerLoad != null) {
+				maxSearchThreads = JsonUtil.getIntProp(jsonServerLoad, "maxSearchThreads", defaultThreads);
+				maxCountThreads = JsonUtil.getIntProp(jsonServerLoad, "maxCountThreads", defaultThreads);
+			}
+			jobExecutor = new JobExecutor(maxSearchThreads, maxCountThreads);
+
 			// Find the indices
-			indexParam = new HashMap<>();
-			indexStatus = new HashMap<>();
+			indexParam = new ConcurrentHashMap<>();
+			indexStatus = new ConcurrentHashMap<>();
 			boolean indicesFound = false;
 			if (properties.has("indices")) {
 				JSONObject indicesMap = properties.getJSONObject("indices");
@@ -462,6 +621,12 @@ public class SearchManager {
 			} else {
 				logger.info("No auth system configured");
 			}
+
+			createIndexingPool(Math.max(maxIndexingThreads, 1));
+
+			// Open the indices in the background, so they're ready when needed
+			if (indexWarmUpThreads > 0)
+				warmUpIndices(indexWarmUpThreads, indexWarmUpPrefetch);
 		} catch (JSONException e) {
 			e.printStackTrace();
 			throw new ConfigurationException("Invalid JSON in blacklab-server.json; please validate: " + e.getMessage());
@@ -473,7 +638,8 @@ public class SearchManager {
 				"viewgroup", "collator", "first", "number", "wordsaroundhit",
 				"hitstart", "hitend", "facets", "waitfortotal",
 				"includetokencount", "usecontent", "wordstart", "wordend",
-				"calc", "maxretrieve", "maxcount", "property", "sensitive");
+				"calc", "maxretrieve", "maxcount", "property", "sensitive",
+				"facetvalues", "termprefix", "collocmeasure");
 
 		// Set up the parameter default values
 		defaultParameterValues = new HashMap<>();
@@ -500,6 +666,9 @@ public class SearchManager {
 				"" + Hits.getDefaultMaxHitsToCount());
 		defaultParameterValues.put("sensitive", defaultCaseSensitive && defaultDiacriticsSensitive ? "yes" : "no");
 		defaultParameterValues.put("property", "word");
+		defaultParameterValues.put("termprefix", "");
+		defaultParameterValues.put("collocmeasure", JobCollocations.MEASURE_FREQUENCY);
+		defaultParameterValues.put("facetvalues", "" + JobFacets.DEFAULT_FACET_VALUES);
 
 		loadManagerThread = new LoadManagerThread(this);
 		loadManagerThread.start();
@@ -517,12 +686,32 @@ public class SearchManager {
 		loadManagerThread.interrupt();
 		loadManagerThread = null;
 
+		// Stop opening indices
+		if (warmUpPool != null) {
+			warmUpPool.shutdownNow();
+			warmUpPool = null;
+		}
+
+		// Stop indexing
+		indexingPool.shutdownNow();
+
 		// Stop any running searches
 		cache.clearCache(true);
+		jobExecutor.shutdown();
 	}
 
-	public synchronized void performLoadManagement() {
+	/**
+	 * Get the executor that runs our search jobs.
+	 *
+	 * @return the job executor
+	 */
+	JobExecutor getJobExecutor() {
+		return jobExecutor;
+	}
+
+	public void performLoadManagement() {
 		cache.performLoadManagement(null);
+		closeRetiredSearchers();
 	}
 
 	public User determineCurrentUser(HttpServlet servlet, HttpServletRequest request) {
@@ -580,21 +769,20 @@ public class SearchManager {
 	 *            the index name
 	 * @return the index dir and mayViewContents setting
 	 */
-	private synchronized IndexParam getIndexParam(String indexName) {
+	private IndexParam getIndexParam(String indexName) {
 		//logger.debug("@PERF getIndexParam");
 		try {
 
 		// Already in the cache?
-		if (indexParam.containsKey(indexName)) {
-			IndexParam p = indexParam.get(indexName);
-
+		IndexParam p = indexParam.get(indexName);
+		if (p != null) {
 			// Check if it's still there.
 			if (p.getDir().canRead())
 				return p;
 
 			// Directory isn't accessible any more; remove from cache
-			indexParam.remove(indexName);
-			cache.clearCacheForIndex(indexName);
+			if (indexParam.remove(indexName, p))
+				cache.clearCacheForIndex(indexName);
 		}
 
 		// Is it a private index?
@@ -607,7 +795,7 @@ public class SearchManager {
 
 		// Find it in a collection
 		for (File collection : collectionsDirs) {
-			IndexParam p = findIndexInCollection(indexName, collection, true, "");
+			p = findIndexInCollection(indexName, collection, true, "");
 			if (p != null)
 				return p;
 		}
@@ -638,15 +826,20 @@ public class SearchManager {
 	 * @param parts
 	 * @return the index parameters if found.
 	 */
-	private synchronized IndexParam findIndexInCollection(String name, File collection,
+	private IndexParam findIndexInCollection(String name, File collection,
 			boolean addToCache, String userIdPrefix) {
 		// Look for the index in this collection dir
 		File dir = new File(collection, name);
 		if (dir.canRead() && Searcher.isIndex(dir)) {
 			// Found it. Add to the cache and return
+			// (if another thread beat us to it, use theirs, so there's only one
+			//  IndexParam per index)
 			IndexParam p = new IndexParam(dir);
-			if (addToCache)
-				indexParam.put(userIdPrefix + name, p);
+			if (addToCache) {
+				IndexParam existing = indexParam.putIfAbsent(userIdPrefix + name, p);
+				if (existing != null)
+					return existing;
+			}
 			return p;
 		}
 		return null;
@@ -667,50 +860,368 @@ public class SearchManager {
 		return indexName.matches("[a-zA-Z][a-zA-Z0-9_\\-]*");
 	}
 
-	public synchronized void closeSearcher(String indexName) throws BlsException {
+	public void closeSearcher(String indexName) throws BlsException {
 		if (!isValidIndexName(indexName))
 			throw new IllegalIndexName(indexName);
-		if (searchers.containsKey(indexName)) {
-			searchers.get(indexName).close();
-			searchers.remove(indexName);
-			indexStatus.remove(indexName);
-			cache.clearCacheForIndex(indexName);
+		SearcherEntry entry = searchers.remove(indexName);
+		if (entry == null)
+			return;
+		cache.clearCacheForIndex(indexName);
+		closeSearcher(indexName, entry);
+	}
+
+	/**
+	 * Close the Searcher from an entry we've removed from the registry.
+	 *
+	 * If it's still being opened, waits for that first.
+	 *
+	 * @param indexName the index
+	 * @param entry the entry
+	 * @throws BlsException if we were interrupted while waiting
+	 */
+	private void closeSearcher(String indexName, SearcherEntry entry) throws BlsException {
+		entry.state.set(SearcherState.CLOSING);
+		Searcher searcher;
+		try {
+			searcher = entry.opener.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailable("Interrupted while waiting for index '" + indexName + "' to open.");
+		} catch (ExecutionException | CancellationException e) {
+			// Index was never opened; nothing to close
+			return;
+		}
+		indexVersions.remove(searcher);
+		PidLookupCache.invalidate(searcher);
+		DocInfoCache.invalidate(searcher);
+		searcher.close();
+	}
+
+	/**
+	 * Start using the latest version of an index, e.g. after data was added.
+	 *
+	 * If the index has changed, a new Searcher is opened in this thread while
+	 * the current one keeps serving requests. Then the new Searcher replaces the
+	 * current one, and only cached searches that used the current one are
+	 * removed. The replaced Searcher is closed when requests and jobs no longer
+	 * use it (see closeRetiredSearchers()).
+	 *
+	 * @param indexName the index
+	 * @throws BlsException if the index could not be opened
+	 */
+	public void refreshSearcher(String indexName) throws BlsException {
+		if (!isValidIndexName(indexName))
+			throw new IllegalIndexName(indexName);
+		SearcherEntry oldEntry = searchers.get(indexName);
+		Searcher oldSearcher = oldEntry == null ? null : oldEntry.searcher;
+		if (oldSearcher == null) {
+			// Not open (or still being opened, so it might not see the
+			// latest changes); just (re)open it.
+			closeSearcher(indexName);
+			getSearcher(indexName);
+			return;
+		}
+		if (isCurrent(oldSearcher)) {
+			// Nothing has changed
+			return;
+		}
+		IndexParam par = getIndexParam(indexName);
+		if (par == null) {
+			// Index is gone
+			closeSearcher(indexName);
+			return;
+		}
+
+		// Open the new version and swap it in
+		SearcherEntry newEntry = new SearcherEntry(new SearcherOpener(indexName, par));
+		openSearcher(newEntry);
+		waitForSearcher(indexName, newEntry);
+		if (!searchers.replace(indexName, oldEntry, newEntry)) {
+			// Closed or replaced by another thread in the meantime
+			closeSearcher(indexName, newEntry);
+			return;
+		}
+		cache.clearCacheForSearcher(oldSearcher);
+		retiredSearchers.add(new RetiredSearcher(indexName, oldEntry));
+		logger.debug("Refreshed index '" + indexName + "', version " + indexVersions.get(newEntry.searcher));
+	}
+
+	/**
+	 * Does this Searcher see the latest committed version of its index?
+	 *
+	 * @param searcher the Searcher
+	 * @return true if it's up to date, false if not (or if we can't tell)
+	 */
+	private static boolean isCurrent(Searcher searcher) {
+		IndexReader reader = searcher.getIndexReader();
+		if (reader instanceof DirectoryReader) {
+			try {
+				return ((DirectoryReader) reader).isCurrent();
+			} catch (IOException e) {
+				logger.warn("Could not check if index is current: " + e.getMessage());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Close Searchers that were replaced by a newer version a while ago.
+	 *
+	 * A replaced Searcher is closed when no job (cached, running or used by a
+	 * request) uses it anymore, but not before the longest a search may run
+	 * plus RETIRED_SEARCHER_GRACE_MS have passed, so requests that have
+	 * released their jobs can finish writing their response.
+	 */
+	private void closeRetiredSearchers() {
+		long closeBefore = System.currentTimeMillis() - SearchCache.maxSearchTimeSec * 1000L - RETIRED_SEARCHER_GRACE_MS;
+		for (RetiredSearcher retired: retiredSearchers) {
+			if (retired.retiredAt > closeBefore)
+				break; // (the rest were retired even more recently)
+			if (isUsedByJobs(retired.entry.searcher))
+				continue;
+			if (!retiredSearchers.remove(retired))
+				continue; // another thread got it
+			try {
+				closeSearcher(retired.indexName, retired.entry);
+			} catch (BlsException | RuntimeException e) {
+				logger.error("Could not close old version of index '" + retired.indexName + "': " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Keep track of the number of jobs using a Searcher.
+	 *
+	 * Called by Job when it gets its first reference or loses its last one.
+	 *
+	 * @param searcher the Searcher
+	 * @param uses true if a job started using it, false if a job stopped using it
+	 */
+	void jobUsesSearcher(Searcher searcher, boolean uses) {
+		synchronized (jobsUsingSearcher) {
+			Integer n = jobsUsingSearcher.get(searcher);
+			int newNumber = (n == null ? 0 : n) + (uses ? 1 : -1);
+			if (newNumber > 0)
+				jobsUsingSearcher.put(searcher, newNumber);
+			else
+				jobsUsingSearcher.remove(searcher);
+		}
+	}
+
+	/**
+	 * Is a Searcher still used by any jobs?
+	 *
+	 * @param searcher the Searcher
+	 * @return true iff there are jobs using it
+	 */
+	private boolean isUsedByJobs(Searcher searcher) {
+		synchronized (jobsUsingSearcher) {
+			return jobsUsingSearcher.containsKey(searcher);
 		}
 	}
 
+	/**
+	 * Is this the Searcher we currently use for this index?
+	 *
+	 * @param indexName the index
+	 * @param searcher the Searcher
+	 * @return false if the Searcher was replaced by a newer version (or the index was closed)
+	 */
+	boolean isCurrentSearcher(String indexName, Searcher searcher) {
+		SearcherEntry entry = searchers.get(indexName);
+		return entry != null && entry.searcher == searcher;
+	}
+
+	/**
+	 * Determine the version string for a Searcher we just opened.
+	 *
+	 * @param searcher the Searcher
+	 * @return the version string
+	 */
+	private String determineIndexVersion(Searcher searcher) {
+		return createdAt + "-" + searchersOpened.incrementAndGet() + "-" + getCommitGeneration(searcher);
+	}
+
+	/**
+	 * Get a string identifying an index, for keying results stored on disk.
+	 *
+	 * Consists of the index directory and the time the index was created, so a
+	 * (private) index that is deleted and created again under the same name
+	 * doesn't get the old index's results (its commit generations start over).
+	 *
+	 * @param searcher the Searcher
+	 * @return the identity string
+	 */
+	static String getIndexIdentity(Searcher searcher) {
+		return searcher.getIndexDirectory().getAbsolutePath() + "|" + searcher.getIndexStructure().getTimeCreated();
+	}
+
+	/**
+	 * Get the Lucene commit generation a Searcher sees.
+	 *
+	 * Unlike the index version, this stays the same when the server is restarted.
+	 *
+	 * @param searcher the Searcher
+	 * @return the commit generation, or -1 if unknown
+	 */
+	static long getCommitGeneration(Searcher searcher) {
+		IndexReader reader = searcher.getIndexReader();
+		if (reader instanceof DirectoryReader) {
+			try {
+				return ((DirectoryReader) reader).getIndexCommit().getGeneration();
+			} catch (IOException e) {
+				logger.warn("Could not determine index commit generation: " + e.getMessage());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get a string identifying the version of an index.
+	 *
+	 * Includes the Lucene commit generation of the Searcher. The version changes
+	 * whenever the Searcher is reopened, e.g. after documents have been added, so it
+	 * can be used to validate cached responses (ETags).
+	 *
+	 * @param indexName the index
+	 * @return the version string
+	 * @throws BlsException if the index could not be opened
+	 */
+	public String getIndexVersion(String indexName) throws BlsException {
+		return indexVersions.get(getSearcher(indexName));
+	}
+
 	/**
 	 * Get the Searcher object for the specified index.
 	 *
+	 * Looking up an open index doesn't take any locks. If the index hasn't been
+	 * opened yet, it is opened in this thread; if another thread is already
+	 * opening it, we wait for that. Either way, requests for other indices
+	 * aren't held up.
+	 *
 	 * @param indexName
 	 *            the index we want to search
 	 * @return the Searcher object for that index
 	 * @throws BlsException
 	 *             if not found or open error
 	 */
-	@SuppressWarnings("deprecation")
-	// for call to _setPidField() and _setContentViewable()
-	public synchronized Searcher getSearcher(String indexName)
+	public Searcher getSearcher(String indexName)
 			throws BlsException {
 		//logger.debug("@PERF getSearcher");
-		try {
+		if (!isValidIndexName(indexName))
+			throw new IllegalIndexName(indexName);
+
+		while (true) {
+			SearcherEntry entry = searchers.get(indexName);
+			if (entry == null) {
+				// Not open yet. Register a new entry and open it,
+				// unless another thread beats us to it.
+				IndexParam par = getIndexParam(indexName);
+				if (par == null) {
+					throw new IndexNotFound(indexName);
+				}
+				SearcherEntry newEntry = new SearcherEntry(new SearcherOpener(indexName, par));
+				entry = searchers.putIfAbsent(indexName, newEntry);
+				if (entry == null) {
+					entry = newEntry;
+					openSearcher(entry);
+				}
+			}
 
-			if (!isValidIndexName(indexName))
-				throw new IllegalIndexName(indexName);
+			Searcher searcher = entry.searcher;
+			if (searcher == null) {
+				// Still being opened by another thread (or opening failed)
+				searcher = waitForSearcher(indexName, entry);
+			}
+			if (entry.state.get() == SearcherState.CLOSING) {
+				// Closed while we were looking; find or open the new one
+				continue;
+			}
+			if (searcher.getIndexDirectory().canRead())
+				return searcher;
 
-			if (searchers.containsKey(indexName)) {
-				Searcher searcher = searchers.get(indexName);
-				if (searcher.getIndexDirectory().canRead())
-					return searcher;
-				// Index was (re)moved; remove Searcher from cache.
-				searchers.remove(indexName);
+			// Index was (re)moved; remove Searcher from cache.
+			if (searchers.remove(indexName, entry)) {
 				indexStatus.remove(indexName);
 				cache.clearCacheForIndex(indexName);
-				// Maybe we can find an index with this name elsewhere?
-			}
-			IndexParam par = getIndexParam(indexName);
-			if (par == null) {
-				throw new IndexNotFound(indexName);
+				closeSearcher(indexName, entry);
 			}
+			// Maybe we can find an index with this name elsewhere?
+		}
+	}
+
+	/**
+	 * Open the Searcher for an entry we've just registered.
+	 *
+	 * @param entry the entry
+	 */
+	private static void openSearcher(SearcherEntry entry) {
+		entry.opener.run();
+		Searcher searcher = getIfOpened(entry.opener);
+		if (searcher != null) {
+			entry.searcher = searcher;
+			entry.state.compareAndSet(SearcherState.OPENING, SearcherState.OPEN);
+		}
+	}
+
+	/**
+	 * Get the Searcher from a task that has finished opening it.
+	 *
+	 * @param task the task
+	 * @return the Searcher, or null if the task isn't done or opening failed
+	 */
+	private static Searcher getIfOpened(FutureTask<Searcher> task) {
+		if (!task.isDone())
+			return null;
+		try {
+			return task.get();
+		} catch (InterruptedException | ExecutionException | CancellationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Wait for another thread to open a Searcher.
+	 *
+	 * @param indexName the index
+	 * @param entry the index's entry in the registry
+	 * @return the Searcher
+	 * @throws BlsException if opening failed, or we were interrupted
+	 */
+	private Searcher waitForSearcher(String indexName, SearcherEntry entry) throws BlsException {
+		try {
+			return entry.opener.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailable("Interrupted while waiting for index '" + indexName + "' to open.");
+		} catch (ExecutionException e) {
+			// Couldn't open the index. Forget about it, so the next request tries again.
+			searchers.remove(indexName, entry);
+			if (e.getCause() instanceof BlsException)
+				throw (BlsException) e.getCause();
+			throw new InternalServerError("Could not open index '" + indexName
+					+ "'", 27, e.getCause());
+		}
+	}
+
+	/**
+	 * Opens an index and checks its settings against our configuration.
+	 */
+	private class SearcherOpener implements Callable<Searcher> {
+
+		private String indexName;
+
+		private IndexParam par;
+
+		SearcherOpener(String indexName, IndexParam par) {
+			this.indexName = indexName;
+			this.par = par;
+		}
+
+		@SuppressWarnings("deprecation")
+		// for call to _setPidField() and _setContentViewable()
+		@Override
+		public Searcher call() throws BlsException {
 			File indexDir = par.getDir();
 			Searcher searcher;
 			try {
@@ -721,7 +1232,7 @@ public class SearchManager {
 				throw new InternalServerError("Could not open index '" + indexName
 						+ "'", 27, e);
 			}
-			searchers.put(indexName, searcher);
+			indexVersions.put(searcher, determineIndexVersion(searcher));
 
 			// Figure out the pid from the index metadata and/or BLS config.
 			String indexPid = searcher.getIndexStructure().pidField();
@@ -761,9 +1272,182 @@ public class SearchManager {
 			}
 
 			return searcher;
+		}
+	}
 
+	/**
+	 * Open all public indices in the background.
+	 *
+	 * Requests for an index that is still being opened will wait for it;
+	 * requests for other indices are not affected.
+	 *
+	 * @param numberOfThreads how many indices to open at the same time
+	 * @param prefetch if true, read the forward index files first, so they're
+	 *   in the OS disk cache
+	 */
+	private void warmUpIndices(int numberOfThreads, final boolean prefetch) {
+		Collection<String> indexNames = getAvailablePublicIndices();
+		logger.info("Opening " + indexNames.size() + " indices using " + numberOfThreads + " threads");
+		warmUpPool = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+			private AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BlsWarmUp-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		for (final String indexName: indexNames) {
+			warmUpPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.currentTimeMillis();
+					try {
+						if (prefetch)
+							prefetchForwardIndex(getIndexDir(indexName));
+						Searcher searcher = getSearcher(indexName);
+						logger.debug("Warm-up: opened index '" + indexName + "' in "
+								+ (System.currentTimeMillis() - start) + " ms");
+						if (termFreqDir != null) {
+							// Make sure the most common frequency list is ready
+							String alt = defaultCaseSensitive && defaultDiacriticsSensitive ? "s" : "i";
+							getTermFreqTable(searcher, JobTermFreq.luceneField(searcher, "word", alt));
+						}
+					} catch (BlsException | RuntimeException e) {
+						logger.error("Warm-up: could not open index '" + indexName + "': " + e.getMessage());
+					}
+				}
+			});
+		}
+		// Threads will go away when all indices have been opened
+		warmUpPool.shutdown();
+	}
+
+	/**
+	 * Create the thread pool that adds data to indices.
+	 *
+	 * The number of waiting tasks is limited, so an upload burst can't
+	 * exhaust memory or disk space; see startIndexing().
+	 *
+	 * @param numberOfThreads how many indexing tasks may run at the same time
+	 */
+	private void createIndexingPool(int numberOfThreads) {
+		indexingPool = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_INDEXING_TASKS),
+				new ThreadFactory() {
+			private AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BlsIndexer-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Add data to an index in the background.
+	 *
+	 * The index status should already have been set to "indexing". The current
+	 * Searcher keeps serving requests while we index. When the task is done,
+	 * the index status is set back to "available" and the Searcher is refreshed
+	 * (see refreshSearcher()).
+	 *
+	 * @param indexName the index to add to
+	 * @param task the indexing task
+	 * @return the IndexThread that will run the task
+	 * @throws ServiceUnavailable if too many indexing tasks are waiting already
+	 */
+	public IndexThread startIndexing(final String indexName, IndexTask task) throws ServiceUnavailable {
+		final IndexThread indexThread = new IndexThread(task, new Runnable() {
+			@Override
+			public void run() {
+				indexingDone(indexName);
+			}
+		});
+		indexThreads.put(indexName, indexThread);
+		try {
+			indexingPool.execute(indexThread);
+		} catch (RejectedExecutionException e) {
+			indexThreads.remove(indexName, indexThread);
+			throw new ServiceUnavailable("Too many indexing tasks are waiting right now. Please try again later.");
+		}
+		return indexThread;
+	}
+
+	/**
+	 * Called when an indexing task is done (successfully or not).
+	 *
+	 * Switches to the new version of the index (if it changed), then makes it
+	 * available for adding data again.
+	 *
+	 * @param indexName the index we added data to
+	 */
+	private void indexingDone(String indexName) {
+		try {
+			refreshSearcher(indexName);
+		} catch (BlsException | RuntimeException e) {
+			logger.error("Could not reopen index '" + indexName + "' after indexing: " + e.getMessage());
 		} finally {
-			//logger.debug("@PERF getSearcher EXIT");
+			try {
+				setIndexStatus(indexName, null, "available");
+			} catch (BlsException | RuntimeException e) {
+				logger.error("Could not reset status of index '" + indexName + "' after indexing: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Get the most recent indexing task for an index.
+	 *
+	 * @param indexName the index
+	 * @return the indexing task, or null if we haven't added data to this index
+	 */
+	public IndexThread getIndexThread(String indexName) {
+		return indexThreads.get(indexName);
+	}
+
+	/**
+	 * Read an index's forward index files, so they're in the OS disk cache.
+	 *
+	 * @param indexDir the index directory
+	 */
+	private static void prefetchForwardIndex(File indexDir) {
+		File[] forwardIndexDirs = indexDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isDirectory() && f.getName().startsWith("fi_");
+			}
+		});
+		if (forwardIndexDirs == null)
+			return;
+		byte[] buffer = new byte[PREFETCH_BUFFER_SIZE];
+		for (File dir: forwardIndexDirs) {
+			prefetchFiles(dir, buffer);
+		}
+	}
+
+	private static void prefetchFiles(File dir, byte[] buffer) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f: files) {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			if (f.isDirectory()) {
+				prefetchFiles(f, buffer);
+				continue;
+			}
+			try (InputStream is = new FileInputStream(f)) {
+				while (is.read(buffer) >= 0) {
+					// just read it
+				}
+			} catch (IOException e) {
+				logger.warn("Could not prefetch " + f + ": " + e.getMessage());
+			}
 		}
 	}
 
@@ -879,13 +1563,8 @@ public class SearchManager {
 		}
 
 		// Remove stuff from the cache, close Searcher
-		cache.clearCacheForIndex(indexName);
-		Searcher searcher = getSearcher(indexName);
-		if (searcher != null) {
-			searchers.remove(indexName);
-			indexStatus.remove(indexName);
-			searcher.close();
-		}
+		closeSearcher(indexName);
+		indexThreads.remove(indexName);
 
 		// Can we even delete the whole tree? If not, don't even try.
 		try {
@@ -947,15 +1626,11 @@ public class SearchManager {
 	 * @param pid
 	 *            the pid string (or Lucene doc id if we don't use a pid)
 	 * @return the document id, or -1 if it doesn't exist
+	 * @throws BlsException if the pid field could not be read
 	 */
-	public static int getLuceneDocIdFromPid(Searcher searcher, String pid)
-			{
+	public static int getLuceneDocIdFromPid(Searcher searcher, String pid) throws BlsException {
 		//logger.debug("@PERF getLuceneDocIdFromPid");
-		try {
-
-		String pidField = searcher.getIndexStructure().pidField(); // getIndexParam(indexName,
-																	// user).getPidField();
-		// Searcher searcher = getSearcher(indexName, user);
+		String pidField = searcher.getIndexStructure().pidField();
 		if (pidField == null || pidField.length() == 0) {
 			int luceneDocId;
 			try {
@@ -967,36 +1642,30 @@ public class SearchManager {
 			}
 			return luceneDocId;
 		}
-		boolean lowerCase = false; // HACK in case pid field is incorrectly
-									// lowercased
-		DocResults docResults;
-		while (true) {
-			String p = lowerCase ? pid.toLowerCase() : pid;
-			TermQuery documentFilterQuery = new TermQuery(new Term(pidField, p));
-			docResults = searcher.queryDocuments(documentFilterQuery);
-			if (docResults.size() > 1) {
-				// Should probably throw a fatal exception, but sometimes
-				// documents
-				// accidentally occur twice in a dataset...
-				// TODO: make configurable whether or not a fatal exception is
-				// thrown
-				logger.error("Pid must uniquely identify a document, but it has "
-						+ docResults.size() + " hits: " + pid);
-			}
-			if (docResults.size() == 0) {
-				if (lowerCase)
-					return -1; // tried with and without lowercasing; doesn't
-								// exist
-				lowerCase = true; // try lowercase now
-			} else {
-				// size == 1, found!
-				break;
-			}
+		try {
+			return PidLookupCache.get(searcher).getDocId(pidField, pid);
+		} catch (IOException e) {
+			throw new InternalServerError("Error looking up document pid", 32, e);
 		}
-		return docResults.get(0).getDocId();
+	}
 
-		} finally {
-			//logger.debug("@PERF getLuceneDocIdFromPid EXIT");
+	/**
+	 * Get the information (pid, metadata, length) for a number of documents.
+	 *
+	 * Each document is read at most once, and recently shown documents are
+	 * remembered (see DocInfoCache).
+	 *
+	 * @param searcher our index
+	 * @param docIds Lucene doc ids (may contain duplicates)
+	 * @return the information per doc id
+	 * @throws BlsException if the documents could not be read
+	 */
+	public static Map<Integer, DocInfo> getDocInfos(Searcher searcher, int[] docIds) throws BlsException {
+		//logger.debug("@PERF getDocInfos");
+		try {
+			return DocInfoCache.get(searcher).getDocInfos(docIds);
+		} catch (IOException e) {
+			throw new InternalServerError("Error reading document information", 33, e);
 		}
 	}
 
@@ -1023,7 +1692,7 @@ public class SearchManager {
 	 *
 	 * @return the list of index names
 	 */
-	public synchronized Collection<String> getAvailablePublicIndices() {
+	public Collection<String> getAvailablePublicIndices() {
 		Set<String> indices = new HashSet<>();
 
 		// Scan collections for any new indices
@@ -1031,25 +1700,23 @@ public class SearchManager {
 			for (File f : dir.listFiles(readableDirFilter)) {
 				if (!indexParam.containsKey(f.getName()) && Searcher.isIndex(f)) {
 					// New one; add it
-					indexParam.put(f.getName(), new IndexParam(f));
+					indexParam.putIfAbsent(f.getName(), new IndexParam(f));
 				}
 			}
 		}
 
 		// Gather list of public indices, and
 		// remove indices that are no longer available
-		List<String> remove = new ArrayList<>();
-		for (Map.Entry<String, IndexParam> e : indexParam.entrySet()) {
+		Iterator<Map.Entry<String, IndexParam>> it = indexParam.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, IndexParam> e = it.next();
 			if (!e.getValue().getDir().canRead()) {
-				remove.add(e.getKey());
+				it.remove();
 			} else {
 				if (!e.getKey().contains(":"))
 					indices.add(e.getKey());
 			}
 		}
-		for (String name : remove) {
-			indexParam.remove(name);
-		}
 
 		return indices;
 	}
@@ -1128,30 +1795,265 @@ public class SearchManager {
 
 	public JobHitsGrouped searchHitsGrouped(User user, SearchParameters par)
 			throws BlsException {
-		SearchParameters parBasic = par.copyWithOnly("indexname", "patt",
-				"pattlang", "filter", "filterlang", "group", "sort",
-				"maxretrieve", "maxcount");
-		parBasic.put("jobclass", "JobHitsGrouped");
-		return (JobHitsGrouped) search(user, parBasic);
+		return (JobHitsGrouped) search(user, groupedParameters(par, "JobHitsGrouped"));
 	}
 
 	public JobDocsGrouped searchDocsGrouped(User user, SearchParameters par)
 			throws BlsException {
+		return (JobDocsGrouped) search(user, groupedParameters(par, "JobDocsGrouped"));
+	}
+
+	public JobHitsGroupedViewGroup searchHitsGroupedViewGroup(User user, SearchParameters par)
+			throws BlsException {
+		return (JobHitsGroupedViewGroup) search(user, viewGroupParameters(par, "JobHitsGroupedViewGroup"));
+	}
+
+	public JobDocsGroupedViewGroup searchDocsGroupedViewGroup(User user, SearchParameters par)
+			throws BlsException {
+		return (JobDocsGroupedViewGroup) search(user, viewGroupParameters(par, "JobDocsGroupedViewGroup"));
+	}
+
+	private static SearchParameters viewGroupParameters(SearchParameters par, String jobClass) {
+		SearchParameters parBasic = par.copyWithOnly("indexname", "patt",
+				"pattlang", "filter", "filterlang", "group", "viewgroup", "sort",
+				"maxretrieve", "maxcount");
+		String sort = parBasic.get("sort");
+		if (sort == null || sort.length() == 0)
+			parBasic.remove("sort"); // so the unsorted group is cached under one key
+		parBasic.put("jobclass", jobClass);
+		return parBasic;
+	}
+
+	private static SearchParameters groupedParameters(SearchParameters par, String jobClass) {
 		SearchParameters parBasic = par.copyWithOnly("indexname", "patt",
 				"pattlang", "filter", "filterlang", "group", "sort",
 				"maxretrieve", "maxcount");
-		parBasic.put("jobclass", "JobDocsGrouped");
-		return (JobDocsGrouped) search(user, parBasic);
+		String sort = parBasic.get("sort");
+		if (sort == null || sort.length() == 0)
+			parBasic.remove("sort"); // so unsorted groups are cached under one key
+		parBasic.put("jobclass", jobClass);
+		return parBasic;
 	}
 
-	public JobFacets searchFacets(User user, SearchParameters par)
+	/**
+	 * Get hit groups from the disk cache, if they're there.
+	 *
+	 * @param par the search parameters
+	 * @return the groups, or null if not found
+	 * @throws BlsException if the index could not be opened
+	 */
+	public GroupListing getDiskCachedHitGroups(SearchParameters par) throws BlsException {
+		return getFromDiskCache(groupedParameters(par, "JobHitsGrouped"));
+	}
+
+	/**
+	 * Get document groups from the disk cache, if they're there.
+	 *
+	 * @param par the search parameters
+	 * @return the groups, or null if not found
+	 * @throws BlsException if the index could not be opened
+	 */
+	public GroupListing getDiskCachedDocGroups(SearchParameters par) throws BlsException {
+		return getFromDiskCache(groupedParameters(par, "JobDocsGrouped"));
+	}
+
+	/**
+	 * Get a listing from the disk cache, if it's there.
+	 *
+	 * @param jobPar the parameters of the job that produces the listing
+	 * @return the listing, or null if not found (or if there's no disk cache)
+	 * @throws BlsException if the index could not be opened
+	 */
+	private GroupListing getFromDiskCache(SearchParameters jobPar) throws BlsException {
+		if (groupDiskCache == null)
+			return null;
+		return groupDiskCache.get(jobPar, getSearcher(jobPar.getString("indexname")));
+	}
+
+	/**
+	 * Get a listing from the disk cache, if it's there.
+	 *
+	 * @param jobPar the parameters of the job that produces the listing
+	 * @param searcher the index searched
+	 * @return the listing, or null if not found (or if there's no disk cache)
+	 */
+	GroupListing getFromDiskCache(SearchParameters jobPar, Searcher searcher) {
+		if (groupDiskCache == null)
+			return null;
+		return groupDiskCache.get(jobPar, searcher);
+	}
+
+	/**
+	 * Store a listing in the disk cache, if it was expensive enough to compute.
+	 *
+	 * @param jobPar the parameters of the job that produced the listing
+	 * @param searcher the index searched
+	 * @param listing the listing
+	 * @param searchTimeMs how long it took to compute
+	 */
+	void storeInDiskCache(SearchParameters jobPar, Searcher searcher, GroupListing listing, long searchTimeMs) {
+		if (groupDiskCache != null)
+			groupDiskCache.put(jobPar, searcher, listing, searchTimeMs);
+	}
+
+	/**
+	 * Get the frequencies of all terms in a property, for the whole index.
+	 *
+	 * They're determined from the Lucene term statistics, which is much faster
+	 * than counting the terms in each document. If the disk cache is enabled,
+	 * the table is stored there, so we only do this once for each version of
+	 * the index.
+	 *
+	 * @param searcher the index
+	 * @param luceneField the Lucene field for the property and alternative
+	 * @return the table, or null if we can't determine it this way (no such
+	 *   field, or the index has deleted documents)
+	 */
+	TermFreqTable getTermFreqTable(Searcher searcher, String luceneField) {
+		IndexReader reader = searcher.getIndexReader();
+		if (reader.hasDeletions())
+			return null; // (Lucene's statistics would include the deleted documents)
+
+		// Did we store this table before?
+		// (the key is the same for all versions of the index, so we can remove
+		//  older versions; the version includes the index's identity, so an index
+		//  that was deleted and created again doesn't get the old one's table)
+		long generation = getCommitGeneration(searcher);
+		String key = GroupDiskCache.hash(searcher.getIndexDirectory().getAbsolutePath() + "|" + luceneField);
+		File file = null;
+		if (termFreqDir != null && generation >= 0) {
+			String version = GroupDiskCache.hash(getIndexIdentity(searcher) + "|" + generation);
+			file = new File(termFreqDir, key + "-" + version + ".termfreq");
+			if (file.exists()) {
+				try {
+					return TermFreqTable.read(file);
+				} catch (IOException e) {
+					logger.warn("Could not read " + file + ", removing it: " + e.getMessage());
+					file.delete();
+				}
+			}
+		}
+
+		try {
+			long start = System.currentTimeMillis();
+			TermFreqTable table = TermFreqTable.fromIndex(reader, luceneField);
+			logger.debug("Determined term frequencies for " + luceneField + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			if (table != null && file != null)
+				storeTermFreqTable(table, file, key);
+			return table;
+		} catch (IOException e) {
+			logger.error("Could not determine term frequencies for " + luceneField + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Store a term frequency table, replacing those for older versions of the index.
+	 *
+	 * @param table the table
+	 * @param file the file to store it in
+	 * @param key start of the file name, the same for all versions of the index
+	 */
+	private void storeTermFreqTable(TermFreqTable table, File file, final String key) {
+		File tmpFile = new File(termFreqDir, file.getName() + ".tmp" + Thread.currentThread().getId());
+		try {
+			table.write(tmpFile);
+			if (!tmpFile.renameTo(file)) {
+				file.delete();
+				if (!tmpFile.renameTo(file))
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+			}
+		} catch (IOException e) {
+			logger.error("Could not write " + file + ": " + e.getMessage());
+			tmpFile.delete();
+			return;
+		}
+		File[] oldFiles = termFreqDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().startsWith(key + "-") && f.getName().endsWith(".termfreq");
+			}
+		});
+		if (oldFiles != null) {
+			for (File f: oldFiles) {
+				if (!f.equals(file))
+					f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Is the disk cache for expensive grouped results enabled?
+	 * @return true iff it is
+	 */
+	boolean isDiskCacheEnabled() {
+		return groupDiskCache != null;
+	}
+
+	/**
+	 * Count the documents in a result set for the requested facets.
+	 *
+	 * If a group is being viewed (group and viewgroup parameters), only the
+	 * documents in that group are counted.
+	 *
+	 * @param user user creating the job
+	 * @param par the search parameters
+	 * @param viewGroupJobClass the job class for the group being viewed
+	 *   (JobHitsGroupedViewGroup or JobDocsGroupedViewGroup); ignored if
+	 *   we're not viewing a group
+	 * @return the facets job
+	 * @throws BlsException on error
+	 */
+	public JobFacets searchFacets(User user, SearchParameters par, String viewGroupJobClass)
 			throws BlsException {
 		SearchParameters parBasic = par.copyWithOnly("facets", "indexname",
-				"patt", "pattlang", "filter", "filterlang");
+				"patt", "pattlang", "filter", "filterlang", "maxretrieve", "maxcount");
+		int facetValues = par.getInteger("facetvalues");
+		if (facetValues <= 0 || facetValues > maxPageSize)
+			facetValues = JobFacets.DEFAULT_FACET_VALUES;
+		parBasic.put("facetvalues", "" + facetValues);
+		String group = par.get("group"), viewGroup = par.get("viewgroup");
+		if (group != null && group.length() > 0 && viewGroup != null && viewGroup.length() > 0) {
+			parBasic.put("group", group);
+			parBasic.put("viewgroup", viewGroup);
+			parBasic.put("facetsof", viewGroupJobClass);
+		}
 		parBasic.put("jobclass", "JobFacets");
 		return (JobFacets) search(user, parBasic);
 	}
 
+	public JobCollocations searchCollocations(User user, SearchParameters par)
+			throws BlsException {
+		SearchParameters parBasic = par.copyWithOnly("indexname", "patt",
+				"pattlang", "filter", "filterlang", "maxretrieve", "maxcount",
+				"wordsaroundhit", "property", "sensitive");
+		String group = par.get("group"), viewGroup = par.get("viewgroup");
+		if (group != null && group.length() > 0 && viewGroup != null && viewGroup.length() > 0) {
+			// Collocations of the hits in one group
+			parBasic.put("group", group);
+			parBasic.put("viewgroup", viewGroup);
+		}
+		String measure = par.getString("collocmeasure");
+		if (measure != null && measure.length() > 0 && !measure.equals(JobCollocations.MEASURE_FREQUENCY)) {
+			if (!measure.equals(JobCollocations.MEASURE_MI) && !measure.equals(JobCollocations.MEASURE_T_SCORE)
+					&& !measure.equals(JobCollocations.MEASURE_LOG_LIKELIHOOD))
+				throw new BadRequest("UNKNOWN_MEASURE", "Unknown collocation measure '" + measure
+						+ "'. Supported are frequency, mi, tscore and loglikelihood.");
+			parBasic.put("collocmeasure", measure);
+		}
+		parBasic.put("jobclass", "JobCollocations");
+		return (JobCollocations) search(user, parBasic);
+	}
+
+	public JobTermFreq searchTermFreq(User user, SearchParameters par)
+			throws BlsException {
+		SearchParameters parBasic = par.copyWithOnly("indexname", "filter",
+				"filterlang", "property", "sensitive");
+		parBasic.put("jobclass", "JobTermFreq");
+		return (JobTermFreq) search(user, parBasic);
+	}
+
 	/**
 	 * Start a new search or return an existing Search object corresponding to
 	 * these search parameters.
@@ -1174,28 +2076,39 @@ public class SearchManager {
 			// Search the cache / running jobs for this search, create new if not
 			// found.
 			boolean performSearch = false;
-			Job search;
-			synchronized (this) {
-				search = cache.get(searchParameters);
-				if (search == null) {
-					// Not found in cache
-
-					// Do we have enough memory to start a new search?
-					long freeMegs = MemoryUtil.getFree() / 1000000;
-					if (freeMegs < minFreeMemForSearchMegs) {
-						cache.removeOldSearches(); // try to free up space for next
-													// search
-						logger.warn("Can't start new search, not enough memory ("
-								+ freeMegs + "M < " + minFreeMemForSearchMegs
-								+ "M)");
-						logger.warn("(NOTE: make sure Tomcat's max heap mem is set to an appropriate value!)");
-						throw new ServiceUnavailable("The server seems to be under heavy load right now. Please try again later.");
-					}
-					// logger.debug("Enough free memory: " + freeMegs + "M");
+			boolean haveReference = false;
+			Job search = cache.get(searchParameters);
+			if (search == null) {
+				// A request we suspended may be waiting for this search
+				// (if the cache is disabled, or the job wasn't or is no longer cached)
+				search = getJobForSuspendedRequest(searchParameters);
+				haveReference = search != null;
+			}
+			if (search == null) {
+				// Not found in cache
+
+				// Do we have enough memory to start a new search?
+				long freeMegs = MemoryUtil.getFree() / 1000000;
+				if (freeMegs < minFreeMemForSearchMegs) {
+					cache.removeOldSearches(); // try to free up space for next
+												// search
+					logger.warn("Can't start new search, not enough memory ("
+							+ freeMegs + "M < " + minFreeMemForSearchMegs
+							+ "M)");
+					logger.warn("(NOTE: make sure Tomcat's max heap mem is set to an appropriate value!)");
+					throw new ServiceUnavailable("The server seems to be under heavy load right now. Please try again later.");
+				}
+				// logger.debug("Enough free memory: " + freeMegs + "M");
 
-					// Is this user allowed to start another search?
+				// Create a new search object with these parameters
+				Job newSearch = Job.create(this, user, searchParameters);
+
+				// Is this user allowed to start another search?
+				// (checked and registered at once, so concurrent requests from
+				//  the same user can't all get past the limit)
+				String uniqueId = user.uniqueId();
+				synchronized (runningJobsPerUser) {
 					int numRunningJobs = 0;
-					String uniqueId = user.uniqueId();
 					Set<Job> runningJobs = runningJobsPerUser.get(uniqueId);
 					Set<Job> newRunningJobs = new HashSet<>();
 					if (runningJobs != null) {
@@ -1206,46 +2119,57 @@ public class SearchManager {
 							}
 						}
 					}
+					runningJobsPerUser.put(uniqueId, newRunningJobs); // refresh the list
 					if (numRunningJobs >= maxRunningJobsPerUser) {
 						// User has too many running jobs. Can't start another one.
-						runningJobsPerUser.put(uniqueId, newRunningJobs); // refresh
-																			// the
-																			// list
 						logger.warn("Can't start new search, user already has "
 								+ numRunningJobs + " jobs running.");
 						throw new TooManyRequests("You already have too many running searches. Please wait for some previous searches to complete before starting new ones.");
 					}
+					newRunningJobs.add(newSearch);
+				}
 
-					// Create a new search object with these parameters and place it
-					// in the cache
-					search = Job.create(this, user, searchParameters);
+				// Place it in the cache. If an identical search was added in the
+				// meantime, use that one instead.
+				try {
+					search = cache.putIfAbsent(newSearch);
 					if (search == null) {
-						logger.error("search == null, unpossiblez!!!");
+						search = newSearch;
+						performSearch = true;
+					}
+				} finally {
+					if (!performSearch) {
+						// Not added (we'll use the existing search, or adding
+						// failed); don't count it as running
+						synchronized (runningJobsPerUser) {
+							runningJobsPerUser.get(uniqueId).remove(newSearch);
+						}
 					}
-					cache.put(search);
-
-					// Update running jobs
-					newRunningJobs.add(search);
-					runningJobsPerUser.put(uniqueId, newRunningJobs);
-
-					performSearch = true;
 				}
 			}
 
-			if (performSearch) {
-				// Start the search, waiting a short time in case it's a fast search
-				search.perform(waitTimeInNonblockingModeMs);
-			}
-//			else {
-//				search.incrementClientsWaiting();
-//			}
+			// Take our reference before starting the search, so it (and
+			// its Searcher) counts as being used while it runs, even if it
+			// wasn't cached.
+			if (!haveReference)
+				search.incrRef();
+			try {
+				if (performSearch) {
+					// Start the search, waiting a short time in case it's a fast search
+					search.perform(waitTimeInNonblockingModeMs);
+				}
+//				else {
+//					search.incrementClientsWaiting();
+//				}
 
-			// If the search thread threw an exception, rethrow it now.
-			if (search.threwException()) {
-				search.rethrowException();
+				// If the search thread threw an exception, rethrow it now.
+				if (search.threwException()) {
+					search.rethrowException();
+				}
+			} catch (BlsException | RuntimeException e) {
+				search.decrRef();
+				throw e;
 			}
-
-			search.incrRef();
 			return search;
 
 		} finally {
@@ -1253,6 +2177,63 @@ public class SearchManager {
 		}
 	}
 
+	/**
+	 * Keep a job for a request that is suspended until the job is finished.
+	 *
+	 * When the request is handled again, search() will find the job here, even
+	 * if the cache is disabled, the job was evicted, or it wasn't cached because
+	 * its Searcher was replaced. Otherwise, we would start the search all over.
+	 *
+	 * The request's reference to the job is kept until it calls
+	 * releaseJobForSuspendedRequest().
+	 *
+	 * @param job the job the request is waiting for (caller must hold a reference)
+	 */
+	public void keepJobForSuspendedRequest(Job job) {
+		synchronized (jobsForSuspendedRequests) {
+			Integer n = jobsForSuspendedRequests.get(job);
+			jobsForSuspendedRequests.put(job, n == null ? 1 : n + 1);
+		}
+	}
+
+	/**
+	 * A request that was suspended doesn't need a job anymore.
+	 *
+	 * Releases the request's reference to the job.
+	 *
+	 * @param job the job passed to keepJobForSuspendedRequest()
+	 */
+	public void releaseJobForSuspendedRequest(Job job) {
+		synchronized (jobsForSuspendedRequests) {
+			Integer n = jobsForSuspendedRequests.get(job);
+			if (n != null) {
+				if (n <= 1)
+					jobsForSuspendedRequests.remove(job);
+				else
+					jobsForSuspendedRequests.put(job, n - 1);
+			}
+			job.decrRef(); // (while locked, so getJobForSuspendedRequest() can't find it without a reference left)
+		}
+	}
+
+	/**
+	 * Find a job with these parameters that a suspended request is waiting for.
+	 *
+	 * @param searchParameters the search parameters
+	 * @return the job (with a reference taken for the caller), or null if there is none
+	 */
+	private Job getJobForSuspendedRequest(SearchParameters searchParameters) {
+		synchronized (jobsForSuspendedRequests) {
+			for (Job job: jobsForSuspendedRequests.keySet()) {
+				if (job.getParameters().equals(searchParameters)) {
+					job.incrRef();
+					return job;
+				}
+			}
+		}
+		return null;
+	}
+
 	public long getMinFreeMemForSearchMegs() {
 		return minFreeMemForSearchMegs;
 	}
@@ -1438,11 +2419,13 @@ public class SearchManager {
 		return maxContextSize;
 	}
 
-	public synchronized DataObject getCacheStatusDataObject() {
-		return cache.getCacheStatusDataObject();
+	public DataObject getCacheStatusDataObject() {
+		DataObjectMapElement doStatus = cache.getCacheStatusDataObject();
+		doStatus.put("jobExecutor", jobExecutor.getStatusDataObject());
+		return doStatus;
 	}
 
-	public synchronized DataObject getCacheContentsDataObject(boolean debugInfo) {
+	public DataObject getCacheContentsDataObject(boolean debugInfo) {
 		return cache.getContentsDataObject(debugInfo);
 	}
 
@@ -1462,6 +2445,14 @@ public class SearchManager {
 		return clientCacheTimeSec;
 	}
 
+	public int getResponseCompressionThresholdBytes() {
+		return responseCompressionThresholdBytes;
+	}
+
+	public int getResponseCompressionLevel() {
+		return responseCompressionLevel;
+	}
+
 	/**
 	 * Give advice for how long to wait to check the status of a search.
 	 *
@@ -1515,17 +2506,15 @@ public class SearchManager {
 	 * @throws BlsException
 	 */
 	public String getIndexStatus(String indexName) throws BlsException {
-		synchronized (indexStatus) {
-			String status = indexStatus.get(indexName);
-			if (status == null) {
-				if (getSearcher(indexName).isEmpty()) {
-					status = "empty";
-				} else {
-					status = "available";
-				}
+		String status = indexStatus.get(indexName);
+		if (status == null) {
+			if (getSearcher(indexName).isEmpty()) {
+				status = "empty";
+			} else {
+				status = "available";
 			}
-			return status;
 		}
+		return status;
 	}
 
 	/**
@@ -1547,12 +2536,19 @@ public class SearchManager {
 	 */
 	public String setIndexStatus(String indexName, String checkOldStatus,
 			String status) throws BlsException {
-		synchronized (indexStatus) {
-			String oldStatus = getIndexStatus(indexName);
+		while (true) {
+			String storedStatus = indexStatus.get(indexName);
+			String oldStatus = storedStatus == null ? getIndexStatus(indexName) : storedStatus;
 			if (checkOldStatus != null && !oldStatus.matches(checkOldStatus))
 				return oldStatus;
-			indexStatus.put(indexName, status);
-			return status;
+			boolean updated;
+			if (storedStatus == null)
+				updated = indexStatus.putIfAbsent(indexName, status) == null;
+			else
+				updated = indexStatus.replace(indexName, storedStatus, status);
+			if (updated)
+				return status;
+			// Another thread changed the status in the meantime; check again
 		}
 	}
 
@@ -1577,7 +2573,7 @@ public class SearchManager {
 		return indices;
 	}
 
-	public synchronized void clearCache() {
+	public void clearCache() {
 		cache.clearCache();
 	}
 
@@ -1596,7 +2592,7 @@ public class SearchManager {
 	 * @param job the job to remove
 	 */
 	public void removeFromCache(Job job) {
-		removeFromCache(job);
+		cache.removeFromCache(job);
 	}
 
 }
@@ -3,6 +3,7 @@ package nl.inl.blacklab.server.search;
 import java.util.Map;
 import java.util.TreeMap;
 
+import nl.inl.blacklab.datastream.DataStream;
 import nl.inl.blacklab.server.dataobject.DataObject;
 import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
 
@@ -97,4 +98,17 @@ public class SearchParameters extends TreeMap<String, String> {
 		return d;
 	}
 
+	/**
+	 * Write the parameters to a data stream (as a map).
+	 *
+	 * @param ds where to write the parameters
+	 */
+	public void dataStream(DataStream ds) {
+		ds.startMap();
+		for (Map.Entry<String, String> e: entrySet()) {
+			ds.entry(e.getKey(), e.getValue());
+		}
+		ds.endMap();
+	}
+
 }
@@ -1,13 +1,14 @@
 package nl.inl.blacklab.server.search;
 
-import java.lang.Thread.UncaughtExceptionHandler;
-
 import org.apache.log4j.Logger;
 
 /**
- * A (background) thread the search is executed in.
+ * The (background) task a search is executed in.
+ *
+ * Runs on one of the JobExecutor's pool threads, or in the thread of a job that
+ * needs the results and took the task from the queue before it was started.
  */
-final class SearchThread extends Thread implements UncaughtExceptionHandler {
+final class SearchThread implements Runnable {
 	protected static final Logger logger = Logger.getLogger(SearchThread.class);
 
 	/** The search to execute */
@@ -19,44 +20,37 @@ final class SearchThread extends Thread implements UncaughtExceptionHandler {
 	 */
 	SearchThread(Job search) {
 		this.search = search;
-		setUncaughtExceptionHandler(this);
 	}
 
 	/**
-	 * Run the thread, performing the requested search.
+	 * Run the task, performing the requested search.
 	 */
 	@Override
 	public void run() {
+		Job job = search;
+		if (job == null)
+			return; // already run
+		search = null; // make sure Job gets garbage collected
+
+		if (!job.startExecution()) {
+			// Job was cancelled before it got started
+			return;
+		}
 		try {
-			search.performSearch();
-			search.setFinished();
+			job.performSearch();
+			job.setFinished();
 		} catch (Throwable e) {
 			// NOTE: we catch Throwable here (while it's normally good practice to
 			//  catch only Exception and derived classes) because we need to know if
-			//  our thread crashed or not. The Throwable will be re-thrown by the
-			//  main thread, so any non-Exception Throwables will then go uncaught
-			//  as they "should".
-
-			// We've also set an UncaughtExceptionHandler (the thread object itself)
-			// which does the same thing, because apparently some exceptions can occur
-			// outside the run() method or aren't caught here for some other reason).
-			// Even then, some low-level ones (like OutOfMemoryException) seem to slip by.
-			if (search != null) {
-				search.thrownException = e;
-				search.setFinished();
-			}
+			//  our search crashed or not. The Throwable will be re-thrown by the
+			//  thread waiting for the results, so any non-Exception Throwables will
+			//  then go uncaught as they "should".
+			logger.debug("Search threw an exception, saving it:\n" + e.getClass().getName() + ": " + e.getMessage());
+			job.thrownException = e;
+			job.setFinished();
+		} finally {
+			job.endExecution();
 		}
-		search = null; // make sure Job gets garbage collected
-	}
-
-	@Override
-	public void uncaughtException(Thread t, Throwable e) {
-		logger.debug("Search thread threw an exception, saving it:\n" + e.getClass().getName() + ": " + e.getMessage());
-		if (search != null) {
-			search.thrownException = e;
-			search.setFinished();
-		}
-		search = null; // make sure Job gets garbage collected
 	}
 
 }
@@ -0,0 +1,295 @@
+package nl.inl.blacklab.server.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A term frequency list, kept in compact arrays.
+ *
+ * Terms are stored in alphabetical order (so we can quickly find all terms
+ * with a prefix), together with the order of the terms by descending
+ * frequency (so we can quickly page through the list).
+ *
+ * Whole-index tables are built from the Lucene term statistics, which is
+ * much faster than counting the terms in each document.
+ */
+public class TermFreqTable {
+
+	/** Identifies our files ("BLTF") */
+	private static final int MAGIC = 0x424C5446;
+
+	/** Version of the file format */
+	private static final int FORMAT_VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	/** Rough estimate of the memory taken by one term string */
+	private static final int SIZE_OF_TERM_BYTES = 64;
+
+	/** The terms, in alphabetical order */
+	private String[] terms;
+
+	/** Frequency of each term */
+	private long[] frequencies;
+
+	/** Term indexes, by descending frequency (then alphabetically) */
+	private int[] byFrequency;
+
+	/** Sum of the frequencies of the terms in byFrequency */
+	private long totalFrequency;
+
+	private TermFreqTable(String[] terms, long[] frequencies, int[] byFrequency) {
+		this.terms = terms;
+		this.frequencies = frequencies;
+		this.byFrequency = byFrequency;
+		long total = 0;
+		for (int i: byFrequency) {
+			total += frequencies[i];
+		}
+		totalFrequency = total;
+	}
+
+	/**
+	 * Create a table from the frequencies we counted.
+	 *
+	 * @param freq frequency per term
+	 * @return the table
+	 */
+	static TermFreqTable fromMap(Map<String, Integer> freq) {
+		String[] terms = freq.keySet().toArray(new String[freq.size()]);
+		Arrays.sort(terms);
+		long[] frequencies = new long[terms.length];
+		for (int i = 0; i < terms.length; i++) {
+			frequencies[i] = freq.get(terms[i]);
+		}
+		return new TermFreqTable(terms, frequencies, sortByFrequency(frequencies, 0, terms.length));
+	}
+
+	/**
+	 * Create a table of the frequencies of all terms in a Lucene field.
+	 *
+	 * Note that Lucene's term statistics include deleted documents until
+	 * their segments are merged, so don't use this if the index has deletions.
+	 *
+	 * @param reader the index
+	 * @param luceneField the field (a property of a complex field, including its alternative)
+	 * @return the table, or null if there's no such field
+	 * @throws IOException on error reading the index
+	 */
+	static TermFreqTable fromIndex(IndexReader reader, String luceneField) throws IOException {
+		Terms luceneTerms = MultiFields.getTerms(reader, luceneField);
+		if (luceneTerms == null)
+			return null;
+		String[] terms = new String[1000];
+		long[] frequencies = new long[1000];
+		int n = 0;
+		boolean sorted = true;
+		TermsEnum termsEnum = luceneTerms.iterator(null);
+		BytesRef term;
+		while ((term = termsEnum.next()) != null) {
+			if (n == terms.length) {
+				terms = Arrays.copyOf(terms, n * 2);
+				frequencies = Arrays.copyOf(frequencies, n * 2);
+			}
+			terms[n] = term.utf8ToString();
+			frequencies[n] = termsEnum.totalTermFreq();
+			if (n > 0 && terms[n - 1].compareTo(terms[n]) > 0)
+				sorted = false; // (Lucene's order differs from String's for some characters)
+			n++;
+		}
+		terms = Arrays.copyOf(terms, n);
+		frequencies = Arrays.copyOf(frequencies, n);
+		if (!sorted)
+			sortAlphabetically(terms, frequencies);
+		return new TermFreqTable(terms, frequencies, sortByFrequency(frequencies, 0, n));
+	}
+
+	/**
+	 * Sort terms and their frequencies alphabetically.
+	 *
+	 * @param terms the terms
+	 * @param frequencies the frequencies (sorted along with the terms)
+	 */
+	private static void sortAlphabetically(String[] terms, long[] frequencies) {
+		String[] sortedTerms = terms.clone();
+		Arrays.sort(sortedTerms);
+		long[] copy = frequencies.clone();
+		// (terms are unique, so we can find each term's new position)
+		for (int i = 0; i < terms.length; i++) {
+			frequencies[Arrays.binarySearch(sortedTerms, terms[i])] = copy[i];
+		}
+		System.arraycopy(sortedTerms, 0, terms, 0, terms.length);
+	}
+
+	/**
+	 * Determine the order of (a range of) terms by descending frequency.
+	 *
+	 * Ties are ordered alphabetically. We sort primitive keys (frequency in
+	 * the high bits, term index in the low bits), so no objects are created.
+	 *
+	 * @param frequencies frequency per term
+	 * @param start first term index
+	 * @param end term index after the last one
+	 * @return term indexes, by descending frequency
+	 */
+	private static int[] sortByFrequency(long[] frequencies, int start, int end) {
+		long[] keys = new long[end - start];
+		for (int i = start; i < end; i++) {
+			long freq = Math.min(frequencies[i], Integer.MAX_VALUE);
+			keys[i - start] = ((Integer.MAX_VALUE - freq) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			order[i] = (int)keys[i];
+		}
+		return order;
+	}
+
+	/**
+	 * Get the terms starting with a prefix.
+	 *
+	 * @param prefix the prefix
+	 * @return table with only those terms (shares our arrays)
+	 */
+	public TermFreqTable withPrefix(String prefix) {
+		if (prefix.length() == 0)
+			return this;
+		int start = Arrays.binarySearch(terms, prefix);
+		if (start < 0)
+			start = -start - 1;
+		int end = start;
+		while (end < terms.length && terms[end].startsWith(prefix)) {
+			end++;
+		}
+		return new TermFreqTable(terms, frequencies, sortByFrequency(frequencies, start, end));
+	}
+
+	/**
+	 * Look up the frequency of a term.
+	 *
+	 * @param term the term
+	 * @return the frequency, or 0 if the term doesn't occur
+	 */
+	public long frequencyOf(String term) {
+		int i = Arrays.binarySearch(terms, term);
+		return i < 0 ? 0 : frequencies[i];
+	}
+
+	/**
+	 * Get the number of terms.
+	 * @return number of terms
+	 */
+	public int size() {
+		return byFrequency.length;
+	}
+
+	/**
+	 * Get a term.
+	 * @param i index in the list (sorted by descending frequency)
+	 * @return the term
+	 */
+	public String getTerm(int i) {
+		return terms[byFrequency[i]];
+	}
+
+	/**
+	 * Get the frequency of a term.
+	 * @param i index in the list (sorted by descending frequency)
+	 * @return the frequency
+	 */
+	public long getFrequency(int i) {
+		return frequencies[byFrequency[i]];
+	}
+
+	/**
+	 * Get the sum of all frequencies.
+	 * @return the total frequency
+	 */
+	public long getTotalFrequency() {
+		return totalFrequency;
+	}
+
+	/**
+	 * Estimate the memory used by the table.
+	 * @return estimated size in bytes
+	 */
+	long estimateSizeBytes() {
+		// term string and reference, frequency, index
+		return (long)terms.length * (SIZE_OF_TERM_BYTES + 8 + 8 + 4);
+	}
+
+	/**
+	 * Write the table to a file.
+	 *
+	 * @param file the file
+	 * @throws IOException on write error
+	 */
+	void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(terms.length);
+			for (int i = 0; i < terms.length; i++) {
+				byte[] term = terms[i].getBytes(UTF8);
+				out.writeInt(term.length);
+				out.write(term);
+				out.writeLong(frequencies[i]);
+			}
+			for (int i: byFrequency) {
+				out.writeInt(i);
+			}
+		}
+	}
+
+	/**
+	 * Read a table from a file.
+	 *
+	 * @param file the file
+	 * @return the table
+	 * @throws IOException on read error, or if this is not a table file
+	 */
+	static TermFreqTable read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("Not a term frequency file, or wrong version");
+			int n = in.readInt();
+			if (n < 0)
+				throw new IOException("Term frequency file is corrupt");
+			String[] terms = new String[n];
+			long[] frequencies = new long[n];
+			for (int i = 0; i < n; i++) {
+				int length = in.readInt();
+				if (length < 0)
+					throw new IOException("Term frequency file is corrupt");
+				byte[] term = new byte[length];
+				in.readFully(term);
+				terms[i] = new String(term, UTF8);
+				frequencies[i] = in.readLong();
+			}
+			int[] byFrequency = new int[n];
+			for (int i = 0; i < n; i++) {
+				byFrequency[i] = in.readInt();
+				if (byFrequency[i] < 0 || byFrequency[i] >= n)
+					throw new IOException("Term frequency file is corrupt");
+			}
+			return new TermFreqTable(terms, frequencies, byFrequency);
+		}
+	}
+
+}
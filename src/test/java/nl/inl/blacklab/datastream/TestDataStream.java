@@ -0,0 +1,138 @@
+package nl.inl.blacklab.datastream;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.inl.blacklab.server.dataobject.DataFormat;
+import nl.inl.blacklab.server.dataobject.DataObject;
+import nl.inl.blacklab.server.dataobject.DataObjectContextList;
+import nl.inl.blacklab.server.dataobject.DataObjectList;
+import nl.inl.blacklab.server.dataobject.DataObjectMapAttribute;
+import nl.inl.blacklab.server.dataobject.DataObjectMapElement;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDataStream {
+
+	static List<String> names = Arrays.asList("punct", "word");
+
+	static List<String> values = Arrays.asList(" ", "the", " ", "<fox>");
+
+	private static DataObject dataObject() {
+		DataObjectMapElement summary = new DataObjectMapElement();
+		summary.put("searchTime", 12);
+		summary.put("stillCounting", false);
+		DataObjectMapElement hit = new DataObjectMapElement();
+		hit.put("docPid", "a&b");
+		hit.put("left", new DataObjectContextList(names, values));
+		DataObjectList hits = new DataObjectList("hit");
+		hits.add(hit);
+		DataObjectMapAttribute terms = new DataObjectMapAttribute("term", "text");
+		terms.put("fox", 3);
+		DataObjectMapElement response = new DataObjectMapElement();
+		response.put("summary", summary);
+		response.put("hits", hits);
+		response.put("termFreq", terms);
+		return response;
+	}
+
+	private static void stream(DataStream ds) {
+		ds.startEntry("summary").startMap()
+			.entry("searchTime", 12)
+			.entry("stillCounting", false)
+		.endMap().endEntry();
+		ds.startEntry("hits").startList()
+			.startItem("hit").startMap()
+				.entry("docPid", "a&b")
+				.startEntry("left").contextList(names, values).endEntry()
+			.endMap().endItem()
+		.endList().endEntry();
+		ds.startEntry("termFreq").startMap()
+			.attrEntry("term", "text", "fox", 3)
+		.endMap().endEntry();
+	}
+
+	/** A list of docs, each with a list of snippets, each with a list of words */
+	private static DataObject nestedListDataObject() {
+		DataObjectList docs = new DataObjectList("doc");
+		for (int i = 0; i < 2; i++) {
+			DataObjectList words = new DataObjectList("word");
+			words.add("the");
+			words.add("fox");
+			DataObjectMapElement snippet = new DataObjectMapElement();
+			snippet.put("words", words);
+			DataObjectList snippets = new DataObjectList("snippet");
+			snippets.add(snippet);
+			DataObjectMapElement doc = new DataObjectMapElement();
+			doc.put("docPid", "doc" + i);
+			doc.put("snippets", snippets);
+			docs.add(doc);
+		}
+		DataObjectMapElement response = new DataObjectMapElement();
+		response.put("docs", docs);
+		return response;
+	}
+
+	private static void streamNestedList(DataStream ds) {
+		ds.startEntry("docs").startList();
+		for (int i = 0; i < 2; i++) {
+			ds.startItem("doc").startMap()
+				.entry("docPid", "doc" + i)
+				.startEntry("snippets").startList()
+					.startItem("snippet").startMap()
+						.startEntry("words").startList()
+							.item("word", "the")
+							.item("word", "fox")
+						.endList().endEntry()
+					.endMap().endItem()
+				.endList().endEntry()
+			.endMap().endItem();
+		}
+		ds.endList().endEntry();
+	}
+
+	private static void assertSameOutput(boolean nestedList, DataFormat format, boolean prettyPrint, String jsonpCallback) throws IOException {
+		StringWriter expected = new StringWriter();
+		DataObject dataObject = nestedList ? nestedListDataObject() : dataObject();
+		dataObject.serializeDocument("blacklabResponse", expected, format, prettyPrint, jsonpCallback);
+
+		StringWriter actual = new StringWriter();
+		PrintWriter out = new PrintWriter(actual);
+		DataStream ds = DataStream.create(format, out, prettyPrint, jsonpCallback);
+		ds.startDocument("blacklabResponse");
+		if (nestedList)
+			streamNestedList(ds);
+		else
+			stream(ds);
+		ds.endDocument();
+		out.flush();
+
+		Assert.assertEquals(expected.toString(), actual.toString());
+	}
+
+	@Test
+	public void sameAsDataObjectJson() throws IOException {
+		assertSameOutput(false, DataFormat.JSON, false, "");
+		assertSameOutput(false, DataFormat.JSON, true, "");
+		assertSameOutput(false, DataFormat.JSON, false, "callback");
+	}
+
+	@Test
+	public void sameAsDataObjectXml() throws IOException {
+		assertSameOutput(false, DataFormat.XML, false, "");
+		assertSameOutput(false, DataFormat.XML, true, "");
+	}
+
+	@Test
+	public void nestedListSameAsDataObject() throws IOException {
+		assertSameOutput(true, DataFormat.XML, false, "");
+		assertSameOutput(true, DataFormat.XML, true, "");
+		assertSameOutput(true, DataFormat.JSON, false, "");
+		assertSameOutput(true, DataFormat.JSON, true, "");
+	}
+
+}
@@ -0,0 +1,165 @@
+package nl.inl.blacklab.server.search;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestGroupDiskCache {
+
+	/** Identities with 1-, 2-, 3- and 4-byte UTF-8 characters (and an empty one) */
+	static String[] identities = { "str:the", "str:één", "str:日本語", "str:𝄞 clef", "" };
+
+	static String[] displays = { "the", "één", "日本語", "𝄞 clef", "" };
+
+	static int[] sizes = { 12, 7, 3, 1, 0 };
+
+	private static GroupListing listing(final String[] ids, final String[] disp, final int[] sz) {
+		return new GroupListing() {
+			@Override
+			public int numberOfGroups() {
+				return ids.length;
+			}
+
+			@Override
+			public String getIdentity(int i) {
+				return ids[i];
+			}
+
+			@Override
+			public String getIdentityDisplay(int i) {
+				return disp[i];
+			}
+
+			@Override
+			public int getSize(int i) {
+				return sz[i];
+			}
+		};
+	}
+
+	private static GroupListing writeAndRead(GroupListing listing) throws IOException {
+		File file = File.createTempFile("TestGroupDiskCache", ".groups");
+		try {
+			GroupDiskCache.write(file, listing);
+			return GroupDiskCache.read(file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void assertSameGroups(GroupListing expected, GroupListing actual) {
+		Assert.assertEquals(expected.numberOfGroups(), actual.numberOfGroups());
+		for (int i = 0; i < expected.numberOfGroups(); i++) {
+			Assert.assertEquals(expected.getIdentity(i), actual.getIdentity(i));
+			Assert.assertEquals(expected.getIdentityDisplay(i), actual.getIdentityDisplay(i));
+			Assert.assertEquals(expected.getSize(i), actual.getSize(i));
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		GroupListing listing = listing(identities, displays, sizes);
+		listing.hasHitCounts = true;
+		listing.numberOfHits = 1000;
+		listing.numberOfHitsRetrieved = 900;
+		listing.stoppedCountingHits = false;
+		listing.stoppedRetrievingHits = true;
+		listing.numberOfDocs = 40;
+		listing.numberOfDocsRetrieved = 38;
+		listing.largestGroupSize = 12;
+		listing.totalSize = 23;
+
+		GroupListing read = writeAndRead(listing);
+		assertSameGroups(listing, read);
+		Assert.assertTrue(read.hasHitCounts());
+		Assert.assertEquals(1000, read.getNumberOfHits());
+		Assert.assertEquals(900, read.getNumberOfHitsRetrieved());
+		Assert.assertFalse(read.stoppedCountingHits());
+		Assert.assertTrue(read.stoppedRetrievingHits());
+		Assert.assertEquals(40, read.getNumberOfDocs());
+		Assert.assertEquals(38, read.getNumberOfDocsRetrieved());
+		Assert.assertEquals(12, read.getLargestGroupSize());
+		Assert.assertEquals(23, read.getTotalSize());
+	}
+
+	@Test
+	public void emptyListing() throws IOException {
+		GroupListing read = writeAndRead(listing(new String[0], new String[0], new int[0]));
+		Assert.assertEquals(0, read.numberOfGroups());
+		Assert.assertFalse(read.hasHitCounts());
+		Assert.assertEquals(-1, read.getNumberOfHits());
+		Assert.assertEquals(-1, read.getNumberOfDocs());
+		try {
+			read.getIdentity(0);
+			Assert.fail("Expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void manyGroups() throws IOException {
+		int n = 2000;
+		String[] ids = new String[n];
+		String[] disp = new String[n];
+		int[] sz = new int[n];
+		for (int i = 0; i < n; i++) {
+			// Varying lengths, so each group starts at a different offset
+			ids[i] = "str:" + i + (i % 3 == 0 ? "ä" : "") + (i % 7 == 0 ? "𝄞" : "");
+			disp[i] = ids[i].substring(4);
+			sz[i] = n - i;
+		}
+		GroupListing read = writeAndRead(listing(ids, disp, sz));
+		assertSameGroups(listing(ids, disp, sz), read);
+		try {
+			read.getSize(n);
+			Assert.fail("Expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// OK
+		}
+	}
+
+	@Test
+	public void notACacheFile() throws IOException {
+		File file = File.createTempFile("TestGroupDiskCache", ".groups");
+		try {
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				out.write("not a listing".getBytes("utf-8"));
+			}
+			try {
+				GroupDiskCache.read(file);
+				Assert.fail("Expected IOException");
+			} catch (IOException e) {
+				// OK
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void truncatedFile() throws IOException {
+		File file = File.createTempFile("TestGroupDiskCache", ".groups");
+		try {
+			GroupDiskCache.write(file, listing(new String[0], new String[0], new int[0]));
+			long headerSize = file.length();
+			GroupDiskCache.write(file, listing(identities, displays, sizes));
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(headerSize + 4); // (only part of the table of group positions)
+			}
+			try {
+				GroupDiskCache.read(file);
+				Assert.fail("Expected IOException");
+			} catch (IOException e) {
+				// OK
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+}
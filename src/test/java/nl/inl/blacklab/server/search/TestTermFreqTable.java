@@ -0,0 +1,151 @@
+package nl.inl.blacklab.server.search;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTermFreqTable {
+
+	/** Terms with 1-, 2-, 3- and 4-byte UTF-8 characters */
+	private static TermFreqTable table() {
+		Map<String, Integer> freq = new HashMap<>();
+		freq.put("a", 5);
+		freq.put("ab", 3);
+		freq.put("abc", 3);
+		freq.put("abd", 1);
+		freq.put("b", 8);
+		freq.put("ba", 2);
+		freq.put("één", 4);
+		freq.put("日本", 6);
+		freq.put("𝄞", 7);
+		return TermFreqTable.fromMap(freq);
+	}
+
+	private static TermFreqTable writeAndRead(TermFreqTable table) throws IOException {
+		File file = File.createTempFile("TestTermFreqTable", ".termfreq");
+		try {
+			table.write(file);
+			return TermFreqTable.read(file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static List<String> terms(TermFreqTable table) {
+		List<String> terms = new ArrayList<>();
+		for (int i = 0; i < table.size(); i++) {
+			terms.add(table.getTerm(i));
+		}
+		return terms;
+	}
+
+	private static void assertSameTable(TermFreqTable expected, TermFreqTable actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Assert.assertEquals(expected.getTerm(i), actual.getTerm(i));
+			Assert.assertEquals(expected.getFrequency(i), actual.getFrequency(i));
+		}
+		Assert.assertEquals(expected.getTotalFrequency(), actual.getTotalFrequency());
+	}
+
+	@Test
+	public void byFrequency() {
+		TermFreqTable table = table();
+		// Descending frequency; ties alphabetically
+		Assert.assertEquals(Arrays.asList("b", "𝄞", "日本", "a", "één", "ab", "abc", "ba", "abd"), terms(table));
+		Assert.assertEquals(8, table.getFrequency(0));
+		Assert.assertEquals(39, table.getTotalFrequency());
+		Assert.assertEquals(4, table.frequencyOf("één"));
+		Assert.assertEquals(0, table.frequencyOf("c"));
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		TermFreqTable table = table();
+		TermFreqTable read = writeAndRead(table);
+		assertSameTable(table, read);
+		Assert.assertEquals(7, read.frequencyOf("𝄞"));
+		Assert.assertEquals(6, read.frequencyOf("日本"));
+		assertSameTable(table.withPrefix("ab"), read.withPrefix("ab"));
+	}
+
+	@Test
+	public void emptyTable() throws IOException {
+		TermFreqTable read = writeAndRead(TermFreqTable.fromMap(new HashMap<String, Integer>()));
+		Assert.assertEquals(0, read.size());
+		Assert.assertEquals(0, read.getTotalFrequency());
+		Assert.assertEquals(0, read.frequencyOf("a"));
+		Assert.assertEquals(0, read.withPrefix("a").size());
+	}
+
+	@Test
+	public void withPrefix() {
+		TermFreqTable table = table();
+		Assert.assertEquals(table.size(), table.withPrefix("").size());
+		Assert.assertEquals(Arrays.asList("a", "ab", "abc", "abd"), terms(table.withPrefix("a"))); // first term
+		Assert.assertEquals(Arrays.asList("ab", "abc", "abd"), terms(table.withPrefix("ab")));
+		Assert.assertEquals(Arrays.asList("abc"), terms(table.withPrefix("abc"))); // whole term
+		Assert.assertEquals(Arrays.asList("b", "ba"), terms(table.withPrefix("b")));
+		Assert.assertEquals(Arrays.asList("één"), terms(table.withPrefix("é")));
+		Assert.assertEquals(Arrays.asList("日本"), terms(table.withPrefix("日")));
+		Assert.assertEquals(Arrays.asList("𝄞"), terms(table.withPrefix("𝄞"))); // last term
+		Assert.assertEquals(7, table.withPrefix("ab").getTotalFrequency());
+	}
+
+	@Test
+	public void withPrefixNoMatches() {
+		TermFreqTable table = table();
+		Assert.assertEquals(0, table.withPrefix("0").size()); // before the first term
+		Assert.assertEquals(0, table.withPrefix("abcd").size()); // longer than a term
+		Assert.assertEquals(0, table.withPrefix("c").size()); // between terms
+		Assert.assertEquals(0, table.withPrefix("￿").size()); // after the last term
+		Assert.assertEquals(0, table.withPrefix("c").getTotalFrequency());
+	}
+
+	@Test
+	public void notATableFile() throws IOException {
+		File file = File.createTempFile("TestTermFreqTable", ".termfreq");
+		try {
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				out.write("not a term frequency table".getBytes("utf-8"));
+			}
+			try {
+				TermFreqTable.read(file);
+				Assert.fail("Expected IOException");
+			} catch (IOException e) {
+				// OK
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void truncatedFile() throws IOException {
+		File file = File.createTempFile("TestTermFreqTable", ".termfreq");
+		try {
+			table().write(file);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(raf.length() - 2); // (only part of the frequency order)
+			}
+			try {
+				TermFreqTable.read(file);
+				Assert.fail("Expected IOException");
+			} catch (IOException e) {
+				// OK
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+}